@@ -0,0 +1,308 @@
+// Copyright (c) 2013 Samuel Halliday
+package com.github.fommil.collections;
+
+import com.github.fommil.collections.ListenerRegistry.Registration;
+import com.github.fommil.collections.ObservableCollection.CollectionListener;
+import com.github.fommil.collections.ObservableMap.MapListener;
+import com.github.fommil.utils.ProducerConsumer;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.RemovalCause;
+import com.google.common.collect.LinkedHashMultiset;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multiset;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.Accessors;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Streams the changes of an {@link ObservableCollection} or {@link ObservableMap}
+ * to a consumer thread, through a bounded {@link ProducerConsumer}.
+ * <p>
+ * The thread that changes the source never blocks: while the consumer is
+ * behind, consecutive changes are merged into one pending change (with the net
+ * effect on each element or key). If the pending change grows too large, it
+ * is discarded and the consumer receives an {@link Event} that
+ * {@link Event#wasOverflowed()}, after which it should resync from a snapshot
+ * of the source. Changes that follow the signal may already be reflected in
+ * the snapshot, so should be applied idempotently.
+ * <p>
+ * The consumer iterates the {@link Event}s, blocking until they are available,
+ * until {@link #close()} is called.
+ *
+ * @param <C> the type of the changes.
+ * @author Samuel Halliday
+ */
+@ThreadSafe
+public final class ChangeStream<C> implements Iterator<ChangeStream.Event<C>>, Closeable {
+
+    /**
+     * @param <T>
+     * @param collection
+     * @param capacity   number of events that may be buffered for the consumer.
+     * @param maxPending number of merged elements that may wait for space in the buffer.
+     * @return
+     */
+    public static <T> ChangeStream<ObservableCollection.Change<T>> newChangeStream(
+            ObservableCollection<T> collection, int capacity, int maxPending) {
+        Preconditions.checkNotNull(collection);
+        final ChangeStream<ObservableCollection.Change<T>> stream = new ChangeStream<ObservableCollection.Change<T>>(
+                new CollectionMerger<T>(collection), capacity, maxPending);
+        stream.registration = collection.listen(new CollectionListener<T>() {
+            @Override
+            public void onCollectionChanged(ObservableCollection.Change<T> change) {
+                stream.publish(change);
+            }
+        });
+        return stream;
+    }
+
+    /**
+     * @param <K>
+     * @param <V>
+     * @param map
+     * @param capacity   number of events that may be buffered for the consumer.
+     * @param maxPending number of merged entries that may wait for space in the buffer.
+     * @return
+     */
+    public static <K, V> ChangeStream<ObservableMap.Change<K, V>> newChangeStream(
+            ObservableMap<K, V> map, int capacity, int maxPending) {
+        Preconditions.checkNotNull(map);
+        final ChangeStream<ObservableMap.Change<K, V>> stream = new ChangeStream<ObservableMap.Change<K, V>>(
+                new MapMerger<K, V>(map), capacity, maxPending);
+        stream.registration = map.listen(new MapListener<K, V>() {
+            @Override
+            public void onMapChanged(ObservableMap.Change<K, V> change) {
+                stream.publish(change);
+            }
+        });
+        return stream;
+    }
+
+    /**
+     * Either a (possibly merged) change, or a signal that changes were lost.
+     *
+     * @param <C>
+     */
+    @RequiredArgsConstructor(access = AccessLevel.PRIVATE)
+    @Getter
+    public static final class Event<C> {
+
+        /**
+         * {@code null} if {@link #wasOverflowed()}.
+         */
+        @Nullable
+        private final C change;
+
+        /**
+         * Changes were discarded, so the consumer should resync from a snapshot.
+         */
+        @Accessors(fluent = true)
+        private final boolean wasOverflowed;
+
+    }
+
+    // accumulates the net effect of consecutive changes
+    private interface Merger<C> {
+
+        void merge(C change);
+
+        int size();
+
+        /**
+         * @return the merged change, resetting the merger.
+         */
+        C drain();
+
+        void clear();
+    }
+
+    private final ProducerConsumer<Event<C>> buffer;
+
+    @GuardedBy("this")
+    private final Merger<C> pending;
+
+    private final int maxPending;
+
+    @GuardedBy("this")
+    private boolean overflowed;
+
+    private volatile Registration registration;
+
+    private ChangeStream(Merger<C> pending, int capacity, int maxPending) {
+        Preconditions.checkArgument(capacity > 0);
+        Preconditions.checkArgument(maxPending > 0);
+        this.buffer = new ProducerConsumer<Event<C>>(capacity);
+        this.pending = pending;
+        this.maxPending = maxPending;
+    }
+
+    private synchronized void publish(C change) {
+        if (!overflowed) {
+            pending.merge(change);
+            if (pending.size() > maxPending) {
+                pending.clear();
+                overflowed = true;
+            }
+        }
+        flush();
+    }
+
+    // moves pending changes into the buffer, if there is space
+    private synchronized void flush() {
+        // only the consumer makes space, so a full buffer stays full until it takes
+        // an event: checked first, as draining the pending change costs O(pending)
+        if (buffer.remainingCapacity() == 0) {
+            return;
+        }
+        if (overflowed) {
+            if (!buffer.offer(new Event<C>(null, true))) {
+                return;
+            }
+            overflowed = false;
+        }
+        if (pending.size() > 0) {
+            C merged = pending.drain();
+            if (!buffer.offer(new Event<C>(merged, false))) {
+                pending.merge(merged); // restores the drained state
+            }
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return buffer.hasNext();
+    }
+
+    @Override
+    public Event<C> next() {
+        Event<C> event = buffer.next();
+        flush();
+        return event;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("remove not supported");
+    }
+
+    /**
+     * Stops listening to the source: the consumer will receive the remaining
+     * events. May be called by either thread.
+     */
+    @Override
+    public void close() {
+        Registration registration = this.registration;
+        if (registration != null) {
+            registration.close();
+        }
+        buffer.close();
+    }
+
+    private static final class CollectionMerger<T> implements Merger<ObservableCollection.Change<T>> {
+        private final ObservableCollection<T> collection;
+
+        private Multiset<T> added = LinkedHashMultiset.create(), removed = LinkedHashMultiset.create();
+
+        private CollectionMerger(ObservableCollection<T> collection) {
+            this.collection = collection;
+        }
+
+        @Override
+        public void merge(ObservableCollection.Change<T> change) {
+            for (T element : change.getElementsRemoved()) {
+                if (!added.remove(element)) {
+                    removed.add(element);
+                }
+            }
+            for (T element : change.getElementsAdded()) {
+                if (!removed.remove(element)) {
+                    added.add(element);
+                }
+            }
+        }
+
+        @Override
+        public int size() {
+            return added.size() + removed.size();
+        }
+
+        @Override
+        public ObservableCollection.Change<T> drain() {
+            List<T> elementsAdded = Lists.newArrayList(added);
+            List<T> elementsRemoved = Lists.newArrayList(removed);
+            clear();
+            return new ObservableCollection.Change<T>(collection, elementsAdded, elementsRemoved,
+                    !elementsAdded.isEmpty(), !elementsRemoved.isEmpty());
+        }
+
+        @Override
+        public void clear() {
+            added = LinkedHashMultiset.create();
+            removed = LinkedHashMultiset.create();
+        }
+    }
+
+    private static final class MapMerger<K, V> implements Merger<ObservableMap.Change<K, V>> {
+        private final ObservableMap<K, V> map;
+
+        // the latest entries, and the entries from before the first change
+        private Map<K, Entry<K, V>> added = Maps.newLinkedHashMap(), removed = Maps.newLinkedHashMap();
+
+        @Nullable
+        private RemovalCause cause;
+
+        private MapMerger(ObservableMap<K, V> map) {
+            this.map = map;
+        }
+
+        @Override
+        public void merge(ObservableMap.Change<K, V> change) {
+            for (Entry<K, V> entry : change.getEntriesRemoved()) {
+                if (added.remove(entry.getKey()) == null && !removed.containsKey(entry.getKey())) {
+                    removed.put(entry.getKey(), entry);
+                }
+            }
+            for (Entry<K, V> entry : change.getEntriesAdded()) {
+                added.put(entry.getKey(), entry);
+            }
+            if (cause == null) {
+                cause = change.getCause();
+            } else if (cause != change.getCause()) {
+                cause = RemovalCause.EXPLICIT;
+            }
+        }
+
+        @Override
+        public int size() {
+            return added.size() + removed.size();
+        }
+
+        @Override
+        public ObservableMap.Change<K, V> drain() {
+            List<Entry<K, V>> entriesAdded = Lists.newArrayList(added.values());
+            List<Entry<K, V>> entriesRemoved = Lists.newArrayList(removed.values());
+            RemovalCause merged = cause == null ? RemovalCause.EXPLICIT : cause;
+            clear();
+            return new ObservableMap.Change<K, V>(map, entriesAdded, entriesRemoved,
+                    !entriesAdded.isEmpty(), !entriesRemoved.isEmpty(), merged);
+        }
+
+        @Override
+        public void clear() {
+            added = Maps.newLinkedHashMap();
+            removed = Maps.newLinkedHashMap();
+            cause = null;
+        }
+    }
+}
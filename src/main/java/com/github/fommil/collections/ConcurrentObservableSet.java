@@ -0,0 +1,230 @@
+// Copyright (c) 2013 Samuel Halliday
+package com.github.fommil.collections;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Striped;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * An {@link ObservableSet} that may be changed by many threads, backed by a
+ * {@link ConcurrentHashMap}.
+ * <p>
+ * Changes are only fired if the membership of an element really changed, and
+ * the {@link ObservableCollection.Change}s for any given element are fired in
+ * the same order as the changes were made. This is achieved by locking a stripe
+ * for each changed element during the change and its notification, so changes to
+ * unrelated elements will rarely contend.
+ * <p>
+ * Listeners are called by the thread that made the change, while it holds the
+ * locks of the changed elements: they must be thread safe, should be fast and
+ * must not change this set.
+ * <p>
+ * {@link #clear()} and {@link #retainAll(Collection)} lock every stripe, so are
+ * atomic but block all other changes while they run.
+ *
+ * @param <T>
+ * @author Samuel Halliday
+ * @see ObservableSet#newObservableConcurrentSet()
+ */
+@ThreadSafe
+public class ConcurrentObservableSet<T> extends ObservableSet<T> {
+
+    private final Striped<Lock> locks;
+
+    public ConcurrentObservableSet() {
+        this(4 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param stripes number of locks shared by the elements.
+     */
+    public ConcurrentObservableSet(int stripes) {
+        super(Sets.newSetFromMap(new ConcurrentHashMap<T, Boolean>()));
+        locks = Striped.lock(stripes);
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        final Iterator<T> iterator = delegate.iterator();
+        return new Iterator<T>() {
+            private T current;
+
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public T next() {
+                current = iterator.next();
+                return current;
+            }
+
+            @Override
+            public void remove() {
+                Preconditions.checkState(current != null);
+                ConcurrentObservableSet.this.remove(current);
+                current = null;
+            }
+        };
+    }
+
+    @Override
+    public boolean add(T e) {
+        Lock lock = locks.get(e);
+        lock.lock();
+        try {
+            if (delegate.add(e)) {
+                fire(Collections.singleton(e), Collections.<T>emptySet());
+                return true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean remove(Object o) {
+        Lock lock = locks.get(o);
+        lock.lock();
+        try {
+            if (delegate.remove(o)) {
+                fire(Collections.<T>emptySet(), Collections.singleton((T) o));
+                return true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends T> c) {
+        Iterable<Lock> stripes = lockAll(c);
+        try {
+            List<T> added = Lists.newArrayList();
+            for (T element : c) {
+                if (delegate.add(element)) {
+                    added.add(element);
+                }
+            }
+            fire(added, Collections.<T>emptySet());
+            return !added.isEmpty();
+        } finally {
+            unlockAll(stripes);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean removeAll(Collection<?> c) {
+        Iterable<Lock> stripes = lockAll(c);
+        try {
+            List<T> removed = Lists.newArrayList();
+            for (Object element : c) {
+                if (delegate.remove(element)) {
+                    removed.add((T) element);
+                }
+            }
+            fire(Collections.<T>emptySet(), removed);
+            return !removed.isEmpty();
+        } finally {
+            unlockAll(stripes);
+        }
+    }
+
+    @Override
+    public boolean retainAll(Collection<?> c) {
+        Collection<?> lookup = lookup(c);
+        lockStripes();
+        try {
+            List<T> lost = Lists.newArrayList();
+            for (Iterator<T> it = delegate.iterator(); it.hasNext(); ) {
+                T element = it.next();
+                if (!lookup.contains(element)) {
+                    it.remove();
+                    lost.add(element);
+                }
+            }
+            fire(Collections.<T>emptySet(), lost);
+            return !lost.isEmpty();
+        } finally {
+            unlockStripes();
+        }
+    }
+
+    /**
+     * Concurrent changes are allowed, but may not be seen.
+     */
+    @Override
+    public boolean parallelRetainAll(Collection<?> c, ForkJoinPool pool) {
+        return removeAll(parallelFind(c, false, pool));
+    }
+
+    /**
+     * Concurrent changes are allowed, but may not be seen.
+     */
+    @Override
+    public boolean parallelRemoveAll(Collection<?> c, ForkJoinPool pool) {
+        return removeAll(parallelFind(c, true, pool));
+    }
+
+    @Override
+    public void clear() {
+        lockStripes();
+        try {
+            List<T> removed = Lists.newArrayList(delegate);
+            delegate.clear();
+            fire(Collections.<T>emptySet(), removed);
+        } finally {
+            unlockStripes();
+        }
+    }
+
+    // in stripe order, as lockAll, avoiding deadlocks with other bulk operations
+    private void lockStripes() {
+        for (int i = 0; i < locks.size(); i++) {
+            locks.getAt(i).lock();
+        }
+    }
+
+    private void unlockStripes() {
+        for (int i = locks.size() - 1; i >= 0; i--) {
+            locks.getAt(i).unlock();
+        }
+    }
+
+    // Striped orders the locks consistently, avoiding deadlocks between bulk operations
+    private Iterable<Lock> lockAll(Collection<?> elements) {
+        Iterable<Lock> stripes = locks.bulkGet(elements);
+        for (Lock lock : stripes) {
+            lock.lock();
+        }
+        return stripes;
+    }
+
+    private void unlockAll(Iterable<Lock> stripes) {
+        for (Lock lock : stripes) {
+            lock.unlock();
+        }
+    }
+
+    private void fire(Collection<T> added, Collection<T> removed) {
+        if (added.isEmpty() && removed.isEmpty()) {
+            return;
+        }
+        fireOnCollectionChanged(new Change<T>(this, added, removed, !added.isEmpty(), !removed.isEmpty()));
+    }
+}
@@ -0,0 +1,215 @@
+// Copyright (c) 2013 Samuel Halliday
+package com.github.fommil.collections;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Sets;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.Closeable;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * Holds the listeners of an observable object.
+ * <p>
+ * Registering a listener returns a {@link Registration}, which removes the listener
+ * in {@code O(1)} when it is closed. Listeners may be registered weakly, in which
+ * case they are removed lazily after they have been garbage collected: this stops
+ * short-lived listeners (e.g. UI views) from leaking if they forget to unregister.
+ * <p>
+ * Iteration is over an array snapshot of the listeners, which is only rebuilt on
+ * the first iteration after the registrations have changed (rather than on every
+ * registration, as with a {@link java.util.concurrent.CopyOnWriteArrayList}).
+ * Changes to the registrations during an iteration will not be seen by it.
+ *
+ * @param <L> the listener type
+ * @author Samuel Halliday
+ */
+@ThreadSafe
+public final class ListenerRegistry<L> implements Iterable<L> {
+
+    /**
+     * Handle to a registered listener.
+     */
+    public interface Registration extends Closeable {
+
+        /**
+         * Unregisters the listener, does nothing if it is already unregistered.
+         */
+        @Override
+        public void close();
+    }
+
+    private interface Handle<L> extends Registration {
+        L get();
+    }
+
+    private final class StrongHandle implements Handle<L> {
+        private final L listener;
+
+        StrongHandle(L listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public L get() {
+            return listener;
+        }
+
+        @Override
+        public void close() {
+            unregister(this);
+        }
+    }
+
+    private final class WeakHandle extends WeakReference<L> implements Handle<L> {
+        WeakHandle(L listener) {
+            super(listener, queue);
+        }
+
+        @Override
+        public void close() {
+            unregister(this);
+        }
+    }
+
+    private static final Handle<?>[] NONE = new Handle<?>[0];
+
+    private final int maximum;
+
+    private final ReferenceQueue<L> queue = new ReferenceQueue<L>();
+
+    @GuardedBy("this")
+    private final Set<Handle<L>> handles = Sets.newLinkedHashSet();
+
+    // null when the registrations have changed
+    private volatile Handle<?>[] snapshot = NONE;
+
+    public ListenerRegistry() {
+        this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param maximum number of listeners, beyond which registration fails:
+     *                useful to detect leaking listeners early.
+     */
+    public ListenerRegistry(int maximum) {
+        Preconditions.checkArgument(maximum > 0);
+        this.maximum = maximum;
+    }
+
+    /**
+     * @param listener
+     * @return the registration, which should be closed when no longer needed.
+     * @throws IllegalStateException if the maximum number of listeners would be exceeded.
+     */
+    public Registration register(L listener) {
+        return add(new StrongHandle(Preconditions.checkNotNull(listener)));
+    }
+
+    /**
+     * The registry will not stop the listener from being garbage collected,
+     * so callers must keep a reference to the listener for as long as it is needed.
+     *
+     * @param listener
+     * @return the registration, which may be closed to unregister early.
+     * @throws IllegalStateException if the maximum number of listeners would be exceeded.
+     */
+    public Registration registerWeakly(L listener) {
+        return add(new WeakHandle(Preconditions.checkNotNull(listener)));
+    }
+
+    /**
+     * Unregisters the first registration of the listener, which is {@code O(n)}:
+     * prefer {@link Registration#close()}.
+     *
+     * @param listener
+     */
+    public synchronized void unregister(L listener) {
+        for (Handle<L> handle : handles) {
+            if (listener.equals(handle.get())) {
+                unregister(handle);
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the number of registered listeners, which may include
+     * weakly registered listeners that have been garbage collected.
+     */
+    public synchronized int size() {
+        expunge();
+        return handles.size();
+    }
+
+    @Override
+    public Iterator<L> iterator() {
+        Handle<?>[] current = snapshot;
+        if (current == null) {
+            current = rebuild();
+        }
+        final Handle<?>[] handles = current;
+        return new AbstractIterator<L>() {
+            private int i;
+
+            @Override
+            @SuppressWarnings("unchecked")
+            protected L computeNext() {
+                while (i < handles.length) {
+                    L listener = ((Handle<L>) handles[i++]).get();
+                    if (listener != null) {
+                        return listener;
+                    }
+                    snapshot = null; // collected, so clean up on the next iteration
+                }
+                return endOfData();
+            }
+        };
+    }
+
+    private synchronized Registration add(Handle<L> handle) {
+        expunge();
+        Preconditions.checkState(handles.size() < maximum, "more than %s listeners, are they leaking?", maximum);
+        handles.add(handle);
+        snapshot = null;
+        return handle;
+    }
+
+    private synchronized void unregister(Handle<L> handle) {
+        if (handles.remove(handle)) {
+            snapshot = null;
+        }
+    }
+
+    private synchronized Handle<?>[] rebuild() {
+        expunge();
+        Handle<?>[] current = snapshot;
+        if (current == null) {
+            for (Iterator<Handle<L>> it = handles.iterator(); it.hasNext(); ) {
+                if (it.next().get() == null) {
+                    it.remove();
+                }
+            }
+            current = handles.toArray(new Handle<?>[handles.size()]);
+            snapshot = current;
+        }
+        return current;
+    }
+
+    @GuardedBy("this")
+    @SuppressWarnings("unchecked")
+    private void expunge() {
+        Reference<? extends L> collected;
+        while ((collected = queue.poll()) != null) {
+            if (handles.remove((Handle<L>) collected)) {
+                snapshot = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+// Copyright (c) 2013 Samuel Halliday
+package com.github.fommil.collections;
+
+import com.google.common.base.Preconditions;
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+
+/**
+ * Shared arithmetic for the open addressing tables of the
+ * primitive collections.
+ *
+ * @author Samuel Halliday
+ */
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+final class LongHashing {
+
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    private static final double LOAD_FACTOR = 0.75;
+
+    /**
+     * @param key
+     * @return the MurmurHash3 finalizer of the key, so that sequential keys spread out.
+     */
+    static int mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    /**
+     * @param expected
+     * @return a power of two table size which can hold the expected number of keys.
+     */
+    static int capacityFor(int expected) {
+        long required = (long) Math.ceil(expected / LOAD_FACTOR) + 1;
+        Preconditions.checkArgument(required <= MAX_CAPACITY, "too many elements: " + expected);
+        int capacity = 4;
+        while (capacity < required) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    static int resizeAt(int capacity) {
+        return Math.min(capacity - 1, (int) (capacity * LOAD_FACTOR));
+    }
+
+    /**
+     * @param capacity
+     * @return the next table size.
+     * @throws IllegalStateException if the table cannot grow any further.
+     */
+    static int grow(int capacity) {
+        Preconditions.checkState(capacity < MAX_CAPACITY, "table is full");
+        return capacity << 1;
+    }
+}
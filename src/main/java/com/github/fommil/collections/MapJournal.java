@@ -0,0 +1,527 @@
+// Copyright (c) 2013 Samuel Halliday
+package com.github.fommil.collections;
+
+import com.github.fommil.collections.ObservableMap.Change;
+import com.github.fommil.collections.ObservableMap.MapListener;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.Cleanup;
+import lombok.extern.java.Log;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.*;
+import java.lang.reflect.Method;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+
+/**
+ * Persists an {@link ObservableMap} by appending every {@link Change} to a
+ * journal of memory mapped segment files, allowing the map to be recovered
+ * after a restart.
+ * <p>
+ * Each {@link Change} is written as a single compact binary record containing
+ * the removed keys and the added entries. Segments are forced to disk by a
+ * background thread at most once every sync interval (group commit), so a crash
+ * may lose the most recent changes but never leaves a partially applied change.
+ * <p>
+ * When enough segments have been filled, a snapshot of the whole map is written
+ * and the older segments are deleted, which bounds the recovery time. The snapshot
+ * is taken on the mutating thread and costs {@code O(n)}.
+ * <p>
+ * Typical usage:
+ * <code><pre>
+ * MapJournal&lt;String, Long&gt; journal = new MapJournal&lt;String, Long&gt;(dir, MapJournal.STRING, MapJournal.LONG);
+ * ObservableMap&lt;String, Long&gt; map = journal.recover(Maps.&lt;String, Long&gt;newHashMap());
+ * ...
+ * journal.close();
+ * </pre></code>
+ *
+ * @param <K>
+ * @param <V>
+ * @author Samuel Halliday
+ */
+@Log
+@ThreadSafe
+public class MapJournal<K, V> implements MapListener<K, V>, Closeable {
+
+    /**
+     * Binary encoding of keys or values.
+     *
+     * @param <T>
+     */
+    public interface Serializer<T> {
+
+        public void write(DataOutput out, T value) throws IOException;
+
+        public T read(DataInput in) throws IOException;
+    }
+
+    public static final Serializer<String> STRING = new Serializer<String>() {
+        @Override
+        public void write(DataOutput out, String value) throws IOException {
+            out.writeUTF(value);
+        }
+
+        @Override
+        public String read(DataInput in) throws IOException {
+            return in.readUTF();
+        }
+    };
+
+    public static final Serializer<Long> LONG = new Serializer<Long>() {
+        @Override
+        public void write(DataOutput out, Long value) throws IOException {
+            out.writeLong(value);
+        }
+
+        @Override
+        public Long read(DataInput in) throws IOException {
+            return in.readLong();
+        }
+    };
+
+    public static final Serializer<Double> DOUBLE = new Serializer<Double>() {
+        @Override
+        public void write(DataOutput out, Double value) throws IOException {
+            out.writeDouble(value);
+        }
+
+        @Override
+        public Double read(DataInput in) throws IOException {
+            return in.readDouble();
+        }
+    };
+
+    private static final String SEGMENT_PREFIX = "journal-", SEGMENT_SUFFIX = ".log";
+
+    private static final String SNAPSHOT_PREFIX = "snapshot-", SNAPSHOT_SUFFIX = ".bin";
+
+    private static final int SNAPSHOT_MAGIC = 0x4d4a534e;
+
+    private static final byte UPDATE = 1, CLEAR = 2;
+
+    // length and checksum
+    private static final int HEADER = 8;
+
+    private final File directory;
+
+    private final Serializer<K> keys;
+
+    private final Serializer<V> values;
+
+    private final int segmentSize, compactAfter;
+
+    private final long syncMillis;
+
+    private final ScheduledExecutorService syncer;
+
+    private final RecordBuffer record = new RecordBuffer();
+
+    private final DataOutputStream recordOut = new DataOutputStream(record);
+
+    private ObservableMap<K, V> map;
+
+    private MappedByteBuffer segment;
+
+    private long sequence;
+
+    private int segmentsSinceSnapshot;
+
+    private boolean dirty;
+
+    // held while forcing or unmapping a segment, so that a segment is never forced after it is unmapped
+    private final Object forcing = new Object();
+
+    // guarded by forcing
+    private MappedByteBuffer mapped;
+
+    // exposes the internal array to avoid copying every record
+    private static final class RecordBuffer extends ByteArrayOutputStream {
+        byte[] array() {
+            return buf;
+        }
+    }
+
+    /**
+     * Uses 64MB segments, syncs every 100ms and takes a snapshot every 4 segments.
+     *
+     * @param directory
+     * @param keys
+     * @param values
+     */
+    public MapJournal(File directory, Serializer<K> keys, Serializer<V> values) {
+        this(directory, keys, values, 64 * 1024 * 1024, 100, 4);
+    }
+
+    /**
+     * @param directory     will be created if it does not exist, and must only be used by this journal.
+     * @param keys
+     * @param values
+     * @param segmentSize   in bytes, the size of each memory mapped file.
+     * @param syncMillis    maximum time that changes will wait to be forced to disk.
+     * @param compactAfter  number of segments that are filled before a snapshot is taken.
+     */
+    public MapJournal(File directory, Serializer<K> keys, Serializer<V> values,
+                      int segmentSize, long syncMillis, int compactAfter) {
+        this.directory = Preconditions.checkNotNull(directory);
+        this.keys = Preconditions.checkNotNull(keys);
+        this.values = Preconditions.checkNotNull(values);
+        Preconditions.checkArgument(segmentSize > HEADER);
+        Preconditions.checkArgument(syncMillis > 0);
+        Preconditions.checkArgument(compactAfter > 0);
+        this.segmentSize = segmentSize;
+        this.syncMillis = syncMillis;
+        this.compactAfter = compactAfter;
+        syncer = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("MapJournal-%d").build());
+    }
+
+    /**
+     * Rebuilds the map from the latest snapshot and the journal segments that follow it,
+     * and then starts journaling all changes to the returned map.
+     *
+     * @param delegate the (usually empty) map to recover into.
+     * @return the recovered map, which must be used for all subsequent changes.
+     * @throws IOException
+     */
+    public synchronized ObservableMap<K, V> recover(Map<K, V> delegate) throws IOException {
+        Preconditions.checkNotNull(delegate);
+        Preconditions.checkState(map == null, "already recovered");
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("could not create " + directory);
+        }
+        long snapshot = -1;
+        List<Long> snapshots = list(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+        if (!snapshots.isEmpty()) {
+            snapshot = snapshots.get(snapshots.size() - 1);
+            readSnapshot(file(SNAPSHOT_PREFIX, snapshot, SNAPSHOT_SUFFIX), delegate);
+        }
+        sequence = Math.max(0, snapshot);
+        long tail = -1;
+        int end = 0;
+        for (long seq : list(SEGMENT_PREFIX, SEGMENT_SUFFIX)) {
+            if (seq >= snapshot) {
+                end = replay(file(SEGMENT_PREFIX, seq, SEGMENT_SUFFIX), delegate);
+                segmentsSinceSnapshot++;
+                tail = seq;
+            }
+            sequence = Math.max(sequence, seq + 1);
+        }
+        if (tail >= 0 && tail == sequence - 1) {
+            // continue after the last valid record, rather than leaving a mostly empty segment
+            sequence = tail;
+            segmentsSinceSnapshot--;
+            appendSegment(end);
+        } else {
+            openSegment(HEADER);
+        }
+        map = ObservableMap.newObservableMap(delegate);
+        map.addMapListener(this);
+        syncer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sync();
+                } catch (RuntimeException e) {
+                    log.log(Level.WARNING, "failed to sync " + directory, e);
+                }
+            }
+        }, syncMillis, syncMillis, TimeUnit.MILLISECONDS);
+        return map;
+    }
+
+    @Override
+    public synchronized void onMapChanged(Change<K, V> change) {
+        Preconditions.checkState(segment != null, "closed");
+        try {
+            record.reset();
+            if (change.wasRemoved() && !change.wasAdded() && map.delegate.isEmpty()) {
+                recordOut.writeByte(CLEAR);
+            } else {
+                recordOut.writeByte(UPDATE);
+                recordOut.writeInt(change.getEntriesRemoved().size());
+                for (Entry<K, V> entry : change.getEntriesRemoved()) {
+                    keys.write(recordOut, entry.getKey());
+                }
+                recordOut.writeInt(change.getEntriesAdded().size());
+                for (Entry<K, V> entry : change.getEntriesAdded()) {
+                    keys.write(recordOut, entry.getKey());
+                    values.write(recordOut, entry.getValue());
+                }
+            }
+            int length = record.size();
+            boolean rolled = segment.remaining() < HEADER + length;
+            if (rolled) {
+                rollSegment(HEADER + length);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(record.array(), 0, length);
+            segment.putInt(length);
+            segment.putInt((int) crc.getValue());
+            segment.put(record.array(), 0, length);
+            dirty = true;
+            // after the change is journaled, so that it is not lost if the snapshot fails
+            if (rolled && segmentsSinceSnapshot >= compactAfter) {
+                writeSnapshot();
+            }
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    /**
+     * Forces all journaled changes to disk, which is otherwise done periodically.
+     * Changes may continue to be journaled while the disk is being written.
+     */
+    public void sync() {
+        MappedByteBuffer dirtied;
+        synchronized (this) {
+            if (!dirty || segment == null) {
+                return;
+            }
+            dirtied = segment;
+            dirty = false;
+        }
+        synchronized (forcing) {
+            // a segment that has since been rolled was forced before it was unmapped
+            if (dirtied == mapped) {
+                dirtied.force();
+            }
+        }
+    }
+
+    /**
+     * Stops journaling and syncs outstanding changes. The map may still be used,
+     * but changes will no longer be persisted.
+     */
+    @Override
+    public synchronized void close() {
+        syncer.shutdown();
+        if (map != null) {
+            map.removeMapListener(this);
+        }
+        sync();
+        if (segment != null) {
+            unmap(segment);
+            segment = null;
+        }
+    }
+
+    // the next segment is mapped before the full one is released, so that
+    // if it cannot be opened the journal still holds a valid (full) segment
+    private void rollSegment(int required) throws IOException {
+        MappedByteBuffer full = segment;
+        full.force();
+        sequence++;
+        try {
+            openSegment(required);
+        } catch (IOException e) {
+            sequence--;
+            throw e;
+        }
+        unmap(full);
+        segmentsSinceSnapshot++;
+    }
+
+    private void openSegment(int required) throws IOException {
+        File file = file(SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX);
+        @Cleanup RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        int size = Math.max(segmentSize, required);
+        raf.setLength(size);
+        setSegment(raf.getChannel().map(MapMode.READ_WRITE, 0, size));
+        dirty = false;
+    }
+
+    private void setSegment(MappedByteBuffer segment) {
+        synchronized (forcing) {
+            this.segment = segment;
+            mapped = segment;
+        }
+    }
+
+    // reopens the current segment, to append after the given position
+    private void appendSegment(int position) throws IOException {
+        File file = file(SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX);
+        @Cleanup RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        setSegment(raf.getChannel().map(MapMode.READ_WRITE, 0, raf.length()));
+        // erase any torn record, so it cannot be mistaken for one that follows the next append
+        for (int i = position; i < segment.limit(); i++) {
+            if (segment.get(i) != 0) {
+                segment.put(i, (byte) 0);
+                dirty = true;
+            }
+        }
+        segment.position(position);
+    }
+
+    private void writeSnapshot() throws IOException {
+        File target = file(SNAPSHOT_PREFIX, sequence, SNAPSHOT_SUFFIX);
+        File tmp = new File(directory, target.getName() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(map.delegate.size());
+            for (Entry<K, V> entry : map.delegate.entrySet()) {
+                keys.write(out, entry.getKey());
+                values.write(out, entry.getValue());
+            }
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        if (!tmp.renameTo(target)) {
+            throw new IOException("could not rename " + tmp);
+        }
+        syncDirectory();
+        for (long seq : list(SEGMENT_PREFIX, SEGMENT_SUFFIX)) {
+            if (seq < sequence) {
+                delete(file(SEGMENT_PREFIX, seq, SEGMENT_SUFFIX));
+            }
+        }
+        for (long seq : list(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX)) {
+            if (seq < sequence) {
+                delete(file(SNAPSHOT_PREFIX, seq, SNAPSHOT_SUFFIX));
+            }
+        }
+        segmentsSinceSnapshot = 0;
+    }
+
+    private void readSnapshot(File file, Map<K, V> delegate) throws IOException {
+        @Cleanup DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        if (in.readInt() != SNAPSHOT_MAGIC) {
+            throw new IOException("not a snapshot " + file);
+        }
+        int size = in.readInt();
+        for (int i = 0; i < size; i++) {
+            K key = keys.read(in);
+            delegate.put(key, values.read(in));
+        }
+    }
+
+    // returns the position after the last valid record
+    private int replay(File file, Map<K, V> delegate) throws IOException {
+        @Cleanup RandomAccessFile raf = new RandomAccessFile(file, "r");
+        MappedByteBuffer buffer = raf.getChannel().map(MapMode.READ_ONLY, 0, raf.length());
+        byte[] bytes = new byte[0];
+        CRC32 crc = new CRC32();
+        int end = 0;
+        try {
+            while (buffer.remaining() >= HEADER) {
+                int length = buffer.getInt();
+                int checksum = buffer.getInt();
+                if (length <= 0 || length > buffer.remaining()) {
+                    break; // end of the written records
+                }
+                if (bytes.length < length) {
+                    bytes = new byte[length];
+                }
+                buffer.get(bytes, 0, length);
+                crc.reset();
+                crc.update(bytes, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    log.warning("ignoring torn record at the end of " + file);
+                    break;
+                }
+                apply(new DataInputStream(new ByteArrayInputStream(bytes, 0, length)), delegate);
+                end = buffer.position();
+            }
+        } catch (BufferUnderflowException e) {
+            log.warning("ignoring truncated record at the end of " + file);
+        } finally {
+            unmap(buffer);
+        }
+        return end;
+    }
+
+    private void apply(DataInput in, Map<K, V> delegate) throws IOException {
+        if (in.readByte() == CLEAR) {
+            delegate.clear();
+            return;
+        }
+        int removed = in.readInt();
+        for (int i = 0; i < removed; i++) {
+            delegate.remove(keys.read(in));
+        }
+        int added = in.readInt();
+        for (int i = 0; i < added; i++) {
+            K key = keys.read(in);
+            delegate.put(key, values.read(in));
+        }
+    }
+
+    private File file(String prefix, long seq, String suffix) {
+        return new File(directory, String.format("%s%019d%s", prefix, seq, suffix));
+    }
+
+    // sequence numbers of the files with the given prefix, in ascending order
+    private List<Long> list(String prefix, String suffix) {
+        List<Long> sequences = Lists.newArrayList();
+        String[] names = directory.list();
+        if (names == null) {
+            return sequences;
+        }
+        for (String name : names) {
+            if (name.startsWith(prefix) && name.endsWith(suffix)) {
+                try {
+                    sequences.add(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())));
+                } catch (NumberFormatException e) {
+                    log.fine("ignoring " + name);
+                }
+            }
+        }
+        Collections.sort(sequences);
+        return sequences;
+    }
+
+    // makes the rename of a snapshot durable, where the platform allows it
+    private void syncDirectory() {
+        try {
+            @Cleanup FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+            channel.force(true);
+        } catch (IOException e) {
+            log.log(Level.FINE, "could not sync " + directory, e);
+        }
+    }
+
+    // releases the mapping now, rather than when the buffer is garbage collected,
+    // so that deleted segments do not hold on to disk space
+    private void unmap(MappedByteBuffer buffer) {
+        synchronized (forcing) {
+            if (buffer == mapped) {
+                mapped = null;
+            }
+            try {
+                Method cleaner = buffer.getClass().getMethod("cleaner");
+                cleaner.setAccessible(true);
+                Object clean = cleaner.invoke(buffer);
+                if (clean != null) {
+                    clean.getClass().getMethod("clean").invoke(clean);
+                }
+            } catch (Exception e) {
+                log.log(Level.FINE, "could not unmap, leaving it to the garbage collector", e);
+            }
+        }
+    }
+
+    private void delete(File file) {
+        if (!file.delete()) {
+            log.warning("could not delete " + file);
+        }
+    }
+}
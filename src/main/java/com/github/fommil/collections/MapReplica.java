@@ -0,0 +1,218 @@
+// Copyright (c) 2013 Samuel Halliday
+package com.github.fommil.collections;
+
+import com.github.fommil.collections.MapJournal.Serializer;
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.java.Log;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+
+import static com.github.fommil.collections.MapReplicationServer.*;
+
+/**
+ * A read only copy of an {@link ObservableMap} that is replicated by a
+ * {@link MapReplicationServer}, possibly in another process.
+ * <p>
+ * A background thread applies the replicated changes to {@link #getMap()}, so
+ * its listeners are told about each change (on that thread). The map is backed
+ * by a {@link ConcurrentHashMap}, so may be read by any thread but does not
+ * support {@code null} keys or values, and must not be changed by the user.
+ * <p>
+ * If the connection fails, or a change is missing, the replica reconnects and
+ * catches up from a snapshot: changing only the entries that differ.
+ *
+ * @param <K>
+ * @param <V>
+ * @author Samuel Halliday
+ */
+@Log
+@ThreadSafe
+public class MapReplica<K, V> implements Closeable {
+
+    private final InetSocketAddress address;
+
+    private final Serializer<K> keys;
+
+    private final Serializer<V> values;
+
+    private final long retryMillis;
+
+    private final ObservableMap<K, V> map = ObservableMap.newObservableMap(new ConcurrentHashMap<K, V>());
+
+    private final Thread reader;
+
+    private volatile boolean running = true;
+
+    private volatile SocketChannel channel;
+
+    private volatile long sequence = -1;
+
+    /**
+     * Connects in the background.
+     *
+     * @param address     of the {@link MapReplicationServer}.
+     * @param keys
+     * @param values
+     * @param retryMillis to wait before reconnecting.
+     */
+    public MapReplica(InetSocketAddress address, Serializer<K> keys, Serializer<V> values, long retryMillis) {
+        this.address = Preconditions.checkNotNull(address);
+        this.keys = Preconditions.checkNotNull(keys);
+        this.values = Preconditions.checkNotNull(values);
+        Preconditions.checkArgument(retryMillis > 0);
+        this.retryMillis = retryMillis;
+        reader = new ThreadFactoryBuilder().setDaemon(true).setNameFormat("MapReplica-%d").build()
+                .newThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        replicate();
+                    }
+                });
+        reader.start();
+    }
+
+    /**
+     * @return the replicated map, which must not be changed.
+     */
+    public ObservableMap<K, V> getMap() {
+        return map;
+    }
+
+    /**
+     * @return the sequence number of the latest change that was applied, or
+     *         {@code -1} before the first snapshot.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Stops replicating, the map retains its contents.
+     */
+    @Override
+    public void close() {
+        running = false;
+        reader.interrupt();
+        SocketChannel current = channel;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                log.log(Level.FINE, "failed to close", e);
+            }
+        }
+        try {
+            reader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void replicate() {
+        while (running) {
+            try {
+                channel = SocketChannel.open(address);
+                try {
+                    DataInputStream in = new DataInputStream(
+                            new BufferedInputStream(Channels.newInputStream(channel), 64 * 1024));
+                    while (running) {
+                        read(in);
+                    }
+                } finally {
+                    channel.close();
+                }
+            } catch (IOException e) {
+                if (!running) {
+                    return;
+                }
+                log.log(Level.FINE, "reconnecting to " + address, e);
+            }
+            try {
+                Thread.sleep(retryMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void read(DataInputStream in) throws IOException {
+        in.readInt(); // length, the stream is parsed directly
+        byte type = in.readByte();
+        long seq = in.readLong();
+        if (type == SNAPSHOT) {
+            readSnapshot(in);
+        } else if (seq != sequence + 1 || sequence < 0) {
+            throw new IOException("expected change " + (sequence + 1) + " but got " + seq);
+        } else if (type == CLEAR) {
+            map.clear();
+        } else if (type == UPDATE) {
+            readUpdate(in);
+        } else {
+            throw new IOException("unknown frame " + type);
+        }
+        sequence = seq;
+    }
+
+    private void readSnapshot(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        Map<K, V> snapshot = Maps.newHashMapWithExpectedSize(size);
+        for (int i = 0; i < size; i++) {
+            snapshot.put(keys.read(in), values.read(in));
+        }
+        for (K key : Lists.newArrayList(map.delegate.keySet())) {
+            if (!snapshot.containsKey(key)) {
+                map.remove(key);
+            }
+        }
+        Map<K, V> changed = Maps.newHashMap();
+        for (Map.Entry<K, V> entry : snapshot.entrySet()) {
+            if (!Objects.equal(map.get(entry.getKey()), entry.getValue())) {
+                changed.put(entry.getKey(), entry.getValue());
+            }
+        }
+        if (!changed.isEmpty()) {
+            map.putAll(changed);
+        }
+    }
+
+    private void readUpdate(DataInputStream in) throws IOException {
+        int removals = in.readInt();
+        Set<K> removed = Sets.newHashSetWithExpectedSize(removals);
+        for (int i = 0; i < removals; i++) {
+            removed.add(keys.read(in));
+        }
+        int additions = in.readInt();
+        Map<K, V> added = Maps.newLinkedHashMap();
+        for (int i = 0; i < additions; i++) {
+            added.put(keys.read(in), values.read(in));
+        }
+        // replaced entries are reported as removed and added
+        for (K key : removed) {
+            if (!added.containsKey(key)) {
+                map.remove(key);
+            }
+        }
+        if (added.size() == 1) {
+            Map.Entry<K, V> entry = added.entrySet().iterator().next();
+            map.put(entry.getKey(), entry.getValue());
+        } else if (!added.isEmpty()) {
+            map.putAll(added);
+        }
+    }
+}
@@ -0,0 +1,368 @@
+// Copyright (c) 2013 Samuel Halliday
+package com.github.fommil.collections;
+
+import com.github.fommil.collections.MapJournal.Serializer;
+import com.github.fommil.collections.ObservableMap.Change;
+import com.github.fommil.collections.ObservableMap.MapListener;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.java.Log;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+
+/**
+ * Replicates an {@link ObservableMap} to {@link MapReplica}s in other processes,
+ * by streaming every {@link Change} over a TCP socket (usually on the loopback
+ * interface) instead of periodically sending the whole map.
+ * <p>
+ * Each {@link Change} is encoded once as a compact binary frame with a sequence
+ * number, and queued for every connected replica. A single background thread
+ * writes the queued frames to each replica in batches, so the mutating thread
+ * never waits on the network.
+ * <p>
+ * New replicas start from a snapshot of the map. A replica that falls more than
+ * the maximum backlog of changes behind (not counting its snapshot) is
+ * disconnected, and catches up from a snapshot when it reconnects. To take
+ * snapshots without touching the (non thread safe) map, a copy of the map is
+ * maintained from the changes, doubling the memory footprint. The mutating
+ * thread waits while a snapshot is encoded.
+ * <p>
+ * The {@link MapJournal.Serializer}s are shared with {@link MapJournal} and must
+ * match those of the replicas.
+ *
+ * @param <K>
+ * @param <V>
+ * @author Samuel Halliday
+ * @see MapReplica
+ */
+@Log
+@ThreadSafe
+public class MapReplicationServer<K, V> implements MapListener<K, V>, Closeable {
+
+    static final byte SNAPSHOT = 0, UPDATE = 1, CLEAR = 2;
+
+    // a connected replica
+    private static final class Session {
+        private final SocketChannel channel;
+
+        private final Deque<ByteBuffer> queue = new ArrayDeque<ByteBuffer>();
+
+        // not counted in the backlog, which would otherwise disconnect every
+        // replica of a map that is larger than the maximum backlog
+        private ByteBuffer snapshot;
+
+        // bytes of changes that are queued
+        private long backlog;
+
+        private boolean lagging;
+
+        private Session(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    private final ObservableMap<K, V> map;
+
+    private final Serializer<K> keys;
+
+    private final Serializer<V> values;
+
+    private final long maxBacklog;
+
+    private final ServerSocketChannel server;
+
+    private final Selector selector;
+
+    private final AtomicBoolean wakeup = new AtomicBoolean();
+
+    private final Thread writer;
+
+    private volatile boolean running = true;
+
+    @GuardedBy("this")
+    private final Map<K, V> copy;
+
+    @GuardedBy("this")
+    private final List<Session> sessions = Lists.newArrayList();
+
+    @GuardedBy("this")
+    private long sequence;
+
+    /**
+     * Starts replicating, changes to the map should only be made after construction.
+     *
+     * @param map
+     * @param keys
+     * @param values
+     * @param address    to listen on, e.g. port {@code 0} of the loopback interface.
+     * @param maxBacklog bytes that may be queued for a replica before it is disconnected.
+     * @throws IOException
+     */
+    public MapReplicationServer(ObservableMap<K, V> map, Serializer<K> keys, Serializer<V> values,
+                                InetSocketAddress address, long maxBacklog) throws IOException {
+        this.map = Preconditions.checkNotNull(map);
+        this.keys = Preconditions.checkNotNull(keys);
+        this.values = Preconditions.checkNotNull(values);
+        Preconditions.checkNotNull(address);
+        Preconditions.checkArgument(maxBacklog > 0);
+        this.maxBacklog = maxBacklog;
+        copy = Maps.newHashMap(map);
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.configureBlocking(false);
+        server.bind(address);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        writer = new ThreadFactoryBuilder().setDaemon(true).setNameFormat("MapReplicationServer-%d").build()
+                .newThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve();
+                    }
+                });
+        writer.start();
+        map.addMapListener(this);
+    }
+
+    /**
+     * @return the address that replicas should connect to.
+     * @throws IOException
+     */
+    public InetSocketAddress getAddress() throws IOException {
+        return (InetSocketAddress) server.getLocalAddress();
+    }
+
+    /**
+     * @return the sequence number of the latest change.
+     */
+    public synchronized long getSequence() {
+        return sequence;
+    }
+
+    @Override
+    public void onMapChanged(Change<K, V> change) {
+        synchronized (this) {
+            for (Entry<K, V> entry : change.getEntriesRemoved()) {
+                copy.remove(entry.getKey());
+            }
+            for (Entry<K, V> entry : change.getEntriesAdded()) {
+                copy.put(entry.getKey(), entry.getValue());
+            }
+            sequence++;
+            if (sessions.isEmpty()) {
+                return;
+            }
+            ByteBuffer frame = encode(change);
+            for (Session session : sessions) {
+                if (session.lagging) {
+                    continue;
+                }
+                if (session.backlog + frame.limit() > maxBacklog) {
+                    session.lagging = true;
+                    continue;
+                }
+                session.queue.add(frame.duplicate());
+                session.backlog += frame.limit();
+            }
+        }
+        if (wakeup.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Stops replicating and disconnects all replicas.
+     */
+    @Override
+    public void close() {
+        map.removeMapListener(this);
+        running = false;
+        selector.wakeup();
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void serve() {
+        ByteBuffer discard = ByteBuffer.allocate(1024);
+        try {
+            while (running) {
+                selector.select();
+                wakeup.set(false);
+                synchronized (this) {
+                    for (Session session : Lists.newArrayList(sessions)) {
+                        if (session.lagging) {
+                            log.info("disconnecting lagging replica " + session.channel);
+                            disconnect(session);
+                        } else if (!session.queue.isEmpty() && session.channel.isOpen()) {
+                            session.channel.keyFor(selector).interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        }
+                    }
+                }
+                for (SelectionKey key : selector.selectedKeys()) {
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                            continue;
+                        }
+                        Session session = (Session) key.attachment();
+                        if (key.isReadable()) {
+                            discard.clear();
+                            if (session.channel.read(discard) < 0) {
+                                disconnect(session);
+                                continue;
+                            }
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            write(session);
+                        }
+                    } catch (IOException e) {
+                        log.log(Level.FINE, "replica failed", e);
+                        if (key.attachment() != null) {
+                            disconnect((Session) key.attachment());
+                        }
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException e) {
+            log.log(Level.WARNING, "replication failed", e);
+        } finally {
+            synchronized (this) {
+                for (Session session : Lists.newArrayList(sessions)) {
+                    disconnect(session);
+                }
+            }
+            try {
+                server.close();
+                selector.close();
+            } catch (IOException e) {
+                log.log(Level.FINE, "failed to close", e);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        Session session = new Session(channel);
+        synchronized (this) {
+            session.snapshot = snapshot();
+            session.queue.add(session.snapshot);
+            sessions.add(session);
+        }
+        channel.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE, session);
+    }
+
+    // gathers all the queued frames into as few writes as possible
+    private void write(Session session) throws IOException {
+        ByteBuffer[] frames;
+        synchronized (this) {
+            frames = session.queue.toArray(new ByteBuffer[session.queue.size()]);
+        }
+        session.channel.write(frames);
+        synchronized (this) {
+            while (!session.queue.isEmpty() && !session.queue.peek().hasRemaining()) {
+                ByteBuffer written = session.queue.poll();
+                if (written == session.snapshot) {
+                    session.snapshot = null;
+                } else {
+                    session.backlog -= written.limit();
+                }
+            }
+            if (session.queue.isEmpty()) {
+                session.channel.keyFor(selector).interestOps(SelectionKey.OP_READ);
+            }
+        }
+    }
+
+    private synchronized void disconnect(Session session) {
+        sessions.remove(session);
+        try {
+            session.channel.close();
+        } catch (IOException e) {
+            log.log(Level.FINE, "failed to close", e);
+        }
+    }
+
+    @GuardedBy("this")
+    private ByteBuffer snapshot() {
+        try {
+            Frame frame = new Frame(SNAPSHOT, sequence);
+            frame.data.writeInt(copy.size());
+            for (Entry<K, V> entry : copy.entrySet()) {
+                keys.write(frame.data, entry.getKey());
+                values.write(frame.data, entry.getValue());
+            }
+            return frame.toBuffer();
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    @GuardedBy("this")
+    private ByteBuffer encode(Change<K, V> change) {
+        try {
+            if (change.wasRemoved() && !change.wasAdded() && copy.isEmpty()) {
+                return new Frame(CLEAR, sequence).toBuffer();
+            }
+            Frame frame = new Frame(UPDATE, sequence);
+            frame.data.writeInt(change.getEntriesRemoved().size());
+            for (Entry<K, V> entry : change.getEntriesRemoved()) {
+                keys.write(frame.data, entry.getKey());
+            }
+            frame.data.writeInt(change.getEntriesAdded().size());
+            for (Entry<K, V> entry : change.getEntriesAdded()) {
+                keys.write(frame.data, entry.getKey());
+                values.write(frame.data, entry.getValue());
+            }
+            return frame.toBuffer();
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    // [length][type][sequence][payload], where the length excludes itself
+    private static final class Frame {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        private final DataOutputStream data = new DataOutputStream(bytes);
+
+        private Frame(byte type, long sequence) throws IOException {
+            data.writeInt(0);
+            data.writeByte(type);
+            data.writeLong(sequence);
+        }
+
+        private ByteBuffer toBuffer() {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            buffer.putInt(0, buffer.limit() - 4);
+            return buffer;
+        }
+    }
+}
@@ -0,0 +1,244 @@
+// Copyright (c) 2013 Samuel Halliday
+package com.github.fommil.collections;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.*;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Striped;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.AbstractMap.SimpleEntry;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * An {@link ObservableMap} which is a bounded, concurrent cache.
+ * <p>
+ * The bounds (by size or weight), expiry (after write or access) and the
+ * number of independently locked segments are configured with a Guava
+ * {@link CacheBuilder}, which evicts the least recently used entries of a segment.
+ * <p>
+ * Evicted and expired entries are reported to {@link MapListener}s as removals,
+ * with {@link ObservableMap.Change#getCause()} stating why. Expired entries are
+ * only removed during other operations on the cache, or by {@link #cleanUp()}.
+ * <p>
+ * Unlike {@link ObservableMap}, this may be used by many threads. Listeners are
+ * called on the thread that made (or triggered) the change, so must be thread
+ * safe. As in {@link ConcurrentObservableSet}, a stripe is locked for each changed
+ * key during the change and its notification, so the changes to a key made through
+ * this API (including loads) are fired in order. Evictions and expiries are fired
+ * by the cache without the lock, so may be received out of order.
+ * <p>
+ * Bulk operations are not atomic, but report exactly the entries they changed:
+ * {@link #clear()} will not remove entries that are loaded or evicted concurrently.
+ * The {@link #keySet()}, {@link #values()} and {@link #entrySet()} views are read only.
+ *
+ * @param <K>
+ * @param <V>
+ * @author Samuel Halliday
+ */
+@ThreadSafe
+public class ObservableCache<K, V> extends ObservableMap<K, V> {
+
+    /**
+     * @param <K>
+     * @param <V>
+     * @param builder which must not have a removal listener, as one will be added.
+     * @return
+     */
+    public static <K, V> ObservableCache<K, V> newObservableCache(CacheBuilder<? super K, ? super V> builder) {
+        Preconditions.checkNotNull(builder);
+        Evictions<K, V> evictions = new Evictions<K, V>();
+        Cache<K, V> cache = builder.<K, V>removalListener(evictions).build();
+        ObservableCache<K, V> observable = new ObservableCache<K, V>(cache);
+        evictions.observable = observable;
+        return observable;
+    }
+
+    // forwards evictions, which are the removals not caused by the ObservableMap API
+    private static final class Evictions<K, V> implements RemovalListener<K, V> {
+        private volatile ObservableCache<K, V> observable;
+
+        @Override
+        public void onRemoval(RemovalNotification<K, V> notification) {
+            if (notification.wasEvicted() && observable != null) {
+                Entry<K, V> entry = new SimpleEntry<K, V>(notification.getKey(), notification.getValue());
+                observable.fireOnMapChanged(new Change<K, V>(observable, Collections.<Entry<K, V>>emptySet(),
+                        Collections.singleton(entry), false, true, notification.getCause()));
+            }
+        }
+    }
+
+    private final Cache<K, V> cache;
+
+    private final Striped<Lock> locks = Striped.lock(4 * Runtime.getRuntime().availableProcessors());
+
+    protected ObservableCache(Cache<K, V> cache) {
+        super(cache.asMap());
+        this.cache = cache;
+    }
+
+    @Override
+    public V put(K key, V value) {
+        Lock lock = locks.get(key);
+        lock.lock();
+        try {
+            return super.put(key, value);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V remove(Object key) {
+        Lock lock = locks.get(key);
+        lock.lock();
+        try {
+            V value = delegate.remove(key);
+            if (value != null) {
+                Entry<K, V> entry = new SimpleEntry<K, V>((K) key, value);
+                fireOnMapChanged(new Change<K, V>(this, Collections.<Entry<K, V>>emptySet(),
+                        Collections.singleton(entry), false, true));
+            }
+            return value;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void putAll(Map<? extends K, ? extends V> m) {
+        Iterable<Lock> stripes = locks.bulkGet(m.keySet());
+        for (Lock lock : stripes) {
+            lock.lock();
+        }
+        try {
+            List<Entry<K, V>> added = Lists.newArrayListWithCapacity(m.size());
+            List<Entry<K, V>> removed = Lists.newArrayList();
+            for (Entry<? extends K, ? extends V> entry : m.entrySet()) {
+                V old = delegate.put(entry.getKey(), entry.getValue());
+                added.add(new SimpleEntry<K, V>(entry.getKey(), entry.getValue()));
+                if (old != null) {
+                    removed.add(new SimpleEntry<K, V>(entry.getKey(), old));
+                }
+            }
+            if (!added.isEmpty()) {
+                fireOnMapChanged(new Change<K, V>(this, added, removed, true, !removed.isEmpty()));
+            }
+        } finally {
+            for (Lock lock : stripes) {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * As {@link #putAll(Map)}, which must lock the stripes of all the keys.
+     */
+    @Override
+    public void parallelPutAll(Map<? extends K, ? extends V> m, ForkJoinPool pool) {
+        putAll(m);
+    }
+
+    @Override
+    public void clear() {
+        List<Entry<K, V>> removed = Lists.newArrayList();
+        for (int i = 0; i < locks.size(); i++) {
+            locks.getAt(i).lock();
+        }
+        try {
+            for (K key : Lists.newArrayList(delegate.keySet())) {
+                V value = delegate.remove(key);
+                if (value != null) {
+                    removed.add(new SimpleEntry<K, V>(key, value));
+                }
+            }
+            if (!removed.isEmpty()) {
+                fireOnMapChanged(new Change<K, V>(this, Collections.<Entry<K, V>>emptySet(), removed, false, true));
+            }
+        } finally {
+            for (int i = locks.size() - 1; i >= 0; i--) {
+                locks.getAt(i).unlock();
+            }
+        }
+    }
+
+    @Override
+    public Set<K> keySet() {
+        return Collections.unmodifiableSet(delegate.keySet());
+    }
+
+    @Override
+    public Collection<V> values() {
+        return Collections.unmodifiableCollection(delegate.values());
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        return Collections.unmodifiableSet(delegate.entrySet());
+    }
+
+    /**
+     * Returns the cached value, or atomically loads and caches it. Concurrent
+     * calls for the same key will wait for the same load, and loads of keys
+     * that share a stripe are serialised.
+     *
+     * @param key
+     * @param loader
+     * @return
+     * @throws ExecutionException if the loader failed.
+     */
+    public V get(K key, final Callable<? extends V> loader) throws ExecutionException {
+        Preconditions.checkNotNull(loader);
+        final boolean[] loaded = new boolean[1];
+        // the addition is fired before a concurrent change to the key can be made
+        Lock lock = locks.get(key);
+        lock.lock();
+        try {
+            V value;
+            try {
+                value = cache.get(key, new Callable<V>() {
+                    @Override
+                    public V call() throws Exception {
+                        V value = loader.call();
+                        loaded[0] = true;
+                        return value;
+                    }
+                });
+            } catch (UncheckedExecutionException e) {
+                throw new ExecutionException(e.getCause());
+            }
+            if (loaded[0]) {
+                Entry<K, V> entry = new SimpleEntry<K, V>(key, value);
+                fireOnMapChanged(new Change<K, V>(this, Collections.singleton(entry), Collections.<Entry<K, V>>emptySet(), true, false));
+            }
+            return value;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Performs any pending maintenance, such as removing expired entries.
+     */
+    public void cleanUp() {
+        cache.cleanUp();
+    }
+
+    /**
+     * @return statistics, which are only recorded if requested by the {@link CacheBuilder}.
+     */
+    public CacheStats stats() {
+        return cache.stats();
+    }
+}
@@ -1,11 +1,15 @@
 // Copyright (c) 2013 Samuel Halliday
 package com.github.fommil.collections;
 
+import com.github.fommil.collections.ListenerRegistry.Registration;
+import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import lombok.*;
 import lombok.experimental.Accessors;
 
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.NotThreadSafe;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeSupport;
@@ -13,6 +17,8 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Wrapper that allows changes to a {@link Collection} to be observed. This is
@@ -45,6 +51,11 @@ import java.util.List;
  * <p>
  * Equality and hash codes ignore the registered listeners, calculating purely
  * based on content, as users have come to expect of the Collections API.
+ * <p>
+ * If the delegate is {@link Snapshottable} (e.g. {@link SnapshotHashSet}) then
+ * iteration is over a snapshot, which avoids {@link java.util.ConcurrentModificationException}
+ * when listeners make changes, and each {@link Change} carries immutable
+ * snapshots of the contents from before and after the change.
  * 
  * @param <T> 
  * @author Samuel Halliday
@@ -68,19 +79,38 @@ public class ObservableCollection<T> implements Collection<T> {
         return new ObservableCollection<T>(collection);
     }
 
-    @RequiredArgsConstructor
     @Getter
     public static final class Change<T> {
 
-        @NonNull
         protected final ObservableCollection<T> collection;
 
-        @NonNull
         protected final Collection<T> elementsAdded, elementsRemoved;
 
         @Accessors(fluent = true)
         protected final boolean wasAdded, wasRemoved;
 
+        /**
+         * Immutable contents of the collection before and after the change,
+         * or {@code null} unless the delegate is {@link Snapshottable}.
+         */
+        @Nullable
+        protected final Collection<T> before, after;
+
+        public Change(ObservableCollection<T> collection, Collection<T> elementsAdded, Collection<T> elementsRemoved,
+                      boolean wasAdded, boolean wasRemoved) {
+            this(collection, elementsAdded, elementsRemoved, wasAdded, wasRemoved, null, null);
+        }
+
+        public Change(ObservableCollection<T> collection, Collection<T> elementsAdded, Collection<T> elementsRemoved,
+                      boolean wasAdded, boolean wasRemoved, @Nullable Collection<T> before, @Nullable Collection<T> after) {
+            this.collection = Preconditions.checkNotNull(collection);
+            this.elementsAdded = Preconditions.checkNotNull(elementsAdded);
+            this.elementsRemoved = Preconditions.checkNotNull(elementsRemoved);
+            this.wasAdded = wasAdded;
+            this.wasRemoved = wasRemoved;
+            this.before = before;
+            this.after = after;
+        }
     }
 
     /**
@@ -149,20 +179,40 @@ public class ObservableCollection<T> implements Collection<T> {
     @Delegate(excludes = Mutators.class)
     protected final Collection<T> delegate;
 
-    private Change<T> createAdditionChange(T added) {
-        return createAdditionChange(Collections.singleton(added));
+    private Change<T> createAdditionChange(Collection<T> before, T added) {
+        return createAdditionChange(before, Collections.singleton(added));
+    }
+
+    private Change<T> createAdditionChange(Collection<T> before, Collection<T> added) {
+        return new Change<T>(this, added, Collections.<T>emptySet(), true, false, before, snapshotOrNull());
     }
 
-    private Change<T> createAdditionChange(Collection<T> added) {
-        return new Change<T>(this, added, Collections.<T>emptySet(), true, false);
+    private Change<T> createRemovalChange(Collection<T> before, T removed) {
+        return createRemovalChange(before, Collections.singleton(removed));
     }
 
-    private Change<T> createRemovalChange(T removed) {
-        return createRemovalChange(Collections.singleton(removed));
+    private Change<T> createRemovalChange(Collection<T> before, Collection<T> removed) {
+        return new Change<T>(this, Collections.<T>emptySet(), removed, false, true, before, snapshotOrNull());
     }
 
-    private Change<T> createRemovalChange(Collection<T> removed) {
-        return new Change<T>(this, Collections.<T>emptySet(), removed, false, true);
+    @Nullable
+    private Collection<T> snapshotOrNull() {
+        if (delegate instanceof Snapshottable) {
+            return ((Snapshottable<T>) delegate).snapshot();
+        }
+        return null;
+    }
+
+    /**
+     * @return an immutable copy of the current contents, which is {@code O(1)}
+     * if the delegate is {@link Snapshottable}.
+     */
+    public Collection<T> snapshot() {
+        Collection<T> snapshot = snapshotOrNull();
+        if (snapshot != null) {
+            return snapshot;
+        }
+        return Collections.unmodifiableList(Lists.newArrayList(delegate));
     }
 
     // HERE DOWN IS THE IMPLEMENTATION
@@ -185,16 +235,18 @@ public class ObservableCollection<T> implements Collection<T> {
 
             @Override
             public void remove() {
+                Collection<T> before = snapshotOrNull();
                 iterator.remove();
-                fireOnCollectionChanged(createRemovalChange(current));
+                fireOnCollectionChanged(createRemovalChange(before, current));
             }
         };
     }
 
     @Override
     public boolean add(T e) {
+        Collection<T> before = snapshotOrNull();
         if (delegate.add(e)) {
-            fireOnCollectionChanged(createAdditionChange(e));
+            fireOnCollectionChanged(createAdditionChange(before, e));
             return true;
         }
         return false;
@@ -203,8 +255,9 @@ public class ObservableCollection<T> implements Collection<T> {
     @Override
     @SuppressWarnings("unchecked")
     public boolean remove(Object o) {
+        Collection<T> before = snapshotOrNull();
         if (delegate.remove(o)) {
-            fireOnCollectionChanged(createRemovalChange((T) o));
+            fireOnCollectionChanged(createRemovalChange(before, (T) o));
             return true;
         }
         return false;
@@ -213,8 +266,9 @@ public class ObservableCollection<T> implements Collection<T> {
     @Override
     @SuppressWarnings("unchecked")
     public boolean addAll(Collection<? extends T> c) {
+        Collection<T> before = snapshotOrNull();
         if (delegate.addAll(c)) {
-            fireOnCollectionChanged(createAdditionChange((Collection<T>) c));
+            fireOnCollectionChanged(createAdditionChange(before, (Collection<T>) c));
             return true;
         }
         return false;
@@ -223,8 +277,9 @@ public class ObservableCollection<T> implements Collection<T> {
     @Override
     @SuppressWarnings("unchecked")
     public boolean removeAll(Collection<?> c) {
+        Collection<T> before = snapshotOrNull();
         if (delegate.removeAll(c)) {
-            fireOnCollectionChanged(createRemovalChange((Collection<T>) c));
+            fireOnCollectionChanged(createRemovalChange(before, (Collection<T>) c));
             return true;
         }
         return false;
@@ -232,26 +287,93 @@ public class ObservableCollection<T> implements Collection<T> {
 
     @Override
     public boolean retainAll(Collection<?> c) {
-        List<T> before = Lists.newArrayList(delegate);
-        if (delegate.retainAll(c)) {
+        Collection<?> lookup = lookup(c);
+        Collection<T> before = snapshotOrNull();
+        boolean snapshots = before != null;
+        if (!snapshots) {
+            before = Lists.newArrayList(delegate);
+        }
+        if (delegate.retainAll(lookup)) {
             List<T> lost = Lists.newArrayList();
             for (T old : before) {
-                if (!c.contains(old)) {
+                if (!lookup.contains(old)) {
                     lost.add(old);
                 }
             }
-            fireOnCollectionChanged(createRemovalChange(lost));
+            fireOnCollectionChanged(createRemovalChange(snapshots ? before : null, lost));
             return true;
         }
         return false;
     }
 
+    /**
+     * Parallel {@link #retainAll(Collection)}, for large collections: the elements
+     * to remove are found by fork/join over partitions of this collection, then
+     * removed with a single {@link Change} containing exactly the removed elements.
+     * <p>
+     * The collection must not be changed by other threads during the call, and
+     * {@code null} elements are not supported.
+     *
+     * @param c
+     * @param pool
+     * @return
+     */
+    public boolean parallelRetainAll(Collection<?> c, ForkJoinPool pool) {
+        return removeFound(parallelFind(c, false, pool));
+    }
+
+    /**
+     * Parallel {@link #removeAll(Collection)}, for large collections.
+     *
+     * @param c
+     * @param pool
+     * @return
+     * @see #parallelRetainAll(Collection, ForkJoinPool)
+     */
+    public boolean parallelRemoveAll(Collection<?> c, ForkJoinPool pool) {
+        return removeFound(parallelFind(c, true, pool));
+    }
+
+    // Collection.contains is a linear scan for lists
+    static Collection<?> lookup(Collection<?> c) {
+        return c instanceof Set ? c : Sets.newHashSet(c);
+    }
+
+    /**
+     * @return the elements (in parallel) which are, or are not, in the collection.
+     */
+    List<T> parallelFind(Collection<?> c, final boolean contained, ForkJoinPool pool) {
+        final Collection<?> lookup = lookup(c);
+        return Parallel.collect(pool, Lists.newArrayList(delegate), new Function<T, T>() {
+            @Override
+            public T apply(T element) {
+                return lookup.contains(element) == contained ? element : null;
+            }
+        });
+    }
+
+    private boolean removeFound(List<T> found) {
+        if (found.isEmpty()) {
+            return false;
+        }
+        Collection<T> before = snapshotOrNull();
+        for (T element : found) {
+            delegate.remove(element);
+        }
+        fireOnCollectionChanged(createRemovalChange(before, found));
+        return true;
+    }
+
     @Override
     public void clear() {
-        List<T> before = Lists.newArrayList(delegate);
+        Collection<T> before = snapshotOrNull();
+        boolean snapshots = before != null;
+        if (!snapshots) {
+            before = Lists.newArrayList(delegate);
+        }
         delegate.clear();
         if (!before.isEmpty()) {
-            fireOnCollectionChanged(createRemovalChange(before));
+            fireOnCollectionChanged(createRemovalChange(snapshots ? before : null, before));
         }
     }
 
@@ -260,18 +382,95 @@ public class ObservableCollection<T> implements Collection<T> {
         return delegate.toString();
     }
 
-    private final transient Collection<CollectionListener<T>> listeners = Lists.newCopyOnWriteArrayList();
+    private final transient ListenerRegistry<CollectionListener<T>> listeners = new ListenerRegistry<CollectionListener<T>>();
 
     public void addCollectionListener(CollectionListener<T> listener) {
-        listeners.add(listener);
+        listen(listener);
+    }
+
+    /**
+     * Registers a listener that will be removed once it has been garbage collected.
+     *
+     * @param listener
+     * @see ListenerRegistry#registerWeakly(Object)
+     */
+    public void addWeakCollectionListener(CollectionListener<T> listener) {
+        listenWeakly(listener);
+    }
+
+    /**
+     * As {@link #addCollectionListener}, but returning the registration.
+     *
+     * @param listener
+     * @return the registration, which may be closed to remove the listener in {@code O(1)}.
+     */
+    public Registration listen(CollectionListener<T> listener) {
+        return listeners.register(listener);
+    }
+
+    /**
+     * As {@link #addWeakCollectionListener}, but returning the registration.
+     *
+     * @param listener
+     * @return the registration, which may be closed to remove the listener in {@code O(1)}.
+     * @see ListenerRegistry#registerWeakly(Object)
+     */
+    public Registration listenWeakly(CollectionListener<T> listener) {
+        return listeners.registerWeakly(listener);
     }
 
     public void removeCollectionListener(CollectionListener<T> listener) {
-        listeners.remove(listener);
+        listeners.unregister(listener);
     }
 
-    private void fireOnCollectionChanged(Change<T> change) {
-        for (CollectionListener<T> listener : listeners)
+    @Nullable
+    private transient volatile ObservableStats stats;
+
+    /**
+     * Starts collecting statistics about the changes and the time taken by each
+     * listener, which are also registered as a JMX MBean.
+     *
+     * @param name of the MBean, which must be unique.
+     * @return
+     */
+    public synchronized ObservableStats instrument(String name) {
+        Preconditions.checkState(stats == null, "already instrumented");
+        ObservableStats instrumented = new ObservableStats(name);
+        instrumented.register();
+        stats = instrumented;
+        return instrumented;
+    }
+
+    /**
+     * Stops collecting statistics and unregisters the MBean.
+     */
+    public synchronized void uninstrument() {
+        if (stats != null) {
+            stats.unregister();
+            stats = null;
+        }
+    }
+
+    /**
+     * @return the statistics, or {@code null} unless {@link #instrument(String) instrumented}.
+     */
+    @Nullable
+    public ObservableStats getStats() {
+        return stats;
+    }
+
+    void fireOnCollectionChanged(Change<T> change) {
+        ObservableStats stats = this.stats;
+        if (stats == null) {
+            for (CollectionListener<T> listener : listeners)
+                listener.onCollectionChanged(change);
+            return;
+        }
+        stats.mutated();
+        for (CollectionListener<T> listener : listeners) {
+            long start = System.nanoTime();
             listener.onCollectionChanged(change);
+            stats.dispatched(listener, System.nanoTime() - start);
+        }
     }
 }
@@ -0,0 +1,399 @@
+// Copyright (c) 2013 Samuel Halliday
+package com.github.fommil.collections;
+
+import com.github.fommil.collections.ListenerRegistry.Registration;
+import com.google.common.base.Preconditions;
+import com.google.common.primitives.Doubles;
+import com.google.common.primitives.Longs;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.Accessors;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.util.Arrays;
+
+/**
+ * Compliments {@link ObservableMap} for {@code long} keys and {@code double} values,
+ * without boxing. Entries are stored in parallel open addressing (linear probing)
+ * arrays, costing roughly 16 to 32 bytes per entry compared to the 80 or more bytes
+ * of a {@code HashMap<Long, Double>}.
+ * <p>
+ * {@link Double#NaN} is returned by methods that would return {@code null} in the
+ * {@link java.util.Map} API, use {@link #containsKey(long)} if {@code NaN} is a
+ * legitimate value.
+ * <p>
+ * As with {@link ObservableMap}, replacing a value is reported as the removal of
+ * the old entry and the addition of the new entry. {@link Change}s contain parallel
+ * arrays of keys and values, which listeners must not modify.
+ *
+ * @author Samuel Halliday
+ * @see ObservableLongSet
+ */
+@NotThreadSafe
+public class ObservableLongDoubleMap {
+
+    @RequiredArgsConstructor
+    @Getter
+    public static final class Change {
+
+        @NonNull
+        private final ObservableLongDoubleMap map;
+
+        @NonNull
+        private final long[] keysAdded, keysRemoved;
+
+        @NonNull
+        private final double[] valuesAdded, valuesRemoved;
+
+        @Accessors(fluent = true)
+        private final boolean wasAdded, wasRemoved;
+
+    }
+
+    /**
+     * Listen to changes in {@link ObservableLongDoubleMap}s.
+     */
+    public interface LongDoubleMapListener {
+
+        /**
+         * Called after a change has been made to an {@link ObservableLongDoubleMap}.
+         *
+         * @param change
+         */
+        public void onLongDoubleMapChanged(Change change);
+    }
+
+    /**
+     * Receives the entries of {@link ObservableLongDoubleMap#forEach(LongDoubleProcedure)}.
+     */
+    public interface LongDoubleProcedure {
+        public void apply(long key, double value);
+    }
+
+    private static final long[] NO_KEYS = new long[0];
+
+    private static final double[] NO_VALUES = new double[0];
+
+    // zero marks a free slot, so is tracked separately
+    private long[] keys;
+
+    private double[] values;
+
+    private boolean hasZero;
+
+    private double zeroValue;
+
+    private int assigned, resizeAt;
+
+    public ObservableLongDoubleMap() {
+        this(16);
+    }
+
+    /**
+     * @param expected number of entries that will be held without resizing.
+     */
+    public ObservableLongDoubleMap(int expected) {
+        Preconditions.checkArgument(expected >= 0);
+        allocate(LongHashing.capacityFor(expected));
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new double[capacity];
+        resizeAt = LongHashing.resizeAt(capacity);
+    }
+
+    public int size() {
+        return assigned + (hasZero ? 1 : 0);
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public boolean containsKey(long key) {
+        if (key == 0) {
+            return hasZero;
+        }
+        return keys[slot(key)] == key;
+    }
+
+    /**
+     * @param key
+     * @return the value, or {@link Double#NaN} if there is no entry.
+     */
+    public double get(long key) {
+        if (key == 0) {
+            return hasZero ? zeroValue : Double.NaN;
+        }
+        int i = slot(key);
+        return keys[i] == key ? values[i] : Double.NaN;
+    }
+
+    /**
+     * @param key
+     * @param value
+     * @return the previous value, or {@link Double#NaN} if there was no entry.
+     */
+    public double put(long key, double value) {
+        boolean existed = containsKey(key);
+        double old = insert(key, value);
+        if (existed) {
+            fireOnLongDoubleMapChanged(new Change(this, new long[]{key}, new long[]{key}, new double[]{value}, new double[]{old}, true, true));
+        } else {
+            fireOnLongDoubleMapChanged(new Change(this, new long[]{key}, NO_KEYS, new double[]{value}, NO_VALUES, true, false));
+        }
+        return old;
+    }
+
+    /**
+     * @param key
+     * @return the removed value, or {@link Double#NaN} if there was no entry.
+     */
+    public double remove(long key) {
+        if (!containsKey(key)) {
+            return Double.NaN;
+        }
+        double old = delete(key);
+        fireOnLongDoubleMapChanged(new Change(this, NO_KEYS, new long[]{key}, NO_VALUES, new double[]{old}, false, true));
+        return old;
+    }
+
+    /**
+     * @param keys
+     * @param values parallel to the keys
+     */
+    public void putAll(long[] keys, double[] values) {
+        Preconditions.checkNotNull(keys);
+        Preconditions.checkNotNull(values);
+        Preconditions.checkArgument(keys.length == values.length, "keys and values must be parallel");
+        if (keys.length == 0) {
+            return;
+        }
+        long[] replacedKeys = new long[keys.length];
+        double[] replacedValues = new double[keys.length];
+        int replaced = 0;
+        for (int i = 0; i < keys.length; i++) {
+            boolean existed = containsKey(keys[i]);
+            double old = insert(keys[i], values[i]);
+            if (existed) {
+                replacedKeys[replaced] = keys[i];
+                replacedValues[replaced++] = old;
+            }
+        }
+        fireOnLongDoubleMapChanged(new Change(this, keys.clone(), Arrays.copyOf(replacedKeys, replaced),
+                values.clone(), Arrays.copyOf(replacedValues, replaced), true, replaced > 0));
+    }
+
+    public void clear() {
+        if (isEmpty()) {
+            return;
+        }
+        long[] removedKeys = keys();
+        double[] removedValues = new double[removedKeys.length];
+        for (int i = 0; i < removedKeys.length; i++) {
+            removedValues[i] = get(removedKeys[i]);
+        }
+        Arrays.fill(keys, 0L);
+        assigned = 0;
+        hasZero = false;
+        fireOnLongDoubleMapChanged(new Change(this, NO_KEYS, removedKeys, NO_VALUES, removedValues, false, true));
+    }
+
+    /**
+     * @return a copy of the keys, in no particular order.
+     */
+    public long[] keys() {
+        long[] copy = new long[size()];
+        int i = 0;
+        if (hasZero) {
+            copy[i++] = 0;
+        }
+        for (long key : keys) {
+            if (key != 0) {
+                copy[i++] = key;
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Visits every entry, in no particular order, without copying or boxing.
+     * The map must not be changed by the procedure.
+     *
+     * @param procedure
+     */
+    public void forEach(LongDoubleProcedure procedure) {
+        Preconditions.checkNotNull(procedure);
+        if (hasZero) {
+            procedure.apply(0, zeroValue);
+        }
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0) {
+                procedure.apply(keys[i], values[i]);
+            }
+        }
+    }
+
+    // returns the slot holding the key, or the free slot where it belongs
+    private int slot(long key) {
+        int mask = keys.length - 1;
+        int i = LongHashing.mix(key) & mask;
+        while (keys[i] != 0 && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private double insert(long key, double value) {
+        if (key == 0) {
+            double old = hasZero ? zeroValue : Double.NaN;
+            hasZero = true;
+            zeroValue = value;
+            return old;
+        }
+        int i = slot(key);
+        if (keys[i] == key) {
+            double old = values[i];
+            values[i] = value;
+            return old;
+        }
+        // grow first, so that a full table is left unchanged
+        if (assigned + 1 >= resizeAt) {
+            rehash();
+            i = slot(key);
+        }
+        keys[i] = key;
+        values[i] = value;
+        assigned++;
+        return Double.NaN;
+    }
+
+    // assumes the key is present
+    private double delete(long key) {
+        if (key == 0) {
+            hasZero = false;
+            return zeroValue;
+        }
+        int mask = keys.length - 1;
+        int gap = slot(key);
+        double old = values[gap];
+        // backward shift deletion, avoids tombstones
+        int i = (gap + 1) & mask;
+        while (keys[i] != 0) {
+            int home = LongHashing.mix(keys[i]) & mask;
+            if (((i - home) & mask) >= ((i - gap) & mask)) {
+                keys[gap] = keys[i];
+                values[gap] = values[i];
+                gap = i;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[gap] = 0;
+        assigned--;
+        return old;
+    }
+
+    private void rehash() {
+        long[] oldKeys = keys;
+        double[] oldValues = values;
+        allocate(LongHashing.grow(oldKeys.length));
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] != 0) {
+                int i = slot(oldKeys[j]);
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this) {
+            return true;
+        }
+        if (!(obj instanceof ObservableLongDoubleMap)) {
+            return false;
+        }
+        ObservableLongDoubleMap other = (ObservableLongDoubleMap) obj;
+        if (other.size() != size()) {
+            return false;
+        }
+        for (long key : other.keys()) {
+            if (!containsKey(key) || Double.compare(get(key), other.get(key)) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = hasZero ? Doubles.hashCode(zeroValue) : 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0) {
+                hash += Longs.hashCode(keys[i]) ^ Doubles.hashCode(values[i]);
+            }
+        }
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("{");
+        for (long key : keys()) {
+            if (builder.length() > 1) {
+                builder.append(", ");
+            }
+            builder.append(key).append('=').append(get(key));
+        }
+        return builder.append('}').toString();
+    }
+
+    private final transient ListenerRegistry<LongDoubleMapListener> listeners = new ListenerRegistry<LongDoubleMapListener>();
+
+    public void addLongDoubleMapListener(LongDoubleMapListener listener) {
+        listen(listener);
+    }
+
+    /**
+     * Registers a listener that will be removed once it has been garbage collected.
+     *
+     * @param listener
+     * @see ListenerRegistry#registerWeakly(Object)
+     */
+    public void addWeakLongDoubleMapListener(LongDoubleMapListener listener) {
+        listenWeakly(listener);
+    }
+
+    /**
+     * As {@link #addLongDoubleMapListener}, but returning the registration.
+     *
+     * @param listener
+     * @return the registration, which may be closed to remove the listener in {@code O(1)}.
+     */
+    public Registration listen(LongDoubleMapListener listener) {
+        return listeners.register(listener);
+    }
+
+    /**
+     * As {@link #addWeakLongDoubleMapListener}, but returning the registration.
+     *
+     * @param listener
+     * @return the registration, which may be closed to remove the listener in {@code O(1)}.
+     * @see ListenerRegistry#registerWeakly(Object)
+     */
+    public Registration listenWeakly(LongDoubleMapListener listener) {
+        return listeners.registerWeakly(listener);
+    }
+
+    public void removeLongDoubleMapListener(LongDoubleMapListener listener) {
+        listeners.unregister(listener);
+    }
+
+    private void fireOnLongDoubleMapChanged(Change change) {
+        for (LongDoubleMapListener listener : listeners)
+            listener.onLongDoubleMapChanged(change);
+    }
+}
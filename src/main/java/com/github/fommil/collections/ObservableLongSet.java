@@ -0,0 +1,348 @@
+// Copyright (c) 2013 Samuel Halliday
+package com.github.fommil.collections;
+
+import com.github.fommil.collections.ListenerRegistry.Registration;
+import com.google.common.base.Preconditions;
+import com.google.common.primitives.Longs;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.Accessors;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.util.Arrays;
+
+/**
+ * Compliments {@link ObservableSet} for {@code long} elements, without boxing.
+ * Elements are stored in an open addressing (linear probing) hash table, costing
+ * roughly 8 to 16 bytes per element compared to the 50 or more bytes of a
+ * {@code HashSet<Long>}.
+ * <p>
+ * Unlike {@link ObservableCollection.Change}, the {@link Change}s contain only
+ * the elements that were really added (or removed) and are {@code long[]} arrays,
+ * which listeners must not modify.
+ *
+ * @author Samuel Halliday
+ * @see ObservableLongDoubleMap
+ */
+@NotThreadSafe
+public class ObservableLongSet {
+
+    @RequiredArgsConstructor
+    @Getter
+    public static final class Change {
+
+        @NonNull
+        private final ObservableLongSet set;
+
+        @NonNull
+        private final long[] elementsAdded, elementsRemoved;
+
+        @Accessors(fluent = true)
+        private final boolean wasAdded, wasRemoved;
+
+    }
+
+    /**
+     * Listen to changes in {@link ObservableLongSet}s.
+     */
+    public interface LongSetListener {
+
+        /**
+         * Called after a change has been made to an {@link ObservableLongSet}.
+         *
+         * @param change
+         */
+        public void onLongSetChanged(Change change);
+    }
+
+    /**
+     * Receives the elements of {@link ObservableLongSet#forEach(LongProcedure)}.
+     */
+    public interface LongProcedure {
+        public void apply(long element);
+    }
+
+    private static final long[] EMPTY = new long[0];
+
+    // zero marks a free slot, so is tracked separately
+    private long[] keys;
+
+    private boolean hasZero;
+
+    private int assigned, resizeAt;
+
+    public ObservableLongSet() {
+        this(16);
+    }
+
+    /**
+     * @param expected number of elements that will be held without resizing.
+     */
+    public ObservableLongSet(int expected) {
+        Preconditions.checkArgument(expected >= 0);
+        allocate(LongHashing.capacityFor(expected));
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        resizeAt = LongHashing.resizeAt(capacity);
+    }
+
+    public int size() {
+        return assigned + (hasZero ? 1 : 0);
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public boolean contains(long element) {
+        if (element == 0) {
+            return hasZero;
+        }
+        return keys[slot(element)] == element;
+    }
+
+    public boolean add(long element) {
+        if (insert(element)) {
+            fireOnLongSetChanged(new Change(this, new long[]{element}, EMPTY, true, false));
+            return true;
+        }
+        return false;
+    }
+
+    public boolean remove(long element) {
+        if (delete(element)) {
+            fireOnLongSetChanged(new Change(this, EMPTY, new long[]{element}, false, true));
+            return true;
+        }
+        return false;
+    }
+
+    public boolean addAll(long... elements) {
+        Preconditions.checkNotNull(elements);
+        long[] added = new long[elements.length];
+        int count = 0;
+        for (long element : elements) {
+            if (insert(element)) {
+                added[count++] = element;
+            }
+        }
+        if (count == 0) {
+            return false;
+        }
+        fireOnLongSetChanged(new Change(this, Arrays.copyOf(added, count), EMPTY, true, false));
+        return true;
+    }
+
+    public boolean removeAll(long... elements) {
+        Preconditions.checkNotNull(elements);
+        long[] removed = new long[elements.length];
+        int count = 0;
+        for (long element : elements) {
+            if (delete(element)) {
+                removed[count++] = element;
+            }
+        }
+        if (count == 0) {
+            return false;
+        }
+        fireOnLongSetChanged(new Change(this, EMPTY, Arrays.copyOf(removed, count), false, true));
+        return true;
+    }
+
+    public void clear() {
+        if (isEmpty()) {
+            return;
+        }
+        long[] removed = toArray();
+        Arrays.fill(keys, 0L);
+        assigned = 0;
+        hasZero = false;
+        fireOnLongSetChanged(new Change(this, EMPTY, removed, false, true));
+    }
+
+    /**
+     * @return a copy of the elements, in no particular order.
+     */
+    public long[] toArray() {
+        long[] elements = new long[size()];
+        int i = 0;
+        if (hasZero) {
+            elements[i++] = 0;
+        }
+        for (long key : keys) {
+            if (key != 0) {
+                elements[i++] = key;
+            }
+        }
+        return elements;
+    }
+
+    /**
+     * Visits every element, in no particular order, without copying or boxing.
+     * The set must not be changed by the procedure.
+     *
+     * @param procedure
+     */
+    public void forEach(LongProcedure procedure) {
+        Preconditions.checkNotNull(procedure);
+        if (hasZero) {
+            procedure.apply(0);
+        }
+        for (long key : keys) {
+            if (key != 0) {
+                procedure.apply(key);
+            }
+        }
+    }
+
+    // returns the slot holding the element, or the free slot where it belongs
+    private int slot(long element) {
+        int mask = keys.length - 1;
+        int i = LongHashing.mix(element) & mask;
+        while (keys[i] != 0 && keys[i] != element) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private boolean insert(long element) {
+        if (element == 0) {
+            if (hasZero) {
+                return false;
+            }
+            hasZero = true;
+            return true;
+        }
+        int i = slot(element);
+        if (keys[i] == element) {
+            return false;
+        }
+        // grow first, so that a full table is left unchanged
+        if (assigned + 1 >= resizeAt) {
+            rehash();
+            i = slot(element);
+        }
+        keys[i] = element;
+        assigned++;
+        return true;
+    }
+
+    private boolean delete(long element) {
+        if (element == 0) {
+            boolean had = hasZero;
+            hasZero = false;
+            return had;
+        }
+        int mask = keys.length - 1;
+        int gap = slot(element);
+        if (keys[gap] != element) {
+            return false;
+        }
+        // backward shift deletion, avoids tombstones
+        int i = (gap + 1) & mask;
+        while (keys[i] != 0) {
+            int home = LongHashing.mix(keys[i]) & mask;
+            if (((i - home) & mask) >= ((i - gap) & mask)) {
+                keys[gap] = keys[i];
+                gap = i;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[gap] = 0;
+        assigned--;
+        return true;
+    }
+
+    private void rehash() {
+        long[] old = keys;
+        allocate(LongHashing.grow(old.length));
+        for (long key : old) {
+            if (key != 0) {
+                keys[slot(key)] = key;
+            }
+        }
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this) {
+            return true;
+        }
+        if (!(obj instanceof ObservableLongSet)) {
+            return false;
+        }
+        ObservableLongSet other = (ObservableLongSet) obj;
+        if (other.size() != size()) {
+            return false;
+        }
+        for (long element : other.toArray()) {
+            if (!contains(element)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 0;
+        for (long key : keys) {
+            hash += Longs.hashCode(key); // zero contributes nothing
+        }
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(toArray());
+    }
+
+    private final transient ListenerRegistry<LongSetListener> listeners = new ListenerRegistry<LongSetListener>();
+
+    public void addLongSetListener(LongSetListener listener) {
+        listen(listener);
+    }
+
+    /**
+     * Registers a listener that will be removed once it has been garbage collected.
+     *
+     * @param listener
+     * @see ListenerRegistry#registerWeakly(Object)
+     */
+    public void addWeakLongSetListener(LongSetListener listener) {
+        listenWeakly(listener);
+    }
+
+    /**
+     * As {@link #addLongSetListener}, but returning the registration.
+     *
+     * @param listener
+     * @return the registration, which may be closed to remove the listener in {@code O(1)}.
+     */
+    public Registration listen(LongSetListener listener) {
+        return listeners.register(listener);
+    }
+
+    /**
+     * As {@link #addWeakLongSetListener}, but returning the registration.
+     *
+     * @param listener
+     * @return the registration, which may be closed to remove the listener in {@code O(1)}.
+     * @see ListenerRegistry#registerWeakly(Object)
+     */
+    public Registration listenWeakly(LongSetListener listener) {
+        return listeners.registerWeakly(listener);
+    }
+
+    public void removeLongSetListener(LongSetListener listener) {
+        listeners.unregister(listener);
+    }
+
+    private void fireOnLongSetChanged(Change change) {
+        for (LongSetListener listener : listeners)
+            listener.onLongSetChanged(change);
+    }
+}
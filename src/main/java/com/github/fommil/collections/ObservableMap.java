@@ -1,19 +1,25 @@
 // Copyright (c) 2013 Samuel Halliday
 package com.github.fommil.collections;
 
+import com.github.fommil.collections.ListenerRegistry.Registration;
 import com.github.fommil.collections.ObservableCollection.CollectionListener;
+import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
+import com.google.common.cache.RemovalCause;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import lombok.*;
 import lombok.experimental.Accessors;
 
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.NotThreadSafe;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeSupport;
 import java.util.AbstractMap.SimpleEntry;
 import java.util.*;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Compliments {@link ObservableCollection} for a {@link Map}.
@@ -54,6 +60,7 @@ public class ObservableMap<K, V> implements Map<K, V> {
      * @param <K>
      * @param <V>
      * @return 
+     * @see ObservableNavigableMap#newObservableNavigableMap()
      */
     public static <K extends Comparable<K>, V> ObservableMap<K, V> newObservableTreeMap() {
         return newObservableMap(Maps.<K, V>newTreeMap());
@@ -87,19 +94,36 @@ public class ObservableMap<K, V> implements Map<K, V> {
         map.addMapListener(listener);
     }
 
-    @RequiredArgsConstructor
     @Getter
     public static final class Change<K, V> {
 
-        @NonNull
         private final ObservableMap<K, V> map;
 
-        @NonNull
         private final Collection<Entry<K, V>> entriesAdded, entriesRemoved;
 
         @Accessors(fluent = true)
         private final boolean wasAdded, wasRemoved;
 
+        /**
+         * Why the entries were removed: {@link RemovalCause#EXPLICIT} unless they
+         * were evicted, e.g. by an {@link ObservableCache}.
+         */
+        private final RemovalCause cause;
+
+        public Change(ObservableMap<K, V> map, Collection<Entry<K, V>> entriesAdded, Collection<Entry<K, V>> entriesRemoved,
+                      boolean wasAdded, boolean wasRemoved) {
+            this(map, entriesAdded, entriesRemoved, wasAdded, wasRemoved, RemovalCause.EXPLICIT);
+        }
+
+        public Change(ObservableMap<K, V> map, Collection<Entry<K, V>> entriesAdded, Collection<Entry<K, V>> entriesRemoved,
+                      boolean wasAdded, boolean wasRemoved, RemovalCause cause) {
+            this.map = Preconditions.checkNotNull(map);
+            this.entriesAdded = Preconditions.checkNotNull(entriesAdded);
+            this.entriesRemoved = Preconditions.checkNotNull(entriesRemoved);
+            this.wasAdded = wasAdded;
+            this.wasRemoved = wasRemoved;
+            this.cause = Preconditions.checkNotNull(cause);
+        }
     }
 
     /**
@@ -144,7 +168,7 @@ public class ObservableMap<K, V> implements Map<K, V> {
     }
 
     @Delegate(excludes = Mutators.class)
-    private final Map<K, V> delegate;
+    protected final Map<K, V> delegate;
 
     private Change<K, V> createAdditionChange(Entry<K, V> added) {
         return createAdditionChange(Collections.singleton(added));
@@ -210,6 +234,69 @@ public class ObservableMap<K, V> implements Map<K, V> {
         fireOnMapChanged(createUpdateChange(oldEntries.entrySet(), newEntries));
     }
 
+    /**
+     * Parallel {@link #putAll(Map)}, for large maps: the replaced entries are found
+     * by fork/join over partitions of the argument, and only the entries that
+     * change are put (also in parallel if the delegate is a {@link ConcurrentMap}),
+     * with a single {@link Change} containing exactly the replaced and new entries.
+     * <p>
+     * The map must not be changed by other threads during the call, and
+     * {@code null} values are not supported.
+     *
+     * @param m
+     * @param pool
+     */
+    public void parallelPutAll(Map<? extends K, ? extends V> m, ForkJoinPool pool) {
+        List<Entry<K, V>> entries = Lists.newArrayList();
+        for (Entry<? extends K, ? extends V> entry : m.entrySet()) {
+            entries.add(new SimpleEntry<K, V>(entry.getKey(), entry.getValue()));
+        }
+        List<Update<K, V>> updates = Parallel.collect(pool, entries, new Function<Entry<K, V>, Update<K, V>>() {
+            @Override
+            public Update<K, V> apply(Entry<K, V> entry) {
+                V old = delegate.get(entry.getKey());
+                if (old == null) {
+                    return new Update<K, V>(null, entry);
+                }
+                if (old.equals(entry.getValue())) {
+                    return null;
+                }
+                return new Update<K, V>(new SimpleEntry<K, V>(entry.getKey(), old), entry);
+            }
+        });
+        if (updates.isEmpty()) {
+            return;
+        }
+        List<Entry<K, V>> added = Lists.newArrayListWithCapacity(updates.size());
+        List<Entry<K, V>> removed = Lists.newArrayList();
+        for (Update<K, V> update : updates) {
+            added.add(update.added);
+            if (update.removed != null) {
+                removed.add(update.removed);
+            }
+        }
+        if (delegate instanceof ConcurrentMap) {
+            Parallel.collect(pool, added, new Function<Entry<K, V>, Void>() {
+                @Override
+                public Void apply(Entry<K, V> entry) {
+                    delegate.put(entry.getKey(), entry.getValue());
+                    return null;
+                }
+            });
+        } else {
+            for (Entry<K, V> entry : added) {
+                delegate.put(entry.getKey(), entry.getValue());
+            }
+        }
+        fireOnMapChanged(new Change<K, V>(this, added, removed, true, !removed.isEmpty()));
+    }
+
+    // the entry that was replaced (if any) and its replacement
+    @RequiredArgsConstructor
+    private static final class Update<K, V> {
+        private final Entry<K, V> removed, added;
+    }
+
     @Override
     public void clear() {
         Set<Entry<K, V>> all = Sets.newHashSet(delegate.entrySet());
@@ -273,18 +360,95 @@ public class ObservableMap<K, V> implements Map<K, V> {
         return delegate.toString();
     }
 
-    private final transient Collection<MapListener<K, V>> listeners = Lists.newCopyOnWriteArrayList();
+    private final transient ListenerRegistry<MapListener<K, V>> listeners = new ListenerRegistry<MapListener<K, V>>();
 
     public void addMapListener(MapListener<K, V> listener) {
-        listeners.add(listener);
+        listen(listener);
+    }
+
+    /**
+     * Registers a listener that will be removed once it has been garbage collected.
+     *
+     * @param listener
+     * @see ListenerRegistry#registerWeakly(Object)
+     */
+    public void addWeakMapListener(MapListener<K, V> listener) {
+        listenWeakly(listener);
+    }
+
+    /**
+     * As {@link #addMapListener}, but returning the registration.
+     *
+     * @param listener
+     * @return the registration, which may be closed to remove the listener in {@code O(1)}.
+     */
+    public Registration listen(MapListener<K, V> listener) {
+        return listeners.register(listener);
+    }
+
+    /**
+     * As {@link #addWeakMapListener}, but returning the registration.
+     *
+     * @param listener
+     * @return the registration, which may be closed to remove the listener in {@code O(1)}.
+     * @see ListenerRegistry#registerWeakly(Object)
+     */
+    public Registration listenWeakly(MapListener<K, V> listener) {
+        return listeners.registerWeakly(listener);
     }
 
     public void removeMapListener(MapListener<K, V> listener) {
-        listeners.remove(listener);
+        listeners.unregister(listener);
+    }
+
+    @Nullable
+    transient volatile ObservableStats stats;
+
+    /**
+     * Starts collecting statistics about the changes and the time taken by each
+     * listener, which are also registered as a JMX MBean.
+     *
+     * @param name of the MBean, which must be unique.
+     * @return
+     */
+    public synchronized ObservableStats instrument(String name) {
+        Preconditions.checkState(stats == null, "already instrumented");
+        ObservableStats instrumented = new ObservableStats(name);
+        instrumented.register();
+        stats = instrumented;
+        return instrumented;
     }
 
-    private void fireOnMapChanged(Change<K, V> change) {
-        for (MapListener<K, V> listener : listeners)
+    /**
+     * Stops collecting statistics and unregisters the MBean.
+     */
+    public synchronized void uninstrument() {
+        if (stats != null) {
+            stats.unregister();
+            stats = null;
+        }
+    }
+
+    /**
+     * @return the statistics, or {@code null} unless {@link #instrument(String) instrumented}.
+     */
+    @Nullable
+    public ObservableStats getStats() {
+        return stats;
+    }
+
+    void fireOnMapChanged(Change<K, V> change) {
+        ObservableStats stats = this.stats;
+        if (stats == null) {
+            for (MapListener<K, V> listener : listeners)
+                listener.onMapChanged(change);
+            return;
+        }
+        stats.mutated();
+        for (MapListener<K, V> listener : listeners) {
+            long start = System.nanoTime();
             listener.onMapChanged(change);
+            stats.dispatched(listener, System.nanoTime() - start);
+        }
     }
 }
@@ -0,0 +1,328 @@
+// Copyright (c) 2013 Samuel Halliday
+package com.github.fommil.collections;
+
+import com.github.fommil.collections.ListenerRegistry.Registration;
+import com.github.fommil.collections.RangeIndex.Cut;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
+import com.google.common.collect.Sets;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.lang.ref.WeakReference;
+import java.util.*;
+
+/**
+ * Compliments {@link ObservableMap} for a {@link NavigableMap}.
+ * <p>
+ * {@link #subMap}, {@link #headMap} and {@link #tailMap} return live views,
+ * which may be changed and observed: listeners of a view are only told about
+ * the entries whose keys are in its range, e.g. a window of time-indexed data.
+ * The ranges of all listeners of a map (and its views) are held in an interval
+ * index, so a change to a key is dispatched in {@code O(log n + matched)} for
+ * {@code n} listeners, rather than to every listener.
+ * <p>
+ * Unlike {@link ObservableMap}, {@link Change}s are created for each listener,
+ * containing only the entries in its range, and are not sent if there are none.
+ * The {@link #navigableKeySet()}, {@link #descendingKeySet()} and
+ * {@link #descendingMap()} are unmodifiable.
+ *
+ * @param <K>
+ * @param <V>
+ * @author Samuel Halliday
+ */
+@NotThreadSafe
+public class ObservableNavigableMap<K, V> extends ObservableMap<K, V> implements NavigableMap<K, V> {
+
+    /**
+     * @param <K>
+     * @param <V>
+     * @param map
+     * @return
+     */
+    public static <K, V> ObservableNavigableMap<K, V> newObservableNavigableMap(NavigableMap<K, V> map) {
+        Preconditions.checkNotNull(map);
+        return new ObservableNavigableMap<K, V>(map);
+    }
+
+    /**
+     * @param <K>
+     * @param <V>
+     * @return backed by a {@link TreeMap}.
+     */
+    public static <K extends Comparable<K>, V> ObservableNavigableMap<K, V> newObservableNavigableMap() {
+        return newObservableNavigableMap(Maps.<K, V>newTreeMap());
+    }
+
+    // a listener of a map (or view) for the keys in its range
+    private static final class Listening<K, V> implements Registration {
+        private final ObservableNavigableMap<K, V> map;
+
+        private final Object listener; // or WeakReference
+
+        private Listening(ObservableNavigableMap<K, V> map, MapListener<K, V> listener, boolean weak) {
+            this.map = map;
+            this.listener = weak ? new WeakReference<MapListener<K, V>>(listener) : listener;
+        }
+
+        @SuppressWarnings("unchecked")
+        private MapListener<K, V> get() {
+            if (listener instanceof WeakReference)
+                return ((WeakReference<MapListener<K, V>>) listener).get();
+            return (MapListener<K, V>) listener;
+        }
+
+        @Override
+        public void close() {
+            map.index.remove(this);
+        }
+    }
+
+    // the entries of a change which are in the range of a listener
+    private static final class Delivery<K, V> {
+        private final List<Entry<K, V>> added = Lists.newArrayList(), removed = Lists.newArrayList();
+    }
+
+    private final NavigableMap<K, V> navigable;
+
+    // shared by the map and all its views
+    private final RangeIndex<K, Listening<K, V>> index;
+
+    private final Cut<K> lower, upper;
+
+    public ObservableNavigableMap(NavigableMap<K, V> map) {
+        this(map, new RangeIndex<K, Listening<K, V>>(comparatorOf(map)), Cut.<K>bottom(), Cut.<K>top());
+    }
+
+    private ObservableNavigableMap(NavigableMap<K, V> map, RangeIndex<K, Listening<K, V>> index, Cut<K> lower, Cut<K> upper) {
+        super(map);
+        this.navigable = map;
+        this.index = index;
+        this.lower = lower;
+        this.upper = upper;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <K> Comparator<? super K> comparatorOf(SortedMap<K, ?> map) {
+        Comparator natural = Ordering.natural();
+        return map.comparator() != null ? map.comparator() : natural;
+    }
+
+    @Override
+    public Comparator<? super K> comparator() {
+        return navigable.comparator();
+    }
+
+    @Override
+    public K firstKey() {
+        return navigable.firstKey();
+    }
+
+    @Override
+    public K lastKey() {
+        return navigable.lastKey();
+    }
+
+    @Override
+    public Entry<K, V> lowerEntry(K key) {
+        return navigable.lowerEntry(key);
+    }
+
+    @Override
+    public K lowerKey(K key) {
+        return navigable.lowerKey(key);
+    }
+
+    @Override
+    public Entry<K, V> floorEntry(K key) {
+        return navigable.floorEntry(key);
+    }
+
+    @Override
+    public K floorKey(K key) {
+        return navigable.floorKey(key);
+    }
+
+    @Override
+    public Entry<K, V> ceilingEntry(K key) {
+        return navigable.ceilingEntry(key);
+    }
+
+    @Override
+    public K ceilingKey(K key) {
+        return navigable.ceilingKey(key);
+    }
+
+    @Override
+    public Entry<K, V> higherEntry(K key) {
+        return navigable.higherEntry(key);
+    }
+
+    @Override
+    public K higherKey(K key) {
+        return navigable.higherKey(key);
+    }
+
+    @Override
+    public Entry<K, V> firstEntry() {
+        return navigable.firstEntry();
+    }
+
+    @Override
+    public Entry<K, V> lastEntry() {
+        return navigable.lastEntry();
+    }
+
+    @Override
+    public ObservableNavigableMap<K, V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+        return view(navigable.subMap(fromKey, fromInclusive, toKey, toInclusive),
+                Cut.lower(fromKey, fromInclusive), Cut.upper(toKey, toInclusive));
+    }
+
+    @Override
+    public ObservableNavigableMap<K, V> headMap(K toKey, boolean inclusive) {
+        return view(navigable.headMap(toKey, inclusive), lower, Cut.upper(toKey, inclusive));
+    }
+
+    @Override
+    public ObservableNavigableMap<K, V> tailMap(K fromKey, boolean inclusive) {
+        return view(navigable.tailMap(fromKey, inclusive), Cut.lower(fromKey, inclusive), upper);
+    }
+
+    @Override
+    public ObservableNavigableMap<K, V> subMap(K fromKey, K toKey) {
+        return subMap(fromKey, true, toKey, false);
+    }
+
+    @Override
+    public ObservableNavigableMap<K, V> headMap(K toKey) {
+        return headMap(toKey, false);
+    }
+
+    @Override
+    public ObservableNavigableMap<K, V> tailMap(K fromKey) {
+        return tailMap(fromKey, true);
+    }
+
+    private ObservableNavigableMap<K, V> view(NavigableMap<K, V> map, Cut<K> lower, Cut<K> upper) {
+        return new ObservableNavigableMap<K, V>(map, index, lower, upper);
+    }
+
+    @Override
+    public Entry<K, V> pollFirstEntry() {
+        return poll(navigable.firstEntry());
+    }
+
+    @Override
+    public Entry<K, V> pollLastEntry() {
+        return poll(navigable.lastEntry());
+    }
+
+    private Entry<K, V> poll(Entry<K, V> entry) {
+        if (entry == null) {
+            return null;
+        }
+        Entry<K, V> polled = Maps.immutableEntry(entry.getKey(), entry.getValue());
+        remove(polled.getKey());
+        return polled;
+    }
+
+    @Override
+    public NavigableMap<K, V> descendingMap() {
+        return Maps.unmodifiableNavigableMap(navigable.descendingMap());
+    }
+
+    @Override
+    public NavigableSet<K> navigableKeySet() {
+        return Sets.unmodifiableNavigableSet(navigable.navigableKeySet());
+    }
+
+    @Override
+    public NavigableSet<K> descendingKeySet() {
+        return Sets.unmodifiableNavigableSet(navigable.descendingKeySet());
+    }
+
+    /**
+     * @param listener which will only be told about changes to keys in the range of this map.
+     * @return the registration, which may be closed to remove the listener without a search.
+     */
+    @Override
+    public Registration listen(MapListener<K, V> listener) {
+        return register(listener, false);
+    }
+
+    /**
+     * Registers a listener that will be removed once it has been garbage collected.
+     *
+     * @param listener which will only be told about changes to keys in the range of this map.
+     * @return the registration, which may be closed to remove the listener without a search.
+     */
+    @Override
+    public Registration listenWeakly(MapListener<K, V> listener) {
+        return register(listener, true);
+    }
+
+    private Registration register(MapListener<K, V> listener, boolean weak) {
+        Preconditions.checkNotNull(listener);
+        Listening<K, V> listening = new Listening<K, V>(this, listener, weak);
+        index.add(listening, lower, upper);
+        return listening;
+    }
+
+    @Override
+    public void removeMapListener(MapListener<K, V> listener) {
+        for (Listening<K, V> listening : Lists.newArrayList(index.handles())) {
+            if (listening.map == this && listening.get() == listener) {
+                listening.close();
+            }
+        }
+    }
+
+    @Override
+    void fireOnMapChanged(Change<K, V> change) {
+        ObservableStats stats = this.stats;
+        if (stats != null) {
+            stats.mutated();
+        }
+        // complete before calling listeners, which may change the index
+        Map<Listening<K, V>, Delivery<K, V>> deliveries = Maps.newLinkedHashMap();
+        for (Entry<K, V> entry : change.getEntriesRemoved()) {
+            for (Listening<K, V> listening : index.get(entry.getKey())) {
+                delivery(deliveries, listening).removed.add(entry);
+            }
+        }
+        for (Entry<K, V> entry : change.getEntriesAdded()) {
+            for (Listening<K, V> listening : index.get(entry.getKey())) {
+                delivery(deliveries, listening).added.add(entry);
+            }
+        }
+        for (Entry<Listening<K, V>, Delivery<K, V>> e : deliveries.entrySet()) {
+            Listening<K, V> listening = e.getKey();
+            MapListener<K, V> listener = listening.get();
+            if (listener == null) {
+                listening.close();
+                continue;
+            }
+            Delivery<K, V> delivery = e.getValue();
+            Change<K, V> filtered = new Change<K, V>(listening.map, delivery.added, delivery.removed,
+                    !delivery.added.isEmpty(), !delivery.removed.isEmpty(), change.getCause());
+            if (stats == null) {
+                listener.onMapChanged(filtered);
+            } else {
+                long start = System.nanoTime();
+                listener.onMapChanged(filtered);
+                stats.dispatched(listener, System.nanoTime() - start);
+            }
+        }
+    }
+
+    private static <K, V> Delivery<K, V> delivery(Map<Listening<K, V>, Delivery<K, V>> deliveries, Listening<K, V> listening) {
+        Delivery<K, V> delivery = deliveries.get(listening);
+        if (delivery == null) {
+            delivery = new Delivery<K, V>();
+            deliveries.put(listening, delivery);
+        }
+        return delivery;
+    }
+}
@@ -44,6 +44,24 @@ public class ObservableSet<T> extends ObservableCollection<T> implements Set<T>
         return newObservableSet(Sets.<T>newTreeSet());
     }
 
+    /**
+     * @param <T>
+     * @return a set with cheap snapshots, which can be iterated while it is changed.
+     * @see SnapshotHashSet
+     */
+    public static <T> ObservableSet<T> newObservableSnapshotSet() {
+        return newObservableSet(new SnapshotHashSet<T>());
+    }
+
+    /**
+     * @param <T>
+     * @return a set that may be changed by many threads.
+     * @see ConcurrentObservableSet
+     */
+    public static <T> ObservableSet<T> newObservableConcurrentSet() {
+        return new ConcurrentObservableSet<T>();
+    }
+
     public ObservableSet(Set<T> set) {
         super(set);
     }
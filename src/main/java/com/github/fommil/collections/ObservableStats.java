@@ -0,0 +1,190 @@
+// Copyright (c) 2013 Samuel Halliday
+package com.github.fommil.collections;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
+import lombok.Getter;
+import lombok.extern.java.Log;
+
+import javax.annotation.concurrent.ThreadSafe;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.beans.ConstructorProperties;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the changes made to an {@link ObservableCollection} or {@link ObservableMap},
+ * and times how long each of its listeners takes to be told about them.
+ * Listeners that take longer than the slow threshold are logged with their class.
+ * <p>
+ * Statistics are only collected once requested, e.g. by
+ * {@link ObservableCollection#instrument(String)}, and are then also
+ * exported as a JMX MBean, named after the observable. Otherwise the cost
+ * to the observable is a single {@code null} check per change.
+ *
+ * @author Samuel Halliday
+ */
+@Log
+@ThreadSafe
+public class ObservableStats implements ObservableStatsMXBean {
+
+    /**
+     * Immutable statistics of a single listener.
+     */
+    @Getter
+    public static final class ListenerTiming {
+
+        /**
+         * Class and identity of the listener.
+         */
+        private final String listener;
+
+        private final long events, totalNanos, maxNanos;
+
+        @ConstructorProperties({"listener", "events", "totalNanos", "maxNanos"})
+        public ListenerTiming(String listener, long events, long totalNanos, long maxNanos) {
+            this.listener = listener;
+            this.events = events;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+        }
+    }
+
+    // cumulative timings of a listener
+    private static final class Timing {
+        private final AtomicLong events = new AtomicLong(), totalNanos = new AtomicLong(), maxNanos = new AtomicLong();
+
+        private void record(long nanos) {
+            events.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            long max = maxNanos.get();
+            while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+                max = maxNanos.get();
+            }
+        }
+    }
+
+    private static final String DOMAIN = "com.github.fommil.collections";
+
+    @Getter
+    private final String name;
+
+    private final AtomicLong mutations = new AtomicLong(), events = new AtomicLong(), slowEvents = new AtomicLong();
+
+    private volatile long slowNanos = TimeUnit.MILLISECONDS.toNanos(100);
+
+    // weak, to not retain removed listeners
+    private final ConcurrentMap<Object, Timing> timings = new MapMaker().weakKeys().makeMap();
+
+    private final ObjectName objectName;
+
+    ObservableStats(String name) {
+        this.name = Preconditions.checkNotNull(name);
+        try {
+            objectName = new ObjectName(DOMAIN + ":type=ObservableStats,name=" + ObjectName.quote(name));
+        } catch (JMException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    void register() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.registerMBean(this, objectName);
+        } catch (JMException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    void unregister() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        } catch (JMException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    void mutated() {
+        mutations.incrementAndGet();
+    }
+
+    /**
+     * @param listener
+     * @param nanos that the listener took to handle a change.
+     */
+    void dispatched(Object listener, long nanos) {
+        events.incrementAndGet();
+        Timing timing = timings.get(listener);
+        if (timing == null) {
+            timing = new Timing();
+            Timing existing = timings.putIfAbsent(listener, timing);
+            if (existing != null) {
+                timing = existing;
+            }
+        }
+        timing.record(nanos);
+        if (nanos > slowNanos) {
+            slowEvents.incrementAndGet();
+            log.warning(name + ": slow listener " + listener.getClass().getName()
+                    + " took " + TimeUnit.NANOSECONDS.toMillis(nanos) + "ms");
+        }
+    }
+
+    @Override
+    public long getMutations() {
+        return mutations.get();
+    }
+
+    @Override
+    public long getEvents() {
+        return events.get();
+    }
+
+    @Override
+    public long getSlowEvents() {
+        return slowEvents.get();
+    }
+
+    @Override
+    public long getSlowThresholdMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(slowNanos);
+    }
+
+    @Override
+    public void setSlowThresholdMicros(long micros) {
+        Preconditions.checkArgument(micros >= 0);
+        slowNanos = TimeUnit.MICROSECONDS.toNanos(micros);
+    }
+
+    @Override
+    public List<ListenerTiming> getListenerTimings() {
+        List<ListenerTiming> snapshot = Lists.newArrayList();
+        for (Entry<Object, Timing> entry : timings.entrySet()) {
+            Object listener = entry.getKey();
+            Timing timing = entry.getValue();
+            snapshot.add(new ListenerTiming(
+                    listener.getClass().getName() + "@" + Integer.toHexString(System.identityHashCode(listener)),
+                    timing.events.get(), timing.totalNanos.get(), timing.maxNanos.get()));
+        }
+        return snapshot;
+    }
+
+    @Override
+    public void reset() {
+        mutations.set(0);
+        events.set(0);
+        slowEvents.set(0);
+        timings.clear();
+    }
+}
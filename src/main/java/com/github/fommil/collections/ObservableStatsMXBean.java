@@ -0,0 +1,40 @@
+// Copyright (c) 2013 Samuel Halliday
+package com.github.fommil.collections;
+
+import java.util.List;
+
+/**
+ * JMX view of {@link ObservableStats}.
+ *
+ * @author Samuel Halliday
+ */
+public interface ObservableStatsMXBean {
+
+    public String getName();
+
+    /**
+     * @return number of changes made to the observable.
+     */
+    public long getMutations();
+
+    /**
+     * @return number of times that a listener was told about a change.
+     */
+    public long getEvents();
+
+    /**
+     * @return number of events that took longer than the slow threshold.
+     */
+    public long getSlowEvents();
+
+    public long getSlowThresholdMicros();
+
+    public void setSlowThresholdMicros(long micros);
+
+    /**
+     * @return a snapshot of the dispatch times of each listener.
+     */
+    public List<ObservableStats.ListenerTiming> getListenerTimings();
+
+    public void reset();
+}
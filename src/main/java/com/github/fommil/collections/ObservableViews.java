@@ -0,0 +1,436 @@
+// Copyright (c) 2013 Samuel Halliday
+package com.github.fommil.collections;
+
+import com.github.fommil.collections.ObservableCollection.CollectionListener;
+import com.github.fommil.collections.ObservableMap.MapListener;
+import com.google.common.base.Function;
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multiset;
+import com.google.common.collect.Sets;
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+
+import java.util.AbstractMap.SimpleEntry;
+import java.util.*;
+import java.util.Map.Entry;
+
+/**
+ * Incrementally maintained views of {@link ObservableSet}s and {@link ObservableMap}s.
+ * <p>
+ * Every view listens to its source and is updated from the elements mentioned in
+ * each {@link ObservableCollection.Change} (or {@link ObservableMap.Change}),
+ * i.e. at a cost proportional to the size of the change rather than the size of
+ * the source. Views are themselves observable and so may be chained, e.g. a
+ * {@link #sum(ObservableCollection, Function)} of a {@link #filter(ObservableSet, Predicate)}.
+ * <p>
+ * Because bulk changes may mention elements which were not really added (or removed),
+ * the touched elements are reconciled against the source after each change. Views
+ * therefore always agree with their source, and the changes that they emit only
+ * contain elements whose membership really changed.
+ * <p>
+ * Views are intended to be read only: changing them directly will not change the
+ * source and will be overwritten by later changes. Views remain registered with
+ * their source for its lifetime. Functions and predicates must be consistent, as
+ * they are re-evaluated when elements are removed.
+ *
+ * @author Samuel Halliday
+ * @see Reduction
+ */
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+public final class ObservableViews {
+
+    // marks collections whose changes contain exactly the elements that changed
+    interface ExactChanges {
+    }
+
+    private static final class FilteredSet<T> extends ObservableSet<T> implements ExactChanges {
+        FilteredSet() {
+            super(Sets.<T>newHashSet());
+        }
+    }
+
+    private static final class TransformedCollection<T> extends ObservableCollection<T> implements ExactChanges {
+        TransformedCollection() {
+            super(HashMultiset.<T>create());
+        }
+    }
+
+    /**
+     * @param <T>
+     * @param source
+     * @param predicate
+     * @return a live view of the elements in {@code source} that satisfy the {@code predicate}.
+     */
+    public static <T> ObservableSet<T> filter(final ObservableSet<T> source, final Predicate<? super T> predicate) {
+        Preconditions.checkNotNull(source);
+        Preconditions.checkNotNull(predicate);
+        final FilteredSet<T> view = new FilteredSet<T>();
+        for (T element : source) {
+            if (predicate.apply(element)) {
+                view.delegate.add(element);
+            }
+        }
+        source.addCollectionListener(new CollectionListener<T>() {
+            @Override
+            public void onCollectionChanged(ObservableCollection.Change<T> change) {
+                List<T> added = Lists.newArrayList();
+                List<T> removed = Lists.newArrayList();
+                for (T element : touched(change)) {
+                    if (source.contains(element) && predicate.apply(element)) {
+                        if (view.delegate.add(element)) {
+                            added.add(element);
+                        }
+                    } else if (view.delegate.remove(element)) {
+                        removed.add(element);
+                    }
+                }
+                fire(view, added, removed);
+            }
+        });
+        return view;
+    }
+
+    /**
+     * The returned {@link ObservableCollection} may contain duplicates, if the
+     * {@code function} maps several elements to the same value. The function is
+     * only called once for each element and its result is remembered until the
+     * element is removed from the {@code source}.
+     *
+     * @param <F>
+     * @param <T>
+     * @param source
+     * @param function
+     * @return a live view of {@code function} applied to every element in {@code source}.
+     */
+    public static <F, T> ObservableCollection<T> transform(final ObservableSet<F> source, final Function<? super F, ? extends T> function) {
+        Preconditions.checkNotNull(source);
+        Preconditions.checkNotNull(function);
+        final TransformedCollection<T> view = new TransformedCollection<T>();
+        final Map<F, T> memo = Maps.newHashMap();
+        for (F element : source) {
+            T value = function.apply(element);
+            memo.put(element, value);
+            view.delegate.add(value);
+        }
+        source.addCollectionListener(new CollectionListener<F>() {
+            @Override
+            public void onCollectionChanged(ObservableCollection.Change<F> change) {
+                List<T> added = Lists.newArrayList();
+                List<T> removed = Lists.newArrayList();
+                for (F element : touched(change)) {
+                    boolean present = source.contains(element);
+                    if (present && !memo.containsKey(element)) {
+                        T value = function.apply(element);
+                        memo.put(element, value);
+                        view.delegate.add(value);
+                        added.add(value);
+                    } else if (!present && memo.containsKey(element)) {
+                        T value = memo.remove(element);
+                        view.delegate.remove(value);
+                        removed.add(value);
+                    }
+                }
+                fire(view, added, removed);
+            }
+        });
+        return view;
+    }
+
+    /**
+     * Groups the elements of the {@code source} by a key. The groups are themselves
+     * {@link ObservableSet}s (which are never empty) and changes to the key set of the
+     * returned {@link ObservableMap} are fired after the changes to the groups.
+     *
+     * @param <K>
+     * @param <T>
+     * @param source
+     * @param key
+     * @return a live multimap of the {@code source}, as grouped by {@code key}.
+     */
+    public static <K, T> ObservableMap<K, ObservableSet<T>> groupBy(final ObservableSet<T> source, final Function<? super T, ? extends K> key) {
+        Preconditions.checkNotNull(source);
+        Preconditions.checkNotNull(key);
+        final ObservableMap<K, ObservableSet<T>> view = ObservableMap.newObservableHashMap();
+        for (T element : source) {
+            K group = key.apply(element);
+            ObservableSet<T> members = view.delegate.get(group);
+            if (members == null) {
+                members = new FilteredSet<T>();
+                view.delegate.put(group, members);
+            }
+            members.delegate.add(element);
+        }
+        source.addCollectionListener(new CollectionListener<T>() {
+            @Override
+            public void onCollectionChanged(ObservableCollection.Change<T> change) {
+                Map<K, List<T>> added = Maps.newLinkedHashMap();
+                Map<K, List<T>> removed = Maps.newLinkedHashMap();
+                List<Entry<K, ObservableSet<T>>> groupsAdded = Lists.newArrayList();
+                for (T element : touched(change)) {
+                    K group = key.apply(element);
+                    ObservableSet<T> members = view.delegate.get(group);
+                    if (source.contains(element)) {
+                        if (members == null) {
+                            members = new FilteredSet<T>();
+                            view.delegate.put(group, members);
+                            groupsAdded.add(new SimpleEntry<K, ObservableSet<T>>(group, members));
+                        }
+                        if (members.delegate.add(element)) {
+                            record(added, group, element);
+                        }
+                    } else if (members != null && members.delegate.remove(element)) {
+                        record(removed, group, element);
+                    }
+                }
+                Set<K> groups = Sets.union(added.keySet(), removed.keySet()).immutableCopy();
+                List<Entry<K, ObservableSet<T>>> groupsRemoved = Lists.newArrayList();
+                for (K group : groups) {
+                    ObservableSet<T> members = view.delegate.get(group);
+                    fire(members, get(added, group), get(removed, group));
+                    if (members.isEmpty()) {
+                        view.delegate.remove(group);
+                        groupsRemoved.add(new SimpleEntry<K, ObservableSet<T>>(group, members));
+                    }
+                }
+                fire(view, groupsAdded, groupsRemoved);
+            }
+        });
+        return view;
+    }
+
+    /**
+     * @param <K>
+     * @param <V>
+     * @param source
+     * @param predicate
+     * @return a live view of the entries in {@code source} with values that satisfy the {@code predicate}.
+     */
+    public static <K, V> ObservableMap<K, V> filterValues(final ObservableMap<K, V> source, final Predicate<? super V> predicate) {
+        Preconditions.checkNotNull(source);
+        Preconditions.checkNotNull(predicate);
+        final ObservableMap<K, V> view = ObservableMap.newObservableHashMap();
+        for (Entry<K, V> entry : source.entrySet()) {
+            if (predicate.apply(entry.getValue())) {
+                view.delegate.put(entry.getKey(), entry.getValue());
+            }
+        }
+        source.addMapListener(new MapListener<K, V>() {
+            @Override
+            public void onMapChanged(ObservableMap.Change<K, V> change) {
+                Set<K> keys = Sets.newLinkedHashSet();
+                for (Entry<K, V> entry : change.getEntriesRemoved()) {
+                    keys.add(entry.getKey());
+                }
+                for (Entry<K, V> entry : change.getEntriesAdded()) {
+                    keys.add(entry.getKey());
+                }
+                List<Entry<K, V>> added = Lists.newArrayList();
+                List<Entry<K, V>> removed = Lists.newArrayList();
+                for (K key : keys) {
+                    boolean had = view.delegate.containsKey(key);
+                    V old = view.delegate.get(key);
+                    V value = source.delegate.get(key);
+                    boolean keep = source.delegate.containsKey(key) && predicate.apply(value);
+                    if (keep && had && Objects.equal(old, value)) {
+                        continue;
+                    }
+                    if (had) {
+                        view.delegate.remove(key);
+                        removed.add(new SimpleEntry<K, V>(key, old));
+                    }
+                    if (keep) {
+                        view.delegate.put(key, value);
+                        added.add(new SimpleEntry<K, V>(key, value));
+                    }
+                }
+                fire(view, added, removed);
+            }
+        });
+        return view;
+    }
+
+    /**
+     * @param <T>
+     * @param source an {@link ObservableSet}, or a view from this class.
+     * @param predicate
+     * @return the live number of elements in {@code source} that satisfy the {@code predicate}.
+     */
+    public static <T> Reduction<T, Integer> count(ObservableCollection<T> source, final Predicate<? super T> predicate) {
+        Preconditions.checkNotNull(predicate);
+        return register(source, new Reduction<T, Integer>() {
+            private int count;
+
+            @Override
+            protected void added(T element) {
+                if (predicate.apply(element)) {
+                    count++;
+                }
+            }
+
+            @Override
+            protected void removed(T element) {
+                if (predicate.apply(element)) {
+                    count--;
+                }
+            }
+
+            @Override
+            public Integer get() {
+                return count;
+            }
+        });
+    }
+
+    /**
+     * Note that floating point sums will accumulate rounding errors over many changes.
+     *
+     * @param <T>
+     * @param source an {@link ObservableSet}, or a view from this class.
+     * @param function
+     * @return the live sum of {@code function} over the {@code source}.
+     */
+    public static <T> Reduction<T, Double> sum(ObservableCollection<T> source, final Function<? super T, ? extends Number> function) {
+        Preconditions.checkNotNull(function);
+        return register(source, new Reduction<T, Double>() {
+            private double sum;
+
+            @Override
+            protected void added(T element) {
+                sum += function.apply(element).doubleValue();
+            }
+
+            @Override
+            protected void removed(T element) {
+                sum -= function.apply(element).doubleValue();
+            }
+
+            @Override
+            public Double get() {
+                return sum;
+            }
+        });
+    }
+
+    /**
+     * Implemented as a sorted map of the distinct (by the comparator) values: changes are
+     * {@code O(log n)} and memory is proportional to the size of the source. Of elements that
+     * compare as equal, any one that is in the source may be returned.
+     *
+     * @param <T>
+     * @param source an {@link ObservableSet}, or a view from this class.
+     * @param comparator
+     * @return the live minimum element of the {@code source}, or {@code null} if empty.
+     */
+    public static <T> Reduction<T, T> min(ObservableCollection<T> source, Comparator<? super T> comparator) {
+        Preconditions.checkNotNull(comparator);
+        return register(source, new OrderedReduction<T>(comparator));
+    }
+
+    /**
+     * @param <T>
+     * @param source
+     * @param comparator
+     * @return the live maximum element of the {@code source}, or {@code null} if empty.
+     * @see #min(ObservableCollection, Comparator)
+     */
+    public static <T> Reduction<T, T> max(ObservableCollection<T> source, Comparator<? super T> comparator) {
+        Preconditions.checkNotNull(comparator);
+        return register(source, new OrderedReduction<T>(Collections.reverseOrder(comparator)));
+    }
+
+    private static final class OrderedReduction<T> extends Reduction<T, T> {
+
+        // elements that compare as equal are kept apart, so that ties are removed exactly
+        private final TreeMap<T, Multiset<T>> sorted;
+
+        OrderedReduction(Comparator<? super T> comparator) {
+            sorted = new TreeMap<T, Multiset<T>>(comparator);
+        }
+
+        @Override
+        protected void added(T element) {
+            Multiset<T> equal = sorted.get(element);
+            if (equal == null) {
+                equal = HashMultiset.create();
+                sorted.put(element, equal);
+            }
+            equal.add(element);
+        }
+
+        @Override
+        protected void removed(T element) {
+            Multiset<T> equal = sorted.get(element);
+            if (equal != null && equal.remove(element) && equal.isEmpty()) {
+                sorted.remove(element);
+            }
+        }
+
+        @Override
+        public T get() {
+            if (sorted.isEmpty()) {
+                return null;
+            }
+            return sorted.firstEntry().getValue().iterator().next();
+        }
+    }
+
+    // raw ObservableSets may report changes that did not happen, so are normalised by a filter.
+    // Other raw collections (e.g. lists) may report one removal for many occurrences, which
+    // cannot be reconciled incrementally.
+    private static <T, R> Reduction<T, R> register(ObservableCollection<T> source, Reduction<T, R> reduction) {
+        Preconditions.checkNotNull(source);
+        if (!(source instanceof ExactChanges)) {
+            Preconditions.checkArgument(source instanceof ObservableSet,
+                    "reductions require an ObservableSet or a view, not %s", source.getClass());
+            source = filter((ObservableSet<T>) source, Predicates.<T>alwaysTrue());
+        }
+        for (T element : source) {
+            reduction.added(element);
+        }
+        source.addCollectionListener(reduction);
+        return reduction;
+    }
+
+    private static <T> Collection<T> touched(ObservableCollection.Change<T> change) {
+        Set<T> touched = Sets.newLinkedHashSet(change.getElementsRemoved());
+        touched.addAll(change.getElementsAdded());
+        return touched;
+    }
+
+    private static <K, T> void record(Map<K, List<T>> records, K key, T element) {
+        List<T> elements = records.get(key);
+        if (elements == null) {
+            elements = Lists.newArrayList();
+            records.put(key, elements);
+        }
+        elements.add(element);
+    }
+
+    private static <K, T> List<T> get(Map<K, List<T>> records, K key) {
+        List<T> elements = records.get(key);
+        if (elements == null) {
+            return Collections.emptyList();
+        }
+        return elements;
+    }
+
+    private static <T> void fire(ObservableCollection<T> view, Collection<T> added, Collection<T> removed) {
+        if (added.isEmpty() && removed.isEmpty()) {
+            return;
+        }
+        view.fireOnCollectionChanged(new ObservableCollection.Change<T>(view, added, removed, !added.isEmpty(), !removed.isEmpty()));
+    }
+
+    private static <K, V> void fire(ObservableMap<K, V> view, Collection<Entry<K, V>> added, Collection<Entry<K, V>> removed) {
+        if (added.isEmpty() && removed.isEmpty()) {
+            return;
+        }
+        view.fireOnMapChanged(new ObservableMap.Change<K, V>(view, added, removed, !added.isEmpty(), !removed.isEmpty()));
+    }
+}
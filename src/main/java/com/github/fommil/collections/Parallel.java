@@ -0,0 +1,76 @@
+// Copyright (c) 2013 Samuel Halliday
+package com.github.fommil.collections;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Fork/join over partitions of a list, for the parallel bulk operations.
+ *
+ * @author Samuel Halliday
+ */
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+final class Parallel {
+
+    // smallest partition that is worth forking
+    static final int GRAIN = 4096;
+
+    /**
+     * @param pool
+     * @param items    which must not be changed during the call.
+     * @param function called concurrently, so must be thread safe.
+     * @return the non-{@code null} results of the function, in the order of the items.
+     */
+    static <F, T> List<T> collect(ForkJoinPool pool, List<F> items, Function<? super F, ? extends T> function) {
+        Preconditions.checkNotNull(pool);
+        Preconditions.checkNotNull(function);
+        Preconditions.checkArgument(items instanceof RandomAccess);
+        return pool.invoke(new Collect<F, T>(items, function, 0, items.size()));
+    }
+
+    private static final class Collect<F, T> extends RecursiveTask<List<T>> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<F> items;
+
+        private final Function<? super F, ? extends T> function;
+
+        private final int from, to;
+
+        private Collect(List<F> items, Function<? super F, ? extends T> function, int from, int to) {
+            this.items = items;
+            this.function = function;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected List<T> compute() {
+            if (to - from <= GRAIN) {
+                List<T> results = Lists.newArrayList();
+                for (int i = from; i < to; i++) {
+                    T result = function.apply(items.get(i));
+                    if (result != null) {
+                        results.add(result);
+                    }
+                }
+                return results;
+            }
+            int middle = (from + to) >>> 1;
+            Collect<F, T> left = new Collect<F, T>(items, function, from, middle);
+            left.fork();
+            List<T> right = new Collect<F, T>(items, function, middle, to).compute();
+            List<T> results = left.join();
+            results.addAll(right);
+            return results;
+        }
+    }
+}
@@ -0,0 +1,317 @@
+// Copyright (c) 2013 Samuel Halliday
+package com.github.fommil.collections;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Lists;
+
+import javax.annotation.concurrent.Immutable;
+import java.util.*;
+
+/**
+ * An immutable {@link Set} implemented as a Hash Array Mapped Trie. The
+ * {@link #plus(Object)} and {@link #minus(Object)} methods return a new
+ * set which shares all but {@code O(log n)} of its structure with the
+ * original, so that keeping old versions is cheap.
+ * <p>
+ * Standard mutator methods throw {@link UnsupportedOperationException}.
+ *
+ * @param <T>
+ * @author Samuel Halliday
+ * @see SnapshotHashSet
+ * @see <a href="http://lampwww.epfl.ch/papers/idealhashtrees.pdf">Ideal Hash Trees</a>
+ */
+@Immutable
+public final class PersistentHashSet<T> extends AbstractSet<T> {
+
+    private static final int BITS = 5, MASK = (1 << BITS) - 1, MAX_SHIFT = 30;
+
+    @SuppressWarnings("rawtypes")
+    private static final PersistentHashSet EMPTY = new PersistentHashSet(null, 0);
+
+    // slots hold either elements or child nodes
+    private static abstract class Node {
+        final Object[] slots;
+
+        Node(Object[] slots) {
+            this.slots = slots;
+        }
+
+        abstract boolean contains(Object element, int hash, int shift);
+
+        // returns this if unchanged
+        abstract Node plus(Object element, int hash, int shift);
+
+        // returns this if unchanged, null if empty
+        abstract Node minus(Object element, int hash, int shift);
+
+        // the only element, if this node holds nothing else, so it may be inlined into its parent
+        Object single() {
+            return slots.length == 1 && !(slots[0] instanceof Node) ? slots[0] : null;
+        }
+    }
+
+    private static final class BitmapNode extends Node {
+        final int bitmap;
+
+        BitmapNode(int bitmap, Object[] slots) {
+            super(slots);
+            this.bitmap = bitmap;
+        }
+
+        @Override
+        boolean contains(Object element, int hash, int shift) {
+            int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return false;
+            }
+            Object slot = slots[index(bit)];
+            if (slot instanceof Node) {
+                return ((Node) slot).contains(element, hash, shift + BITS);
+            }
+            return slot.equals(element);
+        }
+
+        @Override
+        Node plus(Object element, int hash, int shift) {
+            int bit = bit(hash, shift);
+            int index = index(bit);
+            if ((bitmap & bit) == 0) {
+                Object[] copy = new Object[slots.length + 1];
+                System.arraycopy(slots, 0, copy, 0, index);
+                copy[index] = element;
+                System.arraycopy(slots, index, copy, index + 1, slots.length - index);
+                return new BitmapNode(bitmap | bit, copy);
+            }
+            Object slot = slots[index];
+            Node child;
+            if (slot instanceof Node) {
+                child = ((Node) slot).plus(element, hash, shift + BITS);
+                if (child == slot) {
+                    return this;
+                }
+            } else if (slot.equals(element)) {
+                return this;
+            } else {
+                child = pair(slot, hash(slot), element, hash, shift + BITS);
+            }
+            return replace(index, child);
+        }
+
+        @Override
+        Node minus(Object element, int hash, int shift) {
+            int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return this;
+            }
+            int index = index(bit);
+            Object slot = slots[index];
+            if (slot instanceof Node) {
+                Node child = ((Node) slot).minus(element, hash, shift + BITS);
+                if (child == slot) {
+                    return this;
+                }
+                if (child != null) {
+                    Object single = child.single();
+                    return replace(index, single == null ? child : single);
+                }
+            } else if (!slot.equals(element)) {
+                return this;
+            }
+            if (slots.length == 1) {
+                return null;
+            }
+            Object[] copy = new Object[slots.length - 1];
+            System.arraycopy(slots, 0, copy, 0, index);
+            System.arraycopy(slots, index + 1, copy, index, copy.length - index);
+            return new BitmapNode(bitmap & ~bit, copy);
+        }
+
+        private Node replace(int index, Object slot) {
+            Object[] copy = slots.clone();
+            copy[index] = slot;
+            return new BitmapNode(bitmap, copy);
+        }
+
+        private int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+    }
+
+    // distinct elements with identical hash codes
+    private static final class CollisionNode extends Node {
+        final int hash;
+
+        CollisionNode(int hash, Object[] slots) {
+            super(slots);
+            this.hash = hash;
+        }
+
+        @Override
+        boolean contains(Object element, int hash, int shift) {
+            return hash == this.hash && indexOf(element) >= 0;
+        }
+
+        @Override
+        Node plus(Object element, int hash, int shift) {
+            if (hash != this.hash) {
+                // only shares a prefix with the colliding hashes, so branch at this level
+                return new BitmapNode(bit(this.hash, shift), new Object[]{this}).plus(element, hash, shift);
+            }
+            if (indexOf(element) >= 0) {
+                return this;
+            }
+            Object[] copy = Arrays.copyOf(slots, slots.length + 1);
+            copy[slots.length] = element;
+            return new CollisionNode(hash, copy);
+        }
+
+        @Override
+        Node minus(Object element, int hash, int shift) {
+            int index = hash == this.hash ? indexOf(element) : -1;
+            if (index < 0) {
+                return this;
+            }
+            if (slots.length == 1) {
+                return null;
+            }
+            Object[] copy = new Object[slots.length - 1];
+            System.arraycopy(slots, 0, copy, 0, index);
+            System.arraycopy(slots, index + 1, copy, index, copy.length - index);
+            return new CollisionNode(hash, copy);
+        }
+
+        private int indexOf(Object element) {
+            for (int i = 0; i < slots.length; i++) {
+                if (slots[i].equals(element)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    private static Node pair(Object a, int hashA, Object b, int hashB, int shift) {
+        if (hashA == hashB || shift > MAX_SHIFT) {
+            return new CollisionNode(hashA, new Object[]{a, b});
+        }
+        int bitA = bit(hashA, shift);
+        int bitB = bit(hashB, shift);
+        if (bitA == bitB) {
+            return new BitmapNode(bitA, new Object[]{pair(a, hashA, b, hashB, shift + BITS)});
+        }
+        Object[] slots = ((hashA >>> shift) & MASK) < ((hashB >>> shift) & MASK) ? new Object[]{a, b} : new Object[]{b, a};
+        return new BitmapNode(bitA | bitB, slots);
+    }
+
+    private static int bit(int hash, int shift) {
+        return 1 << ((hash >>> shift) & MASK);
+    }
+
+    private static int hash(Object element) {
+        int h = element.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @param <T>
+     * @return the empty set.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> PersistentHashSet<T> of() {
+        return (PersistentHashSet<T>) EMPTY;
+    }
+
+    /**
+     * @param <T>
+     * @param elements
+     * @return a set containing the elements.
+     */
+    public static <T> PersistentHashSet<T> copyOf(Iterable<? extends T> elements) {
+        PersistentHashSet<T> set = of();
+        for (T element : elements) {
+            set = set.plus(element);
+        }
+        return set;
+    }
+
+    private final Node root;
+
+    private final int size;
+
+    private PersistentHashSet(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * @param element not {@code null}.
+     * @return a set which also contains the element, or this set if it already did.
+     */
+    public PersistentHashSet<T> plus(T element) {
+        int hash = hash(element);
+        if (root == null) {
+            return new PersistentHashSet<T>(new BitmapNode(bit(hash, 0), new Object[]{element}), 1);
+        }
+        Node updated = root.plus(element, hash, 0);
+        if (updated == root) {
+            return this;
+        }
+        return new PersistentHashSet<T>(updated, size + 1);
+    }
+
+    /**
+     * @param element
+     * @return a set which does not contain the element, or this set if it never did.
+     */
+    public PersistentHashSet<T> minus(Object element) {
+        if (root == null || element == null) {
+            return this;
+        }
+        Node updated = root.minus(element, hash(element), 0);
+        if (updated == root) {
+            return this;
+        }
+        if (updated == null) {
+            return of();
+        }
+        return new PersistentHashSet<T>(updated, size - 1);
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return root != null && o != null && root.contains(o, hash(o), 0);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        final Deque<Iterator<Object>> stack = Lists.newLinkedList();
+        if (root != null) {
+            stack.push(Arrays.asList(root.slots).iterator());
+        }
+        return new AbstractIterator<T>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            protected T computeNext() {
+                while (!stack.isEmpty()) {
+                    Iterator<Object> top = stack.peek();
+                    if (!top.hasNext()) {
+                        stack.pop();
+                        continue;
+                    }
+                    Object slot = top.next();
+                    if (slot instanceof Node) {
+                        stack.push(Arrays.asList(((Node) slot).slots).iterator());
+                    } else {
+                        return (T) slot;
+                    }
+                }
+                return endOfData();
+            }
+        };
+    }
+}
@@ -0,0 +1,188 @@
+// Copyright (c) 2013 Samuel Halliday
+package com.github.fommil.collections;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Ints;
+import lombok.AccessLevel;
+import lombok.RequiredArgsConstructor;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.util.*;
+
+/**
+ * Index of objects by ranges of keys, answering which ranges contain a key
+ * in {@code O(log n + matched)}.
+ * <p>
+ * The boundaries of all the ranges split the keys into elementary segments,
+ * each of which holds the objects whose range covers it. Adding or removing a
+ * range is proportional to the number of segments that it spans.
+ *
+ * @param <K>
+ * @param <H> the indexed objects, compared by equality.
+ * @author Samuel Halliday
+ */
+@NotThreadSafe
+class RangeIndex<K, H> {
+
+    /**
+     * A boundary between keys: {@link #below(Object)} or {@link #above(Object)}
+     * a key, or below (or above) all keys.
+     *
+     * @param <K>
+     */
+    @RequiredArgsConstructor(access = AccessLevel.PRIVATE)
+    static final class Cut<K> {
+        private static final Cut<?> BOTTOM = new Cut<Object>(null, -2);
+
+        private static final Cut<?> TOP = new Cut<Object>(null, 2);
+
+        private final K key;
+
+        private final int type;
+
+        @SuppressWarnings("unchecked")
+        static <K> Cut<K> bottom() {
+            return (Cut<K>) BOTTOM;
+        }
+
+        @SuppressWarnings("unchecked")
+        static <K> Cut<K> top() {
+            return (Cut<K>) TOP;
+        }
+
+        static <K> Cut<K> below(K key) {
+            return new Cut<K>(key, -1);
+        }
+
+        static <K> Cut<K> above(K key) {
+            return new Cut<K>(key, 1);
+        }
+
+        /**
+         * @param key
+         * @param inclusive
+         * @return the lower bound of a range.
+         */
+        static <K> Cut<K> lower(K key, boolean inclusive) {
+            return inclusive ? below(key) : above(key);
+        }
+
+        /**
+         * @param key
+         * @param inclusive
+         * @return the upper bound of a range.
+         */
+        static <K> Cut<K> upper(K key, boolean inclusive) {
+            return inclusive ? above(key) : below(key);
+        }
+
+        private boolean isBounded() {
+            return type == -1 || type == 1;
+        }
+    }
+
+    // the lower and upper cuts of an indexed range
+    @RequiredArgsConstructor
+    private static final class Bounds<K> {
+        private final Cut<K> lower;
+
+        private final Cut<K> upper;
+    }
+
+    private final Comparator<? super K> comparator;
+
+    // segment from each cut until the next, BOTTOM is always present
+    private final NavigableMap<Cut<K>, Set<H>> segments;
+
+    private final Map<H, Bounds<K>> ranges = Maps.newLinkedHashMap();
+
+    /**
+     * @param comparator of the keys, never {@code null}.
+     */
+    RangeIndex(Comparator<? super K> comparator) {
+        this.comparator = Preconditions.checkNotNull(comparator);
+        segments = new TreeMap<Cut<K>, Set<H>>(new Comparator<Cut<K>>() {
+            @Override
+            public int compare(Cut<K> a, Cut<K> b) {
+                if (a.isBounded() && b.isBounded()) {
+                    int order = RangeIndex.this.comparator.compare(a.key, b.key);
+                    if (order != 0) {
+                        return order;
+                    }
+                }
+                return Ints.compare(a.type, b.type);
+            }
+        });
+        segments.put(Cut.<K>bottom(), Sets.<H>newLinkedHashSet());
+    }
+
+    /**
+     * @param handle which must not already be indexed.
+     * @param lower
+     * @param upper
+     */
+    void add(H handle, Cut<K> lower, Cut<K> upper) {
+        Preconditions.checkNotNull(handle);
+        Preconditions.checkArgument(segments.comparator().compare(lower, upper) <= 0, "empty range");
+        Preconditions.checkState(!ranges.containsKey(handle), "already indexed");
+        ranges.put(handle, new Bounds<K>(lower, upper));
+        split(lower);
+        split(upper);
+        for (Set<H> segment : segments.subMap(lower, true, upper, false).values()) {
+            segment.add(handle);
+        }
+    }
+
+    /**
+     * @param handle
+     * @return {@code true} if the handle was indexed.
+     */
+    boolean remove(H handle) {
+        Bounds<K> range = ranges.remove(handle);
+        if (range == null) {
+            return false;
+        }
+        for (Set<H> segment : segments.subMap(range.lower, true, range.upper, false).values()) {
+            segment.remove(handle);
+        }
+        merge(range.lower);
+        merge(range.upper);
+        return true;
+    }
+
+    /**
+     * @param key
+     * @return the handles whose range contains the key, which must not be
+     *         changed, or retained after changing this index.
+     */
+    Set<H> get(K key) {
+        return segments.floorEntry(Cut.below(key)).getValue();
+    }
+
+    /**
+     * @return all the indexed handles.
+     */
+    Set<H> handles() {
+        return Collections.unmodifiableSet(ranges.keySet());
+    }
+
+    private void split(Cut<K> cut) {
+        if (!cut.isBounded() || segments.containsKey(cut)) {
+            return;
+        }
+        segments.put(cut, Sets.newLinkedHashSet(segments.floorEntry(cut).getValue()));
+    }
+
+    // rejoins segments that are no longer separated by a boundary
+    private void merge(Cut<K> cut) {
+        Set<H> segment = segments.get(cut);
+        if (!cut.isBounded() || segment == null) {
+            return;
+        }
+        if (segments.lowerEntry(cut).getValue().equals(segment)) {
+            segments.remove(cut);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+// Copyright (c) 2013 Samuel Halliday
+package com.github.fommil.collections;
+
+import com.github.fommil.collections.ObservableCollection.Change;
+import com.github.fommil.collections.ObservableCollection.CollectionListener;
+
+import java.beans.PropertyChangeListener;
+import java.beans.PropertyChangeSupport;
+
+/**
+ * An aggregate value of an {@link ObservableCollection} which is updated
+ * from each {@link Change}, rather than being recalculated from scratch.
+ * A {@link java.beans.PropertyChangeEvent} named {@value #PROPERTY} is fired
+ * every time the value changes.
+ * <p>
+ * Instances are obtained from {@link ObservableViews}.
+ *
+ * @param <T> the element type of the source
+ * @param <R> the type of the aggregate value
+ * @author Samuel Halliday
+ */
+public abstract class Reduction<T, R> implements CollectionListener<T> {
+
+    public static final String PROPERTY = "value";
+
+    private final PropertyChangeSupport pcs = new PropertyChangeSupport(this);
+
+    /**
+     * @return the current value.
+     */
+    public abstract R get();
+
+    protected abstract void added(T element);
+
+    protected abstract void removed(T element);
+
+    @Override
+    public void onCollectionChanged(Change<T> change) {
+        R old = get();
+        for (T element : change.getElementsRemoved()) {
+            removed(element);
+        }
+        for (T element : change.getElementsAdded()) {
+            added(element);
+        }
+        pcs.firePropertyChange(PROPERTY, old, get());
+    }
+
+    public void addPropertyChangeListener(PropertyChangeListener listener) {
+        pcs.addPropertyChangeListener(listener);
+    }
+
+    public void removePropertyChangeListener(PropertyChangeListener listener) {
+        pcs.removePropertyChangeListener(listener);
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(get());
+    }
+}
@@ -0,0 +1,101 @@
+// Copyright (c) 2013 Samuel Halliday
+package com.github.fommil.collections;
+
+import com.google.common.base.Preconditions;
+
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+
+/**
+ * A hash {@link java.util.Set} which is backed by a {@link PersistentHashSet},
+ * allowing {@code O(1)} snapshots that share structure with the live set.
+ * <p>
+ * Iterators work on a snapshot of the set taken when they were created,
+ * so they never throw {@link java.util.ConcurrentModificationException}
+ * and do not see later changes. {@link Iterator#remove()} removes the
+ * element from the live set.
+ * <p>
+ * Changes must be made by one thread at a time, but any number of threads
+ * may read (or take snapshots) without locking.
+ *
+ * @param <T>
+ * @author Samuel Halliday
+ * @see ObservableSet#newObservableSnapshotSet()
+ */
+public class SnapshotHashSet<T> extends AbstractSet<T> implements Snapshottable<T> {
+
+    private volatile PersistentHashSet<T> current = PersistentHashSet.of();
+
+    @Override
+    public PersistentHashSet<T> snapshot() {
+        return current;
+    }
+
+    @Override
+    public boolean add(T t) {
+        Preconditions.checkNotNull(t);
+        PersistentHashSet<T> before = current;
+        current = before.plus(t);
+        return current != before;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        PersistentHashSet<T> before = current;
+        current = before.minus(o);
+        return current != before;
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends T> c) {
+        PersistentHashSet<T> before = current;
+        PersistentHashSet<T> after = before;
+        for (T element : c) {
+            after = after.plus(Preconditions.checkNotNull(element));
+        }
+        current = after;
+        return after != before;
+    }
+
+    @Override
+    public void clear() {
+        current = PersistentHashSet.of();
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return current.contains(o);
+    }
+
+    @Override
+    public int size() {
+        return current.size();
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        final Iterator<T> snapshot = current.iterator();
+        return new Iterator<T>() {
+            private T last;
+
+            @Override
+            public boolean hasNext() {
+                return snapshot.hasNext();
+            }
+
+            @Override
+            public T next() {
+                last = snapshot.next();
+                return last;
+            }
+
+            @Override
+            public void remove() {
+                Preconditions.checkState(last != null);
+                SnapshotHashSet.this.remove(last);
+                last = null;
+            }
+        };
+    }
+}
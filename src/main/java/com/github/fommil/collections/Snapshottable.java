@@ -0,0 +1,23 @@
+// Copyright (c) 2013 Samuel Halliday
+package com.github.fommil.collections;
+
+import java.util.Collection;
+
+/**
+ * A {@link Collection} that can cheaply provide immutable snapshots of its
+ * contents. When used as the delegate of an {@link ObservableCollection},
+ * every {@link ObservableCollection.Change} carries the snapshots from
+ * before and after the change.
+ *
+ * @param <T>
+ * @author Samuel Halliday
+ * @see SnapshotHashSet
+ */
+public interface Snapshottable<T> extends Collection<T> {
+
+    /**
+     * @return an immutable view of the current contents, which will
+     * not be affected by later changes.
+     */
+    public Collection<T> snapshot();
+}
@@ -0,0 +1,361 @@
+// Copyright (c) 2013 Samuel Halliday
+package com.github.fommil.jpa;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.java.Log;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.Closeable;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+
+/**
+ * Asynchronous facade to a {@link CrudDao}, so that callers need not block on the database.
+ * Operations run on a bounded executor, e.g. from {@link #newExecutor(int, int)}.
+ * <p>
+ * Optionally, single entity creates and updates may be written behind: they are queued
+ * and written by a background thread in batches of up to {@code maxBatch} entities, each
+ * batch in a single transaction (i.e. group commit). A batch is written once it is full,
+ * or when its oldest write has waited for {@code maxLatency}. The returned futures complete
+ * when the batch commits, or all fail together if it does not.
+ *
+ * @param <K>
+ * @param <T>
+ * @author Samuel Halliday
+ */
+@Log
+@ThreadSafe
+public class AsyncCrudDao<K, T> implements Closeable {
+
+    /**
+     * Operations are rejected, rather than run by the caller, when the executor is
+     * overloaded: a caller within a {@link UnitOfWork} would otherwise join its transaction.
+     *
+     * @param threads maximum number of concurrent operations, typically no more than
+     *                the size of the database connection pool.
+     * @param queue   maximum number of waiting operations, beyond which operations are
+     *                rejected with a {@link RejectedExecutionException}.
+     * @return
+     */
+    public static ExecutorService newExecutor(int threads, int queue) {
+        Preconditions.checkArgument(threads > 0);
+        Preconditions.checkArgument(queue > 0);
+        return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queue),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("AsyncCrudDao-%d").build(),
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    private static final long CLOSE_CHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    @RequiredArgsConstructor
+    private final class Write {
+        private final T entity;
+
+        private final boolean create;
+
+        private final long queued = System.nanoTime();
+
+        private final SettableFuture<T> future = SettableFuture.create();
+
+        private T write() {
+            if (create) {
+                dao.create(entity);
+                return entity;
+            }
+            return dao.update(entity);
+        }
+    }
+
+    private final CrudDao<K, T> dao;
+
+    private final ListeningExecutorService executor;
+
+    private final BlockingQueue<Write> writes;
+
+    private final int maxBatch;
+
+    private final long maxLatencyNanos;
+
+    private final Thread writer;
+
+    private volatile boolean closed;
+
+    /**
+     * @param dao
+     * @param executor which is not shutdown when this is closed.
+     */
+    public AsyncCrudDao(CrudDao<K, T> dao, ExecutorService executor) {
+        this.dao = Preconditions.checkNotNull(dao);
+        this.executor = MoreExecutors.listeningDecorator(executor);
+        writes = null;
+        maxBatch = 0;
+        maxLatencyNanos = 0;
+        writer = null;
+    }
+
+    /**
+     * Creates an instance that writes behind.
+     *
+     * @param dao
+     * @param executor   which is not shutdown when this is closed.
+     * @param maxBatch   maximum number of writes in a transaction. Callers will block
+     *                   if more than 16 batches are waiting to be written, until there
+     *                   is space or this is closed.
+     * @param maxLatency maximum time that a write waits for its batch to fill.
+     * @param unit
+     */
+    public AsyncCrudDao(CrudDao<K, T> dao, ExecutorService executor, int maxBatch, long maxLatency, TimeUnit unit) {
+        Preconditions.checkArgument(maxBatch > 0);
+        Preconditions.checkArgument(maxLatency >= 0);
+        this.dao = Preconditions.checkNotNull(dao);
+        this.executor = MoreExecutors.listeningDecorator(executor);
+        this.maxBatch = maxBatch;
+        this.maxLatencyNanos = unit.toNanos(maxLatency);
+        writes = new LinkedBlockingQueue<Write>(16 * maxBatch);
+        writer = new ThreadFactoryBuilder().setDaemon(true).setNameFormat("AsyncCrudDao-writer-%d").build()
+                .newThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        writeBehind();
+                    }
+                });
+        writer.start();
+    }
+
+    /**
+     * @param entity
+     * @return the entity once created, e.g. with its generated key.
+     * @see CrudDao#create(Object)
+     */
+    public ListenableFuture<T> create(final T entity) {
+        Preconditions.checkNotNull(entity);
+        if (writes != null) {
+            return queue(new Write(entity, true));
+        }
+        return executor.submit(new Callable<T>() {
+            @Override
+            public T call() {
+                dao.create(entity);
+                return entity;
+            }
+        });
+    }
+
+    /**
+     * @param collection
+     * @return
+     * @see CrudDao#create(Collection)
+     */
+    public ListenableFuture<Void> create(final Collection<T> collection) {
+        Preconditions.checkNotNull(collection);
+        return executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                dao.create(collection);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @param key
+     * @return
+     * @see CrudDao#read(Object)
+     */
+    public ListenableFuture<T> read(final K key) {
+        Preconditions.checkNotNull(key);
+        return executor.submit(new Callable<T>() {
+            @Override
+            public T call() {
+                return dao.read(key);
+            }
+        });
+    }
+
+    /**
+     * @param keys
+     * @return
+     * @see CrudDao#read(Collection)
+     */
+    public ListenableFuture<List<T>> read(final Collection<K> keys) {
+        Preconditions.checkNotNull(keys);
+        return executor.submit(new Callable<List<T>>() {
+            @Override
+            public List<T> call() {
+                return dao.read(keys);
+            }
+        });
+    }
+
+    /**
+     * @param entity
+     * @return
+     * @see CrudDao#update(Object)
+     */
+    public ListenableFuture<T> update(final T entity) {
+        Preconditions.checkNotNull(entity);
+        if (writes != null) {
+            return queue(new Write(entity, false));
+        }
+        return executor.submit(new Callable<T>() {
+            @Override
+            public T call() {
+                return dao.update(entity);
+            }
+        });
+    }
+
+    /**
+     * @param entities
+     * @return
+     * @see CrudDao#update(Collection)
+     */
+    public ListenableFuture<Set<T>> update(final Collection<T> entities) {
+        Preconditions.checkNotNull(entities);
+        return executor.submit(new Callable<Set<T>>() {
+            @Override
+            public Set<T> call() {
+                return dao.update(entities);
+            }
+        });
+    }
+
+    /**
+     * @param entity
+     * @return
+     * @see CrudDao#delete(Object)
+     */
+    public ListenableFuture<Void> delete(final T entity) {
+        Preconditions.checkNotNull(entity);
+        return executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                dao.delete(entity);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @param key
+     * @return
+     * @see CrudDao#deleteById(Object)
+     */
+    public ListenableFuture<Void> deleteById(final K key) {
+        Preconditions.checkNotNull(key);
+        return executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                dao.deleteById(key);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Writes any queued writes, and waits for them to commit. Writes that are queued
+     * concurrently with closing either commit or fail with an {@link IllegalStateException}.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if (writer == null) {
+            return;
+        }
+        // not interrupted, as some JDBC drivers close their connection if interrupted
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        List<Write> orphans = Lists.newArrayList();
+        writes.drainTo(orphans);
+        for (Write write : orphans) {
+            write.future.setException(new IllegalStateException("closed"));
+        }
+    }
+
+    private ListenableFuture<T> queue(Write write) {
+        try {
+            do {
+                Preconditions.checkState(!closed, "closed");
+            } while (!writes.offer(write, CLOSE_CHECK_NANOS, TimeUnit.NANOSECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            write.future.setException(e);
+            return write.future;
+        }
+        // the writer may have finished before the write was queued. If the write is
+        // still queued it is ours to fail, otherwise it has been taken to be written
+        // or failed by close.
+        if (closed && writes.remove(write)) {
+            write.future.setException(new IllegalStateException("closed"));
+        }
+        return write.future;
+    }
+
+    private void writeBehind() {
+        List<Write> batch = Lists.newArrayListWithCapacity(maxBatch);
+        while (!closed || !writes.isEmpty()) {
+            try {
+                Write first = writes.poll(CLOSE_CHECK_NANOS, TimeUnit.NANOSECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = first.queued + maxLatencyNanos;
+                // waits are bounded so that closing is noticed, and the queue drained
+                long remaining;
+                while (batch.size() < maxBatch && !closed && (remaining = deadline - System.nanoTime()) > 0) {
+                    Write next = writes.poll(Math.min(remaining, CLOSE_CHECK_NANOS), TimeUnit.NANOSECONDS);
+                    if (next != null) {
+                        batch.add(next);
+                    }
+                }
+            } catch (InterruptedException e) {
+                log.warning("interrupted, writing queued entities");
+                closed = true;
+            }
+            writes.drainTo(batch, maxBatch - batch.size());
+            if (!batch.isEmpty()) {
+                write(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void write(List<Write> batch) {
+        List<T> written = Lists.newArrayListWithCapacity(batch.size());
+        try {
+            UnitOfWork work = dao.beginWork();
+            try {
+                for (Write write : batch) {
+                    written.add(write.write());
+                }
+                work.commit();
+            } finally {
+                work.close();
+            }
+        } catch (RuntimeException e) {
+            log.log(Level.WARNING, "batch of " + batch.size() + " failed", e);
+            for (Write write : batch) {
+                write.future.setException(e);
+            }
+            return;
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            batch.get(i).future.set(written.get(i));
+        }
+    }
+}
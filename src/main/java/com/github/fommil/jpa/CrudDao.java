@@ -1,19 +1,62 @@
 // Copyright (c) 2013 Samuel Halliday
 package com.github.fommil.jpa;
 
+import com.google.common.base.Function;
+import com.google.common.base.Functions;
+import com.google.common.base.Joiner;
+import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
+import com.google.common.base.Splitter;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.io.Files;
+import com.google.common.primitives.Primitives;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
 import lombok.Cleanup;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
 import lombok.extern.java.Log;
 
+import javax.annotation.Nullable;
 import javax.persistence.*;
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.ManagedType;
+import javax.persistence.metamodel.SingularAttribute;
+import java.io.Closeable;
 import java.io.File;
 import java.io.Reader;
+import java.io.Serializable;
 import java.lang.annotation.Annotation;
+import java.math.BigInteger;
 import java.nio.charset.Charset;
 import java.util.*;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Generic CRUD (CREATE, READ, UPDATE, DELETE) DAO (Data Access Object) for {@link Entity} types.
@@ -21,7 +64,8 @@ import java.util.*;
  * and reduce boilerplate.
  * <p>
  * <b>WARNING</b>: each of these methods is contained in a single {@link EntityTransaction}, which means that
- * clients will be prone to Last Commit Wins concurrency problems that can result in data loss.
+ * clients will be prone to Last Commit Wins concurrency problems that can result in data loss. To read
+ * and write in a single transaction, begin a {@link UnitOfWork} which these methods will join.
  * <p>
  * Implementations are reminded that many convenience methods are provided with {@code protected}
  * visibility.
@@ -37,8 +81,109 @@ import java.util.*;
 @Deprecated
 public abstract class CrudDao<K, T> {
 
+    /**
+     * An {@link Iterator} over query results that holds an open {@link EntityManager},
+     * which is closed when the iteration is exhausted, fails, or is {@link #close()}d.
+     * Clients that stop iterating early must call {@link #close()}.
+     *
+     * @param <E>
+     */
+    public interface Cursor<E> extends Iterator<E>, Closeable {
+        @Override
+        void close();
+    }
+
+    /**
+     * Changes to make to a freshly read entity, which may be applied several times
+     * if the change conflicts with another writer.
+     *
+     * @param <E>
+     * @see #update(Object, Modification)
+     */
+    public interface Modification<E> {
+        /**
+         * @param entity managed, and modified in place.
+         */
+        void apply(E entity);
+    }
+
+    /**
+     * Receives the entities of a {@link #scan(int, int, Scanner)}.
+     *
+     * @param <E>
+     */
+    public interface Scanner<E> {
+        /**
+         * Called concurrently by the threads of the scan, so must be thread safe.
+         *
+         * @param entity detached.
+         */
+        void scanned(E entity);
+    }
+
+    /**
+     * Position after the last result of a {@link Page}, used to request the next page.
+     * Opaque to clients, but may be serialised, e.g. in a web session.
+     */
+    @EqualsAndHashCode
+    @AllArgsConstructor(access = AccessLevel.PRIVATE)
+    public static final class Seek implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final Object value, id;
+    }
+
+    /**
+     * A page of results of keyset pagination.
+     *
+     * @param <E>
+     * @see #readPage(Seek, int)
+     */
+    @Getter
+    @AllArgsConstructor(access = AccessLevel.PRIVATE)
+    public static final class Page<E> {
+        private final List<E> content;
+
+        /**
+         * Position of the next page, or {@code null} if this is the last page.
+         */
+        private final Seek next;
+
+        public boolean hasNext() {
+            return next != null;
+        }
+    }
+
+    // a cached read, with the generation of its key when the read began
+    @AllArgsConstructor
+    private static final class Cached<E> {
+        private final Optional<E> entity;
+        private final long generation;
+    }
+
     private static final String JPA_PROPERTIES = "jpa.properties";
 
+    /**
+     * Names of the standard queries, for use with {@link #createQuery(EntityManager, String)}.
+     * Queries on the primary key are not available for entities with composite keys.
+     */
+    protected static final String COUNT = "count", READ_ALL = "readAll", READ_IN = "readIn",
+            READ_ORDERED = "readOrdered", READ_AFTER = "readAfter", DELETE_IN = "deleteIn",
+            READ_KEYS_ORDERED = "readKeysOrdered", KEY_RANGE = "keyRange";
+
+    /**
+     * Number of entities that are written between each flush of the persistence
+     * context in bulk operations, unless otherwise specified. This should match the
+     * JDBC batch size of the provider, e.g. see {@link #batchingProperties(int)}.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 50;
+
+    /**
+     * Maximum number of parameters bound to a single {@code IN} clause, which keeps
+     * queries within the limits of common databases (e.g. 1000 for Oracle).
+     */
+    protected static final int IN_CHUNK_SIZE = 1000;
+
     /**
      * Convenience method for creating an {@link EntityManagerFactory}. This has several advantages
      * over using {@link Persistence#createEntityManagerFactory(String)}:
@@ -59,28 +204,123 @@ public abstract class CrudDao<K, T> {
      */
     public static EntityManagerFactory createEntityManagerFactory(String persistenceUnit)
             throws ExceptionInInitializerError {
+        return createEntityManagerFactory(persistenceUnit, Collections.<String, Object>emptyMap());
+    }
+
+    /**
+     * As {@link #createEntityManagerFactory(String)} but with additional properties,
+     * e.g. from {@link #batchingProperties(int)}, which take precedence over both the
+     * {@code persistence.xml} and {@value #JPA_PROPERTIES} files.
+     *
+     * @param persistenceUnit
+     * @param overrides
+     * @return
+     * @throws ExceptionInInitializerError
+     */
+    public static EntityManagerFactory createEntityManagerFactory(String persistenceUnit, Map<String, ?> overrides)
+            throws ExceptionInInitializerError {
         try {
             Preconditions.checkNotNull(persistenceUnit);
+            Preconditions.checkNotNull(overrides);
+            Properties properties = new Properties();
             File hibernateProps = new File(JPA_PROPERTIES);
             if (hibernateProps.exists()) {
-                Properties properties = new Properties();
                 @Cleanup Reader reader = Files.newReader(hibernateProps, Charset.defaultCharset());
                 properties.load(reader);
                 properties.put("javax.persistence.jtaDataSource", "");
                 properties.put("javax.persistence.nonJtaDataSource", "");
-                log.info(properties.toString());
-                return Persistence.createEntityManagerFactory(persistenceUnit, properties);
             }
-            return Persistence.createEntityManagerFactory(persistenceUnit);
+            properties.putAll(overrides);
+            if (properties.isEmpty()) {
+                return Persistence.createEntityManagerFactory(persistenceUnit);
+            }
+            log.info(properties.toString());
+            return Persistence.createEntityManagerFactory(persistenceUnit, properties);
         } catch (Exception e) {
             throw new ExceptionInInitializerError(e);
         }
     }
 
+    /**
+     * Hibernate properties that send inserts and updates to the database in JDBC batches,
+     * ordered by entity type so that consecutive statements may share a batch. Other providers
+     * will ignore these properties.
+     * <p>
+     * Note that Hibernate silently disables insert batching for entities with
+     * {@link GenerationType#IDENTITY} keys.
+     *
+     * @param batchSize typically the same as used in {@link #create(Collection, int)}.
+     * @return
+     */
+    public static Map<String, Object> batchingProperties(int batchSize) {
+        Preconditions.checkArgument(batchSize > 0);
+        Map<String, Object> properties = Maps.newHashMap();
+        properties.put("hibernate.jdbc.batch_size", Integer.toString(batchSize));
+        properties.put("hibernate.order_inserts", "true");
+        properties.put("hibernate.order_updates", "true");
+        properties.put("hibernate.jdbc.batch_versioned_data", "true");
+        return properties;
+    }
+
     private final Class<T> klass;
 
     private final EntityManagerFactory emf;
 
+    // the standard queries, built on first use as they call overridable methods
+    private final Supplier<Map<String, String>> standardQueries = Suppliers.memoize(
+            new Supplier<Map<String, String>>() {
+                @Override
+                public Map<String, String> get() {
+                    String from = " FROM " + getTableName() + " s";
+                    ImmutableMap.Builder<String, String> builder = ImmutableMap.builder();
+                    builder.put(COUNT, "SELECT COUNT(s)" + from);
+                    builder.put(READ_ALL, "SELECT s" + from);
+                    String id = getIdName();
+                    if (id != null) {
+                        builder.put(READ_IN, "SELECT s" + from + " WHERE s." + id + " IN (:ids)");
+                        builder.put(READ_ORDERED, "SELECT s" + from + " ORDER BY s." + id);
+                        builder.put(READ_AFTER, "SELECT s" + from + " WHERE s." + id + " > :last ORDER BY s." + id);
+                        builder.put(DELETE_IN, "DELETE" + from + " WHERE s." + id + " IN (:ids)");
+                        builder.put(READ_KEYS_ORDERED, "SELECT s." + id + from + " ORDER BY s." + id);
+                        builder.put(KEY_RANGE, "SELECT MIN(s." + id + "), MAX(s." + id + ")" + from);
+                    }
+                    return builder.build();
+                }
+            });
+
+    private final ConcurrentMap<String, String> queries = Maps.newConcurrentMap();
+
+    // queries that are built dynamically, by their shape (which is not always known
+    // in advance, e.g. for deleteWhere), so that each is only built and validated once
+    private final Cache<List<?>, String> shapes = CacheBuilder.newBuilder().maximumSize(1000).build();
+
+    // absent values are cached misses
+    private volatile LoadingCache<K, Cached<T>> cache;
+
+    // number of stripes of the key generations, a power of two
+    private static final int GENERATIONS = 1024;
+
+    // incremented, by key stripe, before the cache is invalidated. Loads that began
+    // before an invalidation have an older generation and are discarded when read,
+    // because an in-flight load can otherwise be cached after it is invalidated.
+    private final AtomicLongArray generations = new AtomicLongArray(GENERATIONS);
+
+    private volatile int maxAttempts = 5;
+
+    private volatile long backoffNanos = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final AtomicLong conflicts = new AtomicLong();
+
+    private final Random random = new Random();
+
+    // last exact count, adjusted by the writes of this DAO since
+    private final AtomicLong counted = new AtomicLong();
+
+    // of the last exact count, or 0 if never counted
+    private volatile long countedAt;
+
+    private final Object counting = new Object();
+
     /**
      * @param klass class of the entity type, must be an {@link Entity} type.
      * @param emf
@@ -105,6 +345,65 @@ public abstract class CrudDao<K, T> {
         return emf.createEntityManager();
     }
 
+    /**
+     * Enables an in-process read-through cache for {@link #read(Object)} and {@link #read(Collection)},
+     * which is invalidated by the writes of this DAO. Concurrent reads of the same missing key
+     * result in a single database read. Writes made by other DAOs or processes will only be
+     * seen after the cache entry expires.
+     * <p>
+     * Cached entities are detached and shared between callers, so this is only appropriate for
+     * entities that callers do not mutate, e.g. reference data.
+     *
+     * @param maximumSize of the cache, in entities.
+     * @param expiry      time after being read that an entity is evicted.
+     * @param unit
+     */
+    public void enableCache(long maximumSize, long expiry, TimeUnit unit) {
+        Preconditions.checkArgument(maximumSize > 0);
+        Preconditions.checkArgument(expiry > 0);
+        cache = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(expiry, unit)
+                .recordStats()
+                .build(new CacheLoader<K, Cached<T>>() {
+                    @Override
+                    public Cached<T> load(K key) {
+                        long generation = generation(key);
+                        @Cleanup("close") EntityManager em = createEntityManager();
+                        return new Cached<T>(Optional.fromNullable(em.find(klass, key)), generation);
+                    }
+
+                    @Override
+                    public Map<K, Cached<T>> loadAll(Iterable<? extends K> keys) {
+                        List<K> list = Lists.newArrayList(keys);
+                        long[] started = new long[list.size()];
+                        for (int i = 0; i < list.size(); i++) {
+                            started[i] = generation(list.get(i));
+                        }
+                        List<T> entities = readUncached(list);
+                        Map<K, Cached<T>> loaded = Maps.newHashMap();
+                        for (int i = 0; i < list.size(); i++) {
+                            loaded.put(list.get(i), new Cached<T>(Optional.fromNullable(entities.get(i)), started[i]));
+                        }
+                        return loaded;
+                    }
+                });
+    }
+
+    public void disableCache() {
+        cache = null;
+    }
+
+    /**
+     * @return hit, miss, load and eviction counts of the cache.
+     * @throws IllegalStateException if the cache is not enabled.
+     */
+    public CacheStats getCacheStats() {
+        LoadingCache<K, Cached<T>> current = cache;
+        Preconditions.checkState(current != null, "cache is not enabled");
+        return current.stats();
+    }
+
     /**
      * Note that if the primary key is user-generated, you will experience an exception if an
      * entity already exists with that key.
@@ -114,17 +413,12 @@ public abstract class CrudDao<K, T> {
      */
     public void create(T entity) {
         Preconditions.checkNotNull(entity);
-        @Cleanup("close") EntityManager em = createEntityManager();
-        try {
-            em.getTransaction().begin();
-            em.persist(entity);
-            em.getTransaction().commit();
-        } catch (PersistenceException e) {
-            if (em.getTransaction().isActive()) {
-                em.getTransaction().rollback();
-            }
-            throw e;
-        }
+        @Cleanup UnitOfWork work = beginWork();
+        EntityManager em = work.getEntityManager();
+        em.persist(entity);
+        invalidateOnCommit(work, entity);
+        countOnCommit(work, 1);
+        work.commit();
     }
 
     /**
@@ -134,25 +428,46 @@ public abstract class CrudDao<K, T> {
      *
      * @param collection
      * @throws PersistenceException
+     * @see #create(Collection, int)
      */
     public void create(Collection<T> collection) {
+        create(collection, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * As {@link #create(Collection)}, but the persistence context is flushed and cleared
+     * after every {@code batchSize} entities so that memory use does not grow with the size
+     * of the collection. All entities are still created in a single transaction.
+     * <p>
+     * To have each flush sent to the database as a single JDBC batch, the
+     * {@link EntityManagerFactory} should be created with {@link #batchingProperties(int)}.
+     *
+     * @param collection
+     * @param batchSize
+     * @throws PersistenceException
+     */
+    public void create(Collection<T> collection, int batchSize) {
         Preconditions.checkNotNull(collection);
+        Preconditions.checkArgument(batchSize > 0);
         if (collection.isEmpty()) {
             return;
         }
-        @Cleanup("close") EntityManager em = createEntityManager();
-        try {
-            em.getTransaction().begin();
-            for (T entity : collection) {
-                em.persist(entity);
-            }
-            em.getTransaction().commit();
-        } catch (PersistenceException e) {
-            if (em.getTransaction().isActive()) {
-                em.getTransaction().rollback();
+        @Cleanup UnitOfWork work = beginWork();
+        EntityManager em = work.getEntityManager();
+        int count = 0;
+        for (T entity : collection) {
+            em.persist(entity);
+            if (++count % batchSize == 0) {
+                em.flush();
+                // other entities of an enclosing unit of work must remain managed
+                if (!work.isNested()) {
+                    em.clear();
+                }
             }
-            throw e;
         }
+        invalidateOnCommit(work, collection);
+        countOnCommit(work, collection.size());
+        work.commit();
     }
 
     /**
@@ -162,8 +477,26 @@ public abstract class CrudDao<K, T> {
      */
     public T read(K key) {
         Preconditions.checkNotNull(key);
-        @Cleanup("close") EntityManager em = createEntityManager();
-        return em.find(klass, key);
+        LoadingCache<K, Cached<T>> current = cache;
+        if (current != null && UnitOfWork.current(emf) == null) {
+            try {
+                while (true) {
+                    Cached<T> cached = current.getUnchecked(key);
+                    if (cached.generation == generation(key)) {
+                        return cached.entity.orNull();
+                    }
+                    current.asMap().remove(key, cached);
+                }
+            } catch (UncheckedExecutionException e) {
+                throw Throwables.propagate(e.getCause());
+            }
+        }
+        EntityManager em = acquireEntityManager();
+        try {
+            return em.find(klass, key);
+        } finally {
+            release(em);
+        }
     }
 
     /**
@@ -173,44 +506,101 @@ public abstract class CrudDao<K, T> {
      */
     public List<T> read(Collection<K> keys) {
         Preconditions.checkNotNull(keys);
+        LoadingCache<K, Cached<T>> current = cache;
+        if (current == null || UnitOfWork.current(emf) != null) {
+            return readUncached(keys);
+        }
+        Map<K, Optional<T>> fresh = Maps.newHashMap();
+        Collection<K> remaining = keys;
+        try {
+            while (!remaining.isEmpty()) {
+                List<K> stale = Lists.newArrayList();
+                for (Map.Entry<K, Cached<T>> entry : current.getAll(remaining).entrySet()) {
+                    K key = entry.getKey();
+                    Cached<T> cached = entry.getValue();
+                    if (cached.generation == generation(key)) {
+                        fresh.put(key, cached.entity);
+                    } else {
+                        current.asMap().remove(key, cached);
+                        stale.add(key);
+                    }
+                }
+                remaining = stale;
+            }
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        } catch (UncheckedExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
         List<T> results = Lists.newArrayList();
-        @Cleanup("close") EntityManager em = createEntityManager();
         for (K key : keys) {
-            T result = em.find(klass, key);
-            results.add(result);
+            results.add(fresh.get(key).orNull());
         }
         return results;
     }
 
+    private List<T> readUncached(Collection<K> keys) {
+        List<T> results = Lists.newArrayList();
+        if (keys.isEmpty()) {
+            return results;
+        }
+        EntityManager em = acquireEntityManager();
+        try {
+            String id = getIdName();
+            if (id == null) {
+                for (K key : keys) {
+                    T result = em.find(klass, key);
+                    results.add(result);
+                }
+                return results;
+            }
+            Query query = createQuery(em, READ_IN);
+            PersistenceUnitUtil util = emf.getPersistenceUnitUtil();
+            Map<Object, T> found = Maps.newHashMap();
+            for (List<K> chunk : Iterables.partition(Sets.newLinkedHashSet(keys), IN_CHUNK_SIZE)) {
+                query.setParameter("ids", chunk);
+                for (T entity : this.<T>query(em, query)) {
+                    found.put(util.getIdentifier(entity), entity);
+                }
+            }
+            for (K key : keys) {
+                results.add(found.get(key));
+            }
+            return results;
+        } finally {
+            release(em);
+        }
+    }
+
     /**
      * Update the database with the existing entity.
+     * <p>
+     * Optimistic locking conflicts are not retried, because merging the same stale
+     * entity would conflict again: use {@link #update(Object, Modification)} to retry.
      *
      * @param entity
      * @return the updated entity (which will be different from the one passed in)
+     * @throws OptimisticLockException if another writer has changed the entity.
      * @throws PersistenceException
      */
     @SuppressWarnings("AssignmentToMethodParameter")
     public T update(T entity) {
         Preconditions.checkNotNull(entity);
-        @Cleanup("close") EntityManager em = createEntityManager();
-        try {
-            em.getTransaction().begin();
-            entity = em.merge(entity);
-            em.getTransaction().commit();
-            return entity;
-        } catch (PersistenceException e) {
-            if (em.getTransaction().isActive()) {
-                em.getTransaction().rollback();
-            }
-            throw e;
-        }
+        @Cleanup UnitOfWork work = beginWork();
+        EntityManager em = work.getEntityManager();
+        entity = em.merge(entity);
+        invalidateOnCommit(work, entity);
+        work.commit();
+        return entity;
     }
 
     /**
-     * Update the database with existing entities.
+     * Update the database with existing entities. Conflicts are not retried, as
+     * {@link #update(Object)}.
      *
      * @param entities
      * @return
+     * @throws OptimisticLockException if another writer has changed one of the entities.
      * @throws PersistenceException
      */
     @SuppressWarnings("AssignmentToForLoopParameter")
@@ -219,48 +609,134 @@ public abstract class CrudDao<K, T> {
         if (entities.isEmpty()) {
             return Collections.emptySet();
         }
-        @Cleanup("close") EntityManager em = createEntityManager();
-        try {
-            em.getTransaction().begin();
-            Set<T> updated = Sets.newHashSet();
-            for (T entity : entities) {
-                entity = em.merge(entity);
-                updated.add(entity);
+        @Cleanup UnitOfWork work = beginWork();
+        EntityManager em = work.getEntityManager();
+        Set<T> updated = Sets.newHashSet();
+        for (T entity : entities) {
+            entity = em.merge(entity);
+            updated.add(entity);
+        }
+        invalidateOnCommit(work, updated);
+        work.commit();
+        return updated;
+    }
+
+    /**
+     * Update the entity with the given key by reading it afresh and applying the modification,
+     * in a single transaction. For entities with a {@link Version} attribute, if another writer
+     * changes the entity before this transaction commits, the read and modification are
+     * retried after a randomised exponential backoff (up to the limit set by
+     * {@link #setOptimisticRetry(int, long, TimeUnit)}), so no write is lost.
+     * <p>
+     * Conflicts cannot be retried within an enclosing {@link UnitOfWork}, whose transaction
+     * will already be marked for rollback.
+     *
+     * @param key
+     * @param modification
+     * @return the updated entity, or {@code null} if there is no entity with the key.
+     * @throws OptimisticLockException if the retries are exhausted.
+     * @throws PersistenceException
+     */
+    public T update(final K key, final Modification<? super T> modification) {
+        Preconditions.checkNotNull(key);
+        Preconditions.checkNotNull(modification);
+        return retry(new Attempt<T>() {
+            @Override
+            public T run(UnitOfWork work) {
+                EntityManager em = work.getEntityManager();
+                T entity = em.find(klass, key);
+                if (entity == null) {
+                    work.commit();
+                    return null;
+                }
+                modification.apply(entity);
+                em.flush();
+                invalidateKeyOnCommit(work, key);
+                work.commit();
+                return entity;
             }
-            em.getTransaction().commit();
-            return updated;
-        } catch (PersistenceException e) {
-            if (em.getTransaction().isActive()) {
-                em.getTransaction().rollback();
+        });
+    }
+
+    /**
+     * Delete the entity with the given key if, when read afresh, it satisfies the condition.
+     * Conflicts with other writers are retried as in {@link #update(Object, Modification)}.
+     *
+     * @param key
+     * @param condition
+     * @return {@code true} if the entity was deleted.
+     * @throws OptimisticLockException if the retries are exhausted.
+     * @throws PersistenceException
+     */
+    public boolean delete(final K key, final Predicate<? super T> condition) {
+        Preconditions.checkNotNull(key);
+        Preconditions.checkNotNull(condition);
+        return retry(new Attempt<Boolean>() {
+            @Override
+            public Boolean run(UnitOfWork work) {
+                EntityManager em = work.getEntityManager();
+                T entity = em.find(klass, key);
+                if (entity == null || !condition.apply(entity)) {
+                    work.commit();
+                    return false;
+                }
+                removeFromManyToManyMappings(em, entity);
+                em.remove(entity);
+                em.flush();
+                invalidateKeyOnCommit(work, key);
+                countOnCommit(work, -1);
+                work.commit();
+                return true;
             }
-            throw e;
-        }
+        });
+    }
+
+    /**
+     * @param maxAttempts for writes that conflict with other writers, including the first.
+     * @param backoff     initial delay before retrying, doubling with each attempt.
+     * @param unit
+     * @see #update(Object, Modification)
+     */
+    public void setOptimisticRetry(int maxAttempts, long backoff, TimeUnit unit) {
+        Preconditions.checkArgument(maxAttempts > 0);
+        Preconditions.checkArgument(backoff >= 0);
+        this.maxAttempts = maxAttempts;
+        this.backoffNanos = unit.toNanos(backoff);
+    }
+
+    /**
+     * @return number of optimistic locking conflicts seen by this DAO, including those that were retried.
+     */
+    public long getOptimisticLockConflicts() {
+        return conflicts.get();
     }
 
     /**
+     * Conflicts are not retried, as {@link #update(Object)}: use
+     * {@link #delete(Object, Predicate)} to retry.
+     *
      * @param entity
+     * @throws OptimisticLockException if another writer has changed the entity.
      * @throws PersistenceException
      */
     @SuppressWarnings("AssignmentToMethodParameter")
     public void delete(T entity) {
         Preconditions.checkNotNull(entity);
-        @Cleanup("close") EntityManager em = createEntityManager();
-        try {
-            em.getTransaction().begin();
-            entity = em.merge(entity);
-            removeFromManyToManyMappings(em, entity);
-            em.remove(entity);
-            em.getTransaction().commit();
-        } catch (PersistenceException e) {
-            if (em.getTransaction().isActive()) {
-                em.getTransaction().rollback();
-            }
-            throw e;
-        }
+        @Cleanup UnitOfWork work = beginWork();
+        EntityManager em = work.getEntityManager();
+        entity = em.merge(entity);
+        removeFromManyToManyMappings(em, entity);
+        em.remove(entity);
+        invalidateOnCommit(work, entity);
+        countOnCommit(work, -1);
+        work.commit();
     }
 
     /**
+     * Conflicts are not retried, as {@link #delete(Object)}.
+     *
      * @param entities
+     * @throws OptimisticLockException if another writer has changed one of the entities.
      * @throws PersistenceException
      */
     @SuppressWarnings("AssignmentToForLoopParameter")
@@ -269,57 +745,208 @@ public abstract class CrudDao<K, T> {
         if (entities.isEmpty()) {
             return;
         }
-        @Cleanup("close") EntityManager em = createEntityManager();
-        try {
-            em.getTransaction().begin();
-            for (T entity : entities) {
-                entity = em.merge(entity);
-                removeFromManyToManyMappings(em, entity);
-                em.remove(entity);
-            }
-            em.getTransaction().commit();
-        } catch (PersistenceException e) {
-            if (em.getTransaction().isActive()) {
-                em.getTransaction().rollback();
-            }
-            throw e;
+        @Cleanup UnitOfWork work = beginWork();
+        EntityManager em = work.getEntityManager();
+        for (T entity : entities) {
+            entity = em.merge(entity);
+            removeFromManyToManyMappings(em, entity);
+            em.remove(entity);
         }
+        invalidateOnCommit(work, entities);
+        countOnCommit(work, -entities.size());
+        work.commit();
     }
 
     /**
      * @param id
+     * @throws EntityNotFoundException if there is no entity with the key.
      * @throws PersistenceException
      */
     public void deleteById(K id) {
         Preconditions.checkNotNull(id);
-        @Cleanup("close") EntityManager em = createEntityManager();
-        try {
-            em.getTransaction().begin();
+        @Cleanup UnitOfWork work = beginWork();
+        EntityManager em = work.getEntityManager();
 //            T entity = em.find(klass, id);
-            T entity = em.getReference(klass, id);
-            if (entity == null) {
-                em.getTransaction().rollback();
-                return;
-            }
-            removeFromManyToManyMappings(em, entity);
-            em.remove(entity);
-            em.getTransaction().commit();
-        } catch (PersistenceException e) {
-            if (em.getTransaction().isActive()) {
-                em.getTransaction().rollback();
+        T entity = em.getReference(klass, id);
+        removeFromManyToManyMappings(em, entity);
+        em.remove(entity);
+        invalidateKeyOnCommit(work, id);
+        countOnCommit(work, -1);
+        work.commit();
+    }
+
+    /**
+     * Delete the entities with the given keys using bulk {@code DELETE ... WHERE id IN (:ids)}
+     * statements of up to {@value #IN_CHUNK_SIZE} keys, in a single transaction, without loading
+     * the entities.
+     * <p>
+     * Bulk deletes do not cascade, or update join tables, so specialist DAOs must implement
+     * {@link #bulkRemoveFromManyToManyMappings(EntityManager, Collection)}. Entities with composite
+     * keys are not supported.
+     * <p>
+     * Entities that are managed by an enclosing {@link UnitOfWork} are not informed of the delete.
+     *
+     * @param keys
+     * @return the number of entities deleted.
+     * @throws PersistenceException
+     */
+    public int deleteByIds(Collection<K> keys) {
+        Preconditions.checkNotNull(keys);
+        if (keys.isEmpty()) {
+            return 0;
+        }
+        Preconditions.checkState(getIdName() != null, "composite keys are not supported");
+        @Cleanup UnitOfWork work = beginWork();
+        EntityManager em = work.getEntityManager();
+        Query query = createQuery(em, DELETE_IN);
+        int deleted = 0;
+        for (List<K> chunk : Iterables.partition(Sets.newLinkedHashSet(keys), IN_CHUNK_SIZE)) {
+            bulkRemoveFromManyToManyMappings(em, chunk);
+            query.setParameter("ids", chunk);
+            deleted += query.executeUpdate();
+        }
+        invalidateKeysOnCommit(work, keys);
+        countOnCommit(work, -deleted);
+        work.commit();
+        return deleted;
+    }
+
+    /**
+     * Delete the entities that match a JPQL condition, as {@link #deleteByIds(Collection)}.
+     * Only the keys of the matching entities are read, in pages of up to {@value #IN_CHUNK_SIZE}
+     * in key order, which are deleted before the next page is read.
+     *
+     * @param where      JPQL condition, where the entity is aliased as {@code s},
+     *                   e.g. {@code "s.expires < :now"}. The parameter name {@code lastKey}
+     *                   is reserved.
+     * @param parameters named parameters of the condition.
+     * @return the number of entities deleted.
+     * @throws PersistenceException
+     */
+    public int deleteWhere(String where, Map<String, ?> parameters) {
+        Preconditions.checkNotNull(where);
+        Preconditions.checkNotNull(parameters);
+        Preconditions.checkArgument(!parameters.containsKey("lastKey"), "lastKey is reserved");
+        String id = getIdName();
+        Preconditions.checkState(id != null, "composite keys are not supported");
+        @Cleanup UnitOfWork work = beginWork();
+        EntityManager em = work.getEntityManager();
+        Query first = em.createQuery(deleteWhereQuery(id, where, false));
+        Query next = em.createQuery(deleteWhereQuery(id, where, true));
+        for (Map.Entry<String, ?> parameter : parameters.entrySet()) {
+            first.setParameter(parameter.getKey(), parameter.getValue());
+            next.setParameter(parameter.getKey(), parameter.getValue());
+        }
+        int deleted = 0;
+        Query query = first;
+        while (true) {
+            query.setMaxResults(IN_CHUNK_SIZE);
+            List<K> keys = query(em, query);
+            deleted += deleteByIds(keys);
+            if (keys.size() < IN_CHUNK_SIZE) {
+                break;
             }
-            throw e;
+            query = next;
+            query.setParameter("lastKey", keys.get(keys.size() - 1));
+        }
+        work.commit();
+        return deleted;
+    }
+
+    private String deleteWhereQuery(String id, String where, boolean after) {
+        List<?> shape = Arrays.asList("deleteWhere", where, after);
+        String jpql = shapes.getIfPresent(shape);
+        if (jpql == null) {
+            jpql = "SELECT s." + id + " FROM " + getTableName() + " s WHERE (" + where + ")"
+                    + (after ? " AND s." + id + " > :lastKey" : "") + " ORDER BY s." + id;
+            shapes.put(shape, jpql);
         }
+        return jpql;
     }
 
     /**
      * @return a count of the number of entities in the database.
      */
     public long count() {
-        EntityManager em = createEntityManager();
-        Query q = em.createQuery("SELECT COUNT(s) FROM " + getTableName() + " s");
-        Long result = querySingle(em, q);
-        return result;
+        EntityManager em = acquireEntityManager();
+        try {
+            Query q = createQuery(em, COUNT);
+            Long result = querySingle(em, q);
+            return result;
+        } finally {
+            release(em);
+        }
+    }
+
+    /**
+     * A count that is maintained incrementally by the creates and deletes of this DAO,
+     * and reconciled with an exact {@link #count()} when it is older than {@code maxAge}.
+     * Concurrent callers share a single reconciliation.
+     * <p>
+     * Writes made by other DAOs or processes are only seen after reconciliation,
+     * so this is appropriate for polling. Writes of this DAO that commit while reconciling
+     * may be counted twice or not at all, until the next reconciliation.
+     * <p>
+     * Reconciliation counts committed entities only, even within a {@link UnitOfWork},
+     * because the writes of the unit are added when it commits.
+     *
+     * @param maxAge since the last exact count, e.g. a few seconds.
+     * @param unit
+     * @return
+     * @throws PersistenceException
+     */
+    public long count(long maxAge, TimeUnit unit) {
+        Preconditions.checkArgument(maxAge >= 0);
+        long maxAgeNanos = unit.toNanos(maxAge);
+        if (countedAt == 0 || System.nanoTime() - countedAt > maxAgeNanos) {
+            synchronized (counting) {
+                if (countedAt == 0 || System.nanoTime() - countedAt > maxAgeNanos) {
+                    long started = System.nanoTime();
+                    @Cleanup("close") EntityManager em = createEntityManager();
+                    Long exact = querySingle(em, createQuery(em, COUNT));
+                    counted.set(exact);
+                    countedAt = started == 0 ? 1 : started;
+                }
+            }
+        }
+        return counted.get();
+    }
+
+    /**
+     * An estimate of the count from {@link #estimateCount(EntityManager)}, falling back to
+     * {@link #count(long, TimeUnit)} (only counting exactly if never counted before) if no
+     * estimate is available.
+     *
+     * @return
+     * @throws PersistenceException
+     */
+    public long approximateCount() {
+        EntityManager em = acquireEntityManager();
+        try {
+            Long estimate = estimateCount(em);
+            if (estimate != null) {
+                return estimate;
+            }
+        } finally {
+            release(em);
+        }
+        return count(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Allows specialist DAOs to provide a cheap estimate of the number of entities,
+     * typically from database statistics, e.g. for PostgreSQL:
+     * <code><pre>
+     * Query q = em.createNativeQuery("SELECT reltuples FROM pg_class WHERE relname = 'entity'");
+     * return ((Number) q.getSingleResult()).longValue();
+     * </pre></code>
+     *
+     * @param em
+     * @return an estimate, or {@code null} if none is available.
+     */
+    @Nullable
+    protected Long estimateCount(EntityManager em) {
+        return null;
     }
 
     /**
@@ -330,9 +957,457 @@ public abstract class CrudDao<K, T> {
      * @return
      */
     public List<T> readAll() {
-        EntityManager em = createEntityManager();
-        Query query = em.createQuery("SELECT s FROM " + getTableName() + " s");
-        return query(em, query);
+        EntityManager em = acquireEntityManager();
+        try {
+            Query query = createQuery(em, READ_ALL);
+            return query(em, query);
+        } finally {
+            release(em);
+        }
+    }
+
+    /**
+     * Iterate over all entities in the database, in primary key order, with constant memory.
+     * <p>
+     * Entities are read in pages using keyset pagination (i.e. {@code WHERE id > :last ORDER BY id})
+     * so that every page costs the same as the first, and the persistence context is cleared
+     * between pages. Returned entities are detached, and the cursor does not join
+     * a {@link UnitOfWork} on the current thread.
+     * <p>
+     * Entities with composite keys are not supported.
+     *
+     * @param pageSize number of entities to read in each query.
+     * @return
+     * @throws PersistenceException
+     */
+    public Cursor<T> streamAll(final int pageSize) {
+        Preconditions.checkArgument(pageSize > 0);
+        Preconditions.checkState(getIdName() != null, "composite keys are not supported");
+        final EntityManager em = createEntityManager();
+        final PersistenceUnitUtil util = emf.getPersistenceUnitUtil();
+
+        class KeysetCursor extends AbstractIterator<T> implements Cursor<T> {
+            private Iterator<T> page = Iterators.emptyIterator();
+
+            private Object last;
+
+            private boolean exhausted;
+
+            @Override
+            protected T computeNext() {
+                try {
+                    if (!page.hasNext() && !exhausted) {
+                        em.clear();
+                        Query query;
+                        if (last == null) {
+                            query = createQuery(em, READ_ORDERED);
+                        } else {
+                            query = createQuery(em, READ_AFTER);
+                            query.setParameter("last", last);
+                        }
+                        query.setMaxResults(pageSize);
+                        query.setHint("org.hibernate.fetchSize", pageSize);
+                        query.setHint("org.hibernate.readOnly", true);
+                        List<T> results = query(em, query);
+                        exhausted = results.size() < pageSize;
+                        if (!results.isEmpty()) {
+                            last = util.getIdentifier(results.get(results.size() - 1));
+                        }
+                        page = results.iterator();
+                    }
+                    if (page.hasNext()) {
+                        return page.next();
+                    }
+                } catch (RuntimeException e) {
+                    close();
+                    throw e;
+                }
+                close();
+                return endOfData();
+            }
+
+            @Override
+            public void close() {
+                exhausted = true;
+                page = Iterators.emptyIterator();
+                if (em.isOpen()) {
+                    em.close();
+                }
+            }
+        }
+        return new KeysetCursor();
+    }
+
+    /**
+     * Read every entity in the database, in parallel, with constant memory.
+     * <p>
+     * The primary key range is split into partitions, evenly between the minimum and maximum
+     * keys for integral keys, or at sampled keys otherwise. Each partition is read on its own
+     * thread and {@link EntityManager}, in pages of keyset pagination as {@link #streamAll(int)}.
+     * Throughput therefore scales with the number of connections that the database can serve.
+     * <p>
+     * Entities are scanned in key order within a partition, but the order of entities in
+     * different partitions is undefined. Entities with composite keys are not supported.
+     *
+     * @param partitions number of threads, typically no more than the connection pool.
+     * @param pageSize   number of entities read in each query.
+     * @param scanner    called concurrently with each entity.
+     * @return the number of entities scanned.
+     * @throws InterruptedException if interrupted, in which case the scan is cancelled.
+     * @throws PersistenceException
+     */
+    public long scan(int partitions, final int pageSize, final Scanner<? super T> scanner)
+            throws InterruptedException {
+        Preconditions.checkArgument(partitions > 0);
+        Preconditions.checkArgument(pageSize > 0);
+        Preconditions.checkNotNull(scanner);
+        final String id = getIdName();
+        Preconditions.checkState(id != null, "composite keys are not supported");
+
+        List<Object> boundaries = Lists.newArrayList();
+        boundaries.add(null);
+        boundaries.addAll(boundaries(partitions));
+        boundaries.add(null);
+
+        final AtomicLong scanned = new AtomicLong();
+        ExecutorService executor = Executors.newFixedThreadPool(boundaries.size() - 1,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("CrudDao-scan-%d").build());
+        try {
+            List<Future<?>> futures = Lists.newArrayList();
+            for (int i = 0; i < boundaries.size() - 1; i++) {
+                final Object from = boundaries.get(i), to = boundaries.get(i + 1);
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        scanned.addAndGet(scanPartition(id, from, to, pageSize, scanner));
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    throw Throwables.propagate(e.getCause());
+                }
+            }
+            return scanned.get();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // keys that split the table into (at most) the requested number of partitions
+    private List<Object> boundaries(int partitions) {
+        List<Object> boundaries = Lists.newArrayList();
+        if (partitions == 1) {
+            return boundaries;
+        }
+        Class<?> type = emf.getMetamodel().entity(klass).getIdType().getJavaType();
+        @Cleanup("close") EntityManager em = createEntityManager();
+        if (Primitives.wrap(type) == Long.class || Primitives.wrap(type) == Integer.class) {
+            Query query = createQuery(em, KEY_RANGE);
+            Object[] range = querySingle(em, query);
+            if (range[0] == null) {
+                return boundaries;
+            }
+            BigInteger min = BigInteger.valueOf(((Number) range[0]).longValue());
+            BigInteger max = BigInteger.valueOf(((Number) range[1]).longValue());
+            BigInteger width = max.subtract(min);
+            for (int i = 1; i < partitions; i++) {
+                long boundary = min.add(width.multiply(BigInteger.valueOf(i))
+                        .divide(BigInteger.valueOf(partitions))).longValue();
+                boundaries.add(Primitives.wrap(type) == Long.class ? (Object) boundary : (Object) (int) boundary);
+            }
+        } else {
+            long count = querySingle(em, createQuery(em, COUNT));
+            Query query = createQuery(em, READ_KEYS_ORDERED);
+            query.setMaxResults(1);
+            for (int i = 1; i < partitions; i++) {
+                query.setFirstResult((int) Math.min(Integer.MAX_VALUE, count * i / partitions));
+                List<Object> sample = query(em, query);
+                if (!sample.isEmpty()) {
+                    boundaries.add(sample.get(0));
+                }
+            }
+        }
+        // partitions must not be empty or overlap
+        List<Object> distinct = Lists.newArrayList();
+        for (Object boundary : boundaries) {
+            if (distinct.isEmpty() || !distinct.get(distinct.size() - 1).equals(boundary)) {
+                distinct.add(boundary);
+            }
+        }
+        return distinct;
+    }
+
+    // reads keys in [from, to), where null is unbounded
+    private long scanPartition(String id, @Nullable Object from, @Nullable Object to,
+                               int pageSize, Scanner<? super T> scanner) {
+        String first = rangeQuery(id, from == null ? null : " >= :from", to != null);
+        String next = rangeQuery(id, " > :last", to != null);
+
+        PersistenceUnitUtil util = emf.getPersistenceUnitUtil();
+        @Cleanup("close") EntityManager em = createEntityManager();
+        long scanned = 0;
+        Object last = null;
+        while (!Thread.currentThread().isInterrupted()) {
+            em.clear();
+            Query query = em.createQuery(last == null ? first : next);
+            if (last == null && from != null) {
+                query.setParameter("from", from);
+            }
+            if (last != null) {
+                query.setParameter("last", last);
+            }
+            if (to != null) {
+                query.setParameter("to", to);
+            }
+            query.setMaxResults(pageSize);
+            query.setHint("org.hibernate.fetchSize", pageSize);
+            query.setHint("org.hibernate.readOnly", true);
+            List<T> page = query(em, query);
+            for (T entity : page) {
+                scanner.scanned(entity);
+            }
+            scanned += page.size();
+            if (page.size() < pageSize) {
+                break;
+            }
+            last = util.getIdentifier(page.get(page.size() - 1));
+        }
+        return scanned;
+    }
+
+    private String rangeQuery(String id, @Nullable String lower, boolean upper) {
+        List<?> shape = Arrays.asList("range", lower, upper);
+        String cached = shapes.getIfPresent(shape);
+        if (cached != null) {
+            return cached;
+        }
+        List<String> conditions = Lists.newArrayList();
+        if (lower != null) {
+            conditions.add("s." + id + lower);
+        }
+        if (upper) {
+            conditions.add("s." + id + " < :to");
+        }
+        StringBuilder jpql = new StringBuilder("SELECT s FROM ").append(getTableName()).append(" s");
+        if (!conditions.isEmpty()) {
+            jpql.append(" WHERE ").append(Joiner.on(" AND ").join(conditions));
+        }
+        String built = jpql.append(" ORDER BY s.").append(id).toString();
+        shapes.put(shape, built);
+        return built;
+    }
+
+    /**
+     * Read a page of entities in primary key order.
+     * <p>
+     * Pages are found by keyset (or seek) pagination, i.e. {@code WHERE id > :last ORDER BY id},
+     * so reading any page costs the same as reading the first, unlike {@link Query#setFirstResult(int)}.
+     * Pages are consistent with concurrent inserts and deletes, without skipping or repeating
+     * results. Entities with composite keys are not supported.
+     *
+     * @param after {@code null} for the first page, otherwise {@link Page#getNext()} of the previous page.
+     * @param size  maximum number of entities in the page.
+     * @return
+     * @throws PersistenceException
+     */
+    public Page<T> readPage(@Nullable Seek after, int size) {
+        return readPage((String) null, after, size);
+    }
+
+    /**
+     * Read a page of entities ordered by an attribute, as {@link #readPage(Seek, int)}.
+     * Ties are broken by the primary key. For pages to be as cheap as in key order, there should
+     * be an index on the attribute (and key), and the attribute should not be {@code null}.
+     *
+     * @param attribute path from the entity, e.g. {@code "name"} or {@code "address.city"}.
+     * @param after
+     * @param size
+     * @return
+     * @throws IllegalArgumentException if the attribute is not a path of the entity.
+     * @throws PersistenceException
+     */
+    public Page<T> readPage(@Nullable String attribute, @Nullable Seek after, int size) {
+        return seek(attribute, after, size, null, new Function<Object[], T>() {
+            @SuppressWarnings("unchecked")
+            @Override
+            public T apply(Object[] row) {
+                return (T) row[2];
+            }
+        });
+    }
+
+    /**
+     * Read a page of projections of entities, as {@link #readPage(String, Seek, int)}, which avoids
+     * reading and managing entities when only some of their attributes are needed.
+     *
+     * @param attribute  to order by, or {@code null} for the primary key.
+     * @param after
+     * @param size
+     * @param projection paths from the entity to the attributes to select, e.g. {@code "name"}.
+     * @return rows containing the values of the projection.
+     * @throws IllegalArgumentException if the attribute or projection are not paths of the entity.
+     * @throws PersistenceException
+     */
+    public Page<Object[]> readPage(@Nullable String attribute, @Nullable Seek after, int size, String... projection) {
+        return readPage(attribute, after, size, Functions.<Object[]>identity(), projection);
+    }
+
+    /**
+     * As {@link #readPage(String, Seek, int, String...)} but with each row converted, e.g. into a DTO.
+     *
+     * @param attribute
+     * @param after
+     * @param size
+     * @param converter
+     * @param projection
+     * @param <P>
+     * @return
+     * @throws PersistenceException
+     */
+    public <P> Page<P> readPage(@Nullable String attribute, @Nullable Seek after, int size,
+                                final Function<Object[], P> converter, String... projection) {
+        Preconditions.checkNotNull(converter);
+        Preconditions.checkArgument(projection.length > 0);
+        // copied, as the projection is part of the key of the cached query
+        return seek(attribute, after, size, ImmutableList.copyOf(projection), new Function<Object[], P>() {
+            @Override
+            public P apply(Object[] row) {
+                return converter.apply(Arrays.copyOfRange(row, 2, row.length));
+            }
+        });
+    }
+
+    // rows contain the seek value and key, followed by the projection (or the entity if null)
+    private <E> Page<E> seek(@Nullable String attribute, @Nullable Seek after, int size,
+                             @Nullable List<String> projection, Function<? super Object[], E> converter) {
+        Preconditions.checkArgument(size > 0);
+        String id = getIdName();
+        Preconditions.checkState(id != null, "composite keys are not supported");
+        String jpql = seekQuery(id, attribute, after != null, projection);
+        EntityManager em = acquireEntityManager();
+        try {
+            Query query = em.createQuery(jpql);
+            if (after != null) {
+                query.setParameter("id", after.id);
+                if (attribute != null) {
+                    query.setParameter("value", after.value);
+                }
+            }
+            query.setMaxResults(size + 1);
+            List<Object[]> rows = query(em, query);
+            boolean more = rows.size() > size;
+            if (more) {
+                rows = rows.subList(0, size);
+            }
+            List<E> content = Lists.newArrayListWithCapacity(rows.size());
+            for (Object[] row : rows) {
+                content.add(converter.apply(row));
+            }
+            Seek next = null;
+            if (more) {
+                Object[] last = rows.get(size - 1);
+                next = new Seek(last[0], last[1]);
+            }
+            return new Page<E>(content, next);
+        } finally {
+            release(em);
+        }
+    }
+
+    private String seekQuery(String id, @Nullable String attribute, boolean after, @Nullable List<String> projection) {
+        List<?> shape = Arrays.asList("seek", attribute, after, projection);
+        String cached = shapes.getIfPresent(shape);
+        if (cached != null) {
+            return cached;
+        }
+        String select = "s";
+        if (projection != null) {
+            List<String> paths = Lists.newArrayList();
+            for (String path : projection) {
+                paths.add("s." + checkPath(path));
+            }
+            select = Joiner.on(", ").join(paths);
+        }
+        String value = "s." + (attribute == null ? id : checkPath(attribute));
+        StringBuilder jpql = new StringBuilder("SELECT ").append(value).append(", s.").append(id)
+                .append(", ").append(select).append(" FROM ").append(getTableName()).append(" s");
+        if (after) {
+            if (attribute == null) {
+                jpql.append(" WHERE s.").append(id).append(" > :id");
+            } else {
+                // the leading range condition can use an index on the attribute
+                jpql.append(" WHERE ").append(value).append(" >= :value AND (")
+                        .append(value).append(" > :value OR s.").append(id).append(" > :id)");
+            }
+        }
+        jpql.append(" ORDER BY ").append(value);
+        if (attribute != null) {
+            jpql.append(", s.").append(id);
+        }
+        String built = jpql.toString();
+        shapes.put(shape, built);
+        return built;
+    }
+
+    // paths are concatenated into JPQL, so must be attributes of the metamodel
+    private String checkPath(String path) {
+        Preconditions.checkNotNull(path);
+        ManagedType<?> type = emf.getMetamodel().entity(klass);
+        Iterator<String> names = Splitter.on('.').split(path).iterator();
+        while (true) {
+            String name = names.next();
+            Attribute<?, ?> attribute;
+            try {
+                attribute = type.getAttribute(name);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException(path + " is not a path of " + getTableName(), e);
+            }
+            // some providers return null rather than throwing
+            Preconditions.checkArgument(attribute != null, "%s is not a path of %s", path, getTableName());
+            if (!names.hasNext()) {
+                return path;
+            }
+            Preconditions.checkArgument(attribute instanceof SingularAttribute
+                    && ((SingularAttribute<?, ?>) attribute).getType() instanceof ManagedType,
+                    "%s is not a path of %s", path, getTableName());
+            type = (ManagedType<?>) ((SingularAttribute<?, ?>) attribute).getType();
+        }
+    }
+
+    /**
+     * Register a JPQL query of a specialist DAO, typically from its constructor, so that
+     * the query string is built once and may be shared with the standard queries in
+     * {@link #createQuery(EntityManager, String)}. Providers typically cache the parsed
+     * form of each distinct query string, so reusing the same string avoids parsing it
+     * on every call.
+     *
+     * @param name which must not already be registered, or be the name of a standard query.
+     * @param jpql
+     */
+    protected final void registerQuery(String name, String jpql) {
+        Preconditions.checkNotNull(name);
+        Preconditions.checkNotNull(jpql);
+        Preconditions.checkArgument(!standardQueries.get().containsKey(name), "%s is a standard query", name);
+        Preconditions.checkArgument(queries.putIfAbsent(name, jpql) == null, "%s is already registered", name);
+    }
+
+    /**
+     * @param em
+     * @param name of a standard or {@link #registerQuery(String, String) registered} query.
+     * @return
+     * @throws IllegalArgumentException if there is no query with the name.
+     */
+    protected final Query createQuery(EntityManager em, String name) {
+        Preconditions.checkNotNull(em);
+        String jpql = standardQueries.get().get(name);
+        if (jpql == null) {
+            jpql = queries.get(name);
+        }
+        Preconditions.checkArgument(jpql != null, "no query named %s", name);
+        return em.createQuery(jpql);
     }
 
     /**
@@ -342,6 +1417,18 @@ public abstract class CrudDao<K, T> {
         return klass.getSimpleName();
     }
 
+    /**
+     * @return the name of the primary key attribute in JPA SQL, or {@code null} if the
+     *         entity has a composite key.
+     */
+    protected String getIdName() {
+        EntityType<T> type = emf.getMetamodel().entity(klass);
+        if (!type.hasSingleIdAttribute()) {
+            return null;
+        }
+        return type.getId(type.getIdType().getJavaType()).getName();
+    }
+
     /**
      * Boilerplate saver - runs the given {@link Query}, expecting a list of {@link Entity}s of given
      * type. Never returns {@code null}.
@@ -378,6 +1465,144 @@ public abstract class CrudDao<K, T> {
         return (C) query.getSingleResult();
     }
 
+    private interface Attempt<R> {
+        R run(UnitOfWork work);
+    }
+
+    private <R> R retry(Attempt<R> attempt) {
+        for (int i = 1; ; i++) {
+            try {
+                @Cleanup UnitOfWork work = beginWork();
+                return attempt.run(work);
+            } catch (PersistenceException e) {
+                if (!isOptimisticLock(e)) {
+                    throw e;
+                }
+                conflicts.incrementAndGet();
+                if (i >= maxAttempts || UnitOfWork.current(emf) != null) {
+                    throw e;
+                }
+                long delay = backoffNanos << Math.min(i - 1, 20);
+                if (delay > 0) {
+                    delay += (long) (random.nextDouble() * delay);
+                }
+                log.fine("optimistic lock conflict on " + getTableName() + ", retrying in " + delay + "ns");
+                try {
+                    TimeUnit.NANOSECONDS.sleep(delay);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    // providers may wrap the conflict, e.g. in a RollbackException on commit
+    private static boolean isOptimisticLock(Throwable t) {
+        for (Throwable cause : Throwables.getCausalChain(t)) {
+            if (cause instanceof OptimisticLockException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // joins the unit of work on this thread, or begins one for a single operation
+    UnitOfWork beginWork() {
+        if (UnitOfWork.current(emf) != null) {
+            return UnitOfWork.begin(emf);
+        }
+        return UnitOfWork.begin(emf, createEntityManager());
+    }
+
+    // the entity manager of the unit of work on this thread, or a new one
+    private EntityManager acquireEntityManager() {
+        UnitOfWork work = UnitOfWork.current(emf);
+        if (work != null) {
+            return work.getEntityManager();
+        }
+        return createEntityManager();
+    }
+
+    private void release(EntityManager em) {
+        if (UnitOfWork.current(emf) == null) {
+            em.close();
+        }
+    }
+
+    private void countOnCommit(UnitOfWork work, final long delta) {
+        work.onCommit(new Runnable() {
+            @Override
+            public void run() {
+                counted.addAndGet(delta);
+            }
+        });
+    }
+
+    private long generation(Object key) {
+        return generations.get(stripe(key));
+    }
+
+    private int stripe(Object key) {
+        return key.hashCode() & (GENERATIONS - 1);
+    }
+
+    private void invalidateOnCommit(UnitOfWork work, T entity) {
+        if (cache != null) {
+            invalidateKeyOnCommit(work, emf.getPersistenceUnitUtil().getIdentifier(entity));
+        }
+    }
+
+    private void invalidateOnCommit(UnitOfWork work, Collection<T> entities) {
+        if (cache == null) {
+            return;
+        }
+        PersistenceUnitUtil util = emf.getPersistenceUnitUtil();
+        List<Object> keys = Lists.newArrayList();
+        for (T entity : entities) {
+            // unsaved entities have no key, and cannot have been cached
+            Object key = util.getIdentifier(entity);
+            if (key != null) {
+                keys.add(key);
+            }
+        }
+        invalidateKeysOnCommit(work, keys);
+    }
+
+    private void invalidateKeysOnCommit(UnitOfWork work, final Collection<?> keys) {
+        if (cache == null) {
+            return;
+        }
+        work.onCommit(new Runnable() {
+            @Override
+            public void run() {
+                for (Object key : keys) {
+                    generations.incrementAndGet(stripe(key));
+                }
+                LoadingCache<K, Cached<T>> current = cache;
+                if (current != null) {
+                    current.invalidateAll(keys);
+                }
+            }
+        });
+    }
+
+    private void invalidateKeyOnCommit(UnitOfWork work, final Object key) {
+        if (cache == null || key == null) {
+            return;
+        }
+        work.onCommit(new Runnable() {
+            @Override
+            public void run() {
+                generations.incrementAndGet(stripe(key));
+                LoadingCache<K, Cached<T>> current = cache;
+                if (current != null) {
+                    current.invalidate(key);
+                }
+            }
+        });
+    }
+
     /**
      * Called within {@code DELETE} transactions to allow specialist DAOs
      * to remove foreign key references from other tables (i.e. if this entity
@@ -410,4 +1635,22 @@ public abstract class CrudDao<K, T> {
      */
     protected void removeFromManyToManyMappings(EntityManager em, T entity) {
     }
+
+    /**
+     * Called within bulk {@code DELETE} transactions, before the entities with the given keys
+     * are deleted, to allow specialist DAOs to remove rows that refer to them with set-based
+     * statements. Unlike {@link #removeFromManyToManyMappings(EntityManager, Object)}, this must
+     * also clear join and collection tables that are owned by this entity, because bulk deletes
+     * do not cascade. e.g.
+     * <code><pre>
+     * Query q = em.createNativeQuery("DELETE FROM Other_Entity WHERE entities_id IN (:ids)");
+     * q.setParameter("ids", keys);
+     * q.executeUpdate();
+     * </pre></code>
+     *
+     * @param em   which has already begun a transaction
+     * @param keys of the entities that are about to be deleted, no more than {@value #IN_CHUNK_SIZE}.
+     */
+    protected void bulkRemoveFromManyToManyMappings(EntityManager em, Collection<K> keys) {
+    }
 }
@@ -0,0 +1,180 @@
+// Copyright (c) 2013 Samuel Halliday
+package com.github.fommil.jpa;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import lombok.Getter;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.RollbackException;
+import java.io.Closeable;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A single {@link EntityManager} and {@link EntityTransaction} that is bound to the current
+ * thread, which {@link CrudDao} operations on the same {@link EntityManagerFactory} will join
+ * instead of creating their own. Typical use is
+ * <code><pre>
+ * UnitOfWork work = UnitOfWork.begin(emf);
+ * try {
+ *     Foo foo = fooDao.read(id);
+ *     barDao.create(new Bar(foo));
+ *     work.commit();
+ * } finally {
+ *     work.close();
+ * }
+ * </pre></code>
+ * Units of work may be nested, in which case only the outermost {@link #commit()}
+ * reaches the database and the whole unit is rolled back if any nested unit
+ * is closed without being committed.
+ * <p>
+ * Entities remain managed for the duration of the unit, so changes made to entities
+ * that were read within the unit will be written when it commits.
+ *
+ * @author Samuel Halliday
+ */
+@NotThreadSafe
+public final class UnitOfWork implements Closeable {
+
+    private static final ThreadLocal<Map<EntityManagerFactory, UnitOfWork>> bound =
+            new ThreadLocal<Map<EntityManagerFactory, UnitOfWork>>() {
+                @Override
+                protected Map<EntityManagerFactory, UnitOfWork> initialValue() {
+                    return Maps.newIdentityHashMap();
+                }
+            };
+
+    /**
+     * Begin a unit of work on the current thread, or join the existing one.
+     *
+     * @param emf
+     * @return
+     * @throws javax.persistence.PersistenceException
+     */
+    public static UnitOfWork begin(EntityManagerFactory emf) {
+        Preconditions.checkNotNull(emf);
+        UnitOfWork work = current(emf);
+        if (work != null) {
+            return work.join();
+        }
+        return begin(emf, emf.createEntityManager());
+    }
+
+    /**
+     * @param emf
+     * @return the unit of work bound to the current thread, or {@code null}.
+     */
+    public static UnitOfWork current(EntityManagerFactory emf) {
+        return bound.get().get(emf);
+    }
+
+    // takes ownership of the entity manager, which must not be in use
+    static UnitOfWork begin(EntityManagerFactory emf, EntityManager em) {
+        Preconditions.checkState(current(emf) == null);
+        UnitOfWork work = new UnitOfWork(emf, em);
+        try {
+            em.getTransaction().begin();
+        } catch (RuntimeException e) {
+            em.close();
+            throw e;
+        }
+        bound.get().put(emf, work);
+        return work.join();
+    }
+
+    private final EntityManagerFactory emf;
+
+    @Getter
+    private final EntityManager entityManager;
+
+    // whether each level of nesting has been committed
+    private final Deque<Boolean> levels = Lists.newLinkedList();
+
+    private final List<Runnable> onCommit = Lists.newArrayList();
+
+    private boolean rollbackOnly;
+
+    private UnitOfWork(EntityManagerFactory emf, EntityManager entityManager) {
+        this.emf = emf;
+        this.entityManager = entityManager;
+    }
+
+    private UnitOfWork join() {
+        levels.push(false);
+        return this;
+    }
+
+    /**
+     * @return {@code true} if this is a nested unit of work.
+     */
+    public boolean isNested() {
+        return levels.size() > 1;
+    }
+
+    /**
+     * Commits the transaction, unless this is a nested unit of work, in
+     * which case the commit is deferred until the outermost unit commits.
+     *
+     * @throws RollbackException if a nested unit of work was not committed,
+     *                           or the commit failed.
+     * @throws IllegalStateException if already committed or closed.
+     */
+    public void commit() {
+        Preconditions.checkState(!levels.isEmpty() && !levels.peek(), "already committed or closed");
+        if (isNested()) {
+            levels.pop();
+            levels.push(true);
+            return;
+        }
+        EntityTransaction transaction = entityManager.getTransaction();
+        if (rollbackOnly) {
+            transaction.rollback();
+            throw new RollbackException("a nested unit of work was not committed");
+        }
+        transaction.commit();
+        levels.pop();
+        levels.push(true);
+        for (Runnable runnable : onCommit) {
+            runnable.run();
+        }
+    }
+
+    /**
+     * Ends this (possibly nested) unit of work. If it has not been committed, the
+     * transaction will be rolled back. The outermost unit of work closes the
+     * {@link EntityManager} and unbinds from the current thread.
+     */
+    @Override
+    public void close() {
+        if (levels.isEmpty()) {
+            return;
+        }
+        if (!levels.pop()) {
+            rollbackOnly = true;
+        }
+        if (!levels.isEmpty()) {
+            return;
+        }
+        bound.get().remove(emf);
+        try {
+            EntityTransaction transaction = entityManager.getTransaction();
+            if (transaction.isActive()) {
+                transaction.rollback();
+            }
+        } finally {
+            entityManager.close();
+        }
+    }
+
+    // runs after the outermost unit of work has committed
+    void onCommit(Runnable runnable) {
+        Preconditions.checkNotNull(runnable);
+        onCommit.add(runnable);
+    }
+}
@@ -75,6 +75,32 @@ public final class ProducerConsumer<T> implements Iterator<T> {
     }
   }
 
+  /**
+   * Make an element available for the consumer, unless
+   * a bounded buffer is full: never blocks.
+   * Should only be used by the producer.
+   *
+   * @return `false` if the element was not accepted.
+   */
+  public boolean offer(T el) {
+    if (!queue.offer(el)) return false;
+    lock.lock();
+    try {
+      change.signal();
+    } finally {
+      lock.unlock();
+    }
+    return true;
+  }
+
+  /**
+   * @return the number of elements that may be offered without
+   * being refused, or `Integer.MAX_VALUE` if unbounded.
+   */
+  public int remainingCapacity() {
+    return queue.remainingCapacity();
+  }
+
   /**
    * Finish producing.
    * Should only be used by the producer.
@@ -0,0 +1,134 @@
+// Copyright (c) 2013 Samuel Halliday
+package com.github.fommil.collections;
+
+import com.github.fommil.collections.ChangeStream.Event;
+import com.github.fommil.collections.ObservableMap.Change;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Samuel Halliday
+ */
+public class ChangeStreamTest {
+
+    @Test
+    public void testMerging() {
+        ObservableMap<String, Integer> map = ObservableMap.newObservableHashMap();
+        ChangeStream<Change<String, Integer>> stream = ChangeStream.newChangeStream(map, 1, 100);
+        map.put("a", 1);
+        map.put("b", 1);
+        map.put("b", 2);
+        map.put("c", 1);
+        map.remove("c");
+        map.remove("a");
+
+        Event<Change<String, Integer>> first = stream.next();
+        assertFalse(first.wasOverflowed());
+        assertEquals("a", Iterables.getOnlyElement(first.getChange().getEntriesAdded()).getKey());
+
+        Change<String, Integer> merged = stream.next().getChange();
+        assertSame(map, merged.getMap());
+        Map<String, Integer> added = Maps.newHashMap();
+        for (Entry<String, Integer> entry : merged.getEntriesAdded()) {
+            added.put(entry.getKey(), entry.getValue());
+        }
+        assertEquals(ImmutableMap.of("b", 2), added);
+        assertEquals(Maps.immutableEntry("a", 1), Iterables.getOnlyElement(merged.getEntriesRemoved()));
+
+        stream.close();
+        assertFalse(stream.hasNext());
+    }
+
+    @Test
+    public void testCollection() {
+        ObservableSet<String> set = ObservableSet.newObservableHashSet();
+        ChangeStream<ObservableCollection.Change<String>> stream = ChangeStream.newChangeStream(set, 1, 100);
+        set.add("A");
+        set.add("B");
+        set.remove("B");
+        set.add("C");
+        assertEquals(Lists.newArrayList("A"), Lists.newArrayList(stream.next().getChange().getElementsAdded()));
+        ObservableCollection.Change<String> merged = stream.next().getChange();
+        assertEquals(Lists.newArrayList("C"), Lists.newArrayList(merged.getElementsAdded()));
+        assertTrue(merged.getElementsRemoved().isEmpty());
+    }
+
+    // each change must not drain and re-merge the pending change while the buffer is full
+    @Test(timeout = 10000)
+    public void testSlowConsumer() {
+        ObservableMap<Integer, String> map = ObservableMap.newObservableHashMap();
+        ChangeStream<Change<Integer, String>> stream = ChangeStream.newChangeStream(map, 1, 200000);
+        for (int i = 0; i < 100000; i++) {
+            map.put(i, "a");
+        }
+        assertEquals(1, stream.next().getChange().getEntriesAdded().size());
+        assertEquals(99999, stream.next().getChange().getEntriesAdded().size());
+    }
+
+    @Test
+    public void testOverflow() {
+        ObservableMap<Integer, String> map = ObservableMap.newObservableHashMap();
+        ChangeStream<Change<Integer, String>> stream = ChangeStream.newChangeStream(map, 1, 2);
+        for (int i = 0; i < 10; i++) {
+            map.put(i, "a");
+        }
+        assertEquals(Integer.valueOf(0), Iterables.getOnlyElement(stream.next().getChange().getEntriesAdded()).getKey());
+        Event<Change<Integer, String>> resync = stream.next();
+        assertTrue(resync.wasOverflowed());
+        assertNull(resync.getChange());
+
+        map.put(10, "a");
+        assertEquals(Integer.valueOf(10), Iterables.getOnlyElement(stream.next().getChange().getEntriesAdded()).getKey());
+    }
+
+    @Test
+    public void testConcurrentReplica() throws Exception {
+        final ObservableMap<Integer, Integer> map = ObservableMap.newObservableMap(new ConcurrentHashMap<Integer, Integer>());
+        final ChangeStream<Change<Integer, Integer>> stream = ChangeStream.newChangeStream(map, 4, 50);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<Map<Integer, Integer>> replica = executor.submit(new Callable<Map<Integer, Integer>>() {
+            @Override
+            public Map<Integer, Integer> call() throws Exception {
+                Map<Integer, Integer> replica = Maps.newHashMap();
+                while (stream.hasNext()) {
+                    Event<Change<Integer, Integer>> event = stream.next();
+                    if (event.wasOverflowed()) {
+                        replica = Maps.newHashMap(map);
+                        continue;
+                    }
+                    for (Entry<Integer, Integer> entry : event.getChange().getEntriesRemoved()) {
+                        replica.remove(entry.getKey());
+                    }
+                    for (Entry<Integer, Integer> entry : event.getChange().getEntriesAdded()) {
+                        replica.put(entry.getKey(), entry.getValue());
+                    }
+                }
+                return replica;
+            }
+        });
+        Random random = new Random();
+        for (int i = 0; i < 100000; i++) {
+            int key = random.nextInt(100);
+            if (random.nextInt(4) == 0)
+                map.remove(key);
+            else
+                map.put(key, i);
+        }
+        stream.close();
+        try {
+            assertEquals(Maps.newHashMap(map), replica.get(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,190 @@
+// Copyright (c) 2013 Samuel Halliday
+package com.github.fommil.collections;
+
+import com.github.fommil.collections.ObservableCollection.Change;
+import com.github.fommil.collections.ObservableCollection.CollectionListener;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import lombok.extern.java.Log;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Samuel Halliday
+ */
+@Log
+public class ConcurrentObservableSetTest {
+
+    @Test
+    public void testOnlyRealChanges() {
+        ObservableSet<String> set = ObservableSet.newObservableConcurrentSet();
+        final List<Change<String>> changes = Lists.newCopyOnWriteArrayList();
+        set.addCollectionListener(new CollectionListener<String>() {
+            @Override
+            public void onCollectionChanged(Change<String> change) {
+                changes.add(change);
+            }
+        });
+        assertTrue(set.add("A"));
+        assertFalse(set.add("A"));
+        assertFalse(set.remove("B"));
+        assertTrue(set.addAll(Lists.newArrayList("A", "B", "C")));
+        assertFalse(set.addAll(Lists.newArrayList("A", "B")));
+        assertTrue(set.retainAll(Sets.newHashSet("A", "D")));
+        assertEquals(Sets.newHashSet("A"), Sets.newHashSet(set));
+        set.clear();
+        set.clear();
+        assertTrue(set.isEmpty());
+
+        assertEquals(4, changes.size());
+        assertEquals(Sets.newHashSet("B", "C"), Sets.newHashSet(changes.get(1).getElementsAdded()));
+        assertEquals(Sets.newHashSet("B", "C"), Sets.newHashSet(changes.get(2).getElementsRemoved()));
+        assertEquals(Sets.newHashSet("A"), Sets.newHashSet(changes.get(3).getElementsRemoved()));
+    }
+
+    // listeners must see each element alternate between added and removed
+    private static final class Presence implements CollectionListener<Integer> {
+        final AtomicIntegerArray presence;
+
+        final AtomicInteger violations = new AtomicInteger();
+
+        Presence(int elements) {
+            presence = new AtomicIntegerArray(elements);
+        }
+
+        @Override
+        public void onCollectionChanged(Change<Integer> change) {
+            for (Integer element : change.getElementsAdded()) {
+                if (presence.getAndIncrement(element) != 0)
+                    violations.incrementAndGet();
+            }
+            for (Integer element : change.getElementsRemoved()) {
+                if (presence.getAndDecrement(element) != 1)
+                    violations.incrementAndGet();
+            }
+        }
+
+        void check(ObservableSet<Integer> set) {
+            assertEquals(0, violations.get());
+            for (int i = 0; i < presence.length(); i++) {
+                assertEquals(set.contains(i) ? 1 : 0, presence.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testPerElementOrdering() throws Exception {
+        final int elements = 16;
+        final ObservableSet<Integer> set = ObservableSet.newObservableConcurrentSet();
+        Presence presence = new Presence(elements);
+        set.addCollectionListener(presence);
+        run(set, 8, 20000, elements);
+        presence.check(set);
+    }
+
+    @Test
+    public void testBulkOrdering() throws Exception {
+        final int elements = 16;
+        final ObservableSet<Integer> set = ObservableSet.newObservableConcurrentSet();
+        Presence presence = new Presence(elements);
+        set.addCollectionListener(presence);
+        final AtomicBoolean running = new AtomicBoolean(true);
+        Thread bulk = new Thread() {
+            @Override
+            public void run() {
+                Random random = new Random();
+                while (running.get()) {
+                    if (random.nextBoolean())
+                        set.clear();
+                    else
+                        set.retainAll(Sets.newHashSet(random.nextInt(elements), random.nextInt(elements)));
+                }
+            }
+        };
+        bulk.start();
+        try {
+            run(set, 4, 20000, elements);
+        } finally {
+            running.set(false);
+            bulk.join();
+        }
+        presence.check(set);
+    }
+
+    @Ignore("benchmark")
+    @Test
+    public void testScalability() throws Exception {
+        CollectionListener<Integer> listener = new CollectionListener<Integer>() {
+            @Override
+            public void onCollectionChanged(Change<Integer> change) {
+            }
+        };
+        int operations = 1000000;
+        for (int threads = 1; threads <= 32; threads *= 2) {
+            ObservableSet<Integer> concurrent = ObservableSet.newObservableConcurrentSet();
+            concurrent.addCollectionListener(listener);
+            ObservableSet<Integer> synced = new ObservableSet<Integer>(Sets.<Integer>newHashSet()) {
+                @Override
+                public synchronized boolean add(Integer e) {
+                    return super.add(e);
+                }
+
+                @Override
+                public synchronized boolean remove(Object o) {
+                    return super.remove(o);
+                }
+            };
+            synced.addCollectionListener(listener);
+
+            long concurrentMillis = run(concurrent, threads, operations / threads, 100000);
+            long syncedMillis = run(synced, threads, operations / threads, 100000);
+            log.info(threads + " threads: concurrent " + operations * 1000L / Math.max(1, concurrentMillis)
+                    + " ops/s, synchronized " + operations * 1000L / Math.max(1, syncedMillis) + " ops/s");
+        }
+    }
+
+    // returns the milliseconds taken by the threads to randomly add and remove
+    private long run(final ObservableSet<Integer> set, int threads, final int operations, final int elements)
+            throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> futures = Lists.newArrayList();
+            for (int t = 0; t < threads; t++) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        Random random = new Random();
+                        start.await();
+                        for (int i = 0; i < operations; i++) {
+                            Integer element = random.nextInt(elements);
+                            if (random.nextBoolean())
+                                set.add(element);
+                            else
+                                set.remove(element);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            Stopwatch watch = new Stopwatch().start();
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            return watch.elapsed(TimeUnit.MILLISECONDS);
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+// Copyright (c) 2013 Samuel Halliday
+package com.github.fommil.collections;
+
+import com.github.fommil.collections.ListenerRegistry.Registration;
+import com.github.fommil.collections.ObservableCollection.Change;
+import com.github.fommil.collections.ObservableCollection.CollectionListener;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Samuel Halliday
+ */
+public class ListenerRegistryTest {
+
+    private static final class Counter implements CollectionListener<String> {
+        final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public void onCollectionChanged(Change<String> change) {
+            count.incrementAndGet();
+        }
+    }
+
+    @Test
+    public void testClose() {
+        ObservableSet<String> set = ObservableSet.newObservableHashSet();
+        Counter first = new Counter();
+        Counter second = new Counter();
+        Registration registration = set.listen(first);
+        set.addCollectionListener(second);
+        set.add("A");
+        registration.close();
+        registration.close();
+        set.add("B");
+        assertEquals(1, first.count.get());
+        assertEquals(2, second.count.get());
+
+        set.removeCollectionListener(second);
+        set.add("C");
+        assertEquals(2, second.count.get());
+    }
+
+    @Test
+    public void testRegisterDuringDispatch() {
+        final ObservableSet<String> set = ObservableSet.newObservableHashSet();
+        final Counter late = new Counter();
+        set.addCollectionListener(new CollectionListener<String>() {
+            @Override
+            public void onCollectionChanged(Change<String> change) {
+                set.addCollectionListener(late);
+            }
+        });
+        set.add("A");
+        assertEquals(0, late.count.get());
+        set.add("B");
+        assertEquals(1, late.count.get());
+    }
+
+    @Test
+    public void testWeak() throws Exception {
+        ListenerRegistry<Object> registry = new ListenerRegistry<Object>();
+        Object strong = new Object();
+        registry.register(strong);
+        for (int i = 0; i < 1000; i++) {
+            registry.registerWeakly(new Object());
+        }
+        for (int i = 0; i < 10 && registry.size() > 1; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertEquals(Lists.newArrayList(strong), Lists.newArrayList(registry));
+        assertEquals(1, registry.size());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testMaximum() {
+        ListenerRegistry<Object> registry = new ListenerRegistry<Object>(2);
+        registry.register(new Object());
+        registry.register(new Object());
+        registry.register(new Object());
+    }
+}
@@ -0,0 +1,171 @@
+// Copyright (c) 2013 Samuel Halliday
+package com.github.fommil.collections;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Samuel Halliday
+ */
+public class MapJournalTest {
+
+    private File dir;
+
+    @Before
+    public void createDir() {
+        dir = Files.createTempDir();
+    }
+
+    @After
+    public void deleteDir() {
+        for (File file : dir.listFiles()) {
+            assertTrue(file.delete());
+        }
+        assertTrue(dir.delete());
+    }
+
+    private MapJournal<String, Long> newJournal(int segmentSize) {
+        return new MapJournal<String, Long>(dir, MapJournal.STRING, MapJournal.LONG, segmentSize, 10, 2);
+    }
+
+    @Test
+    public void testRecover() throws Exception {
+        MapJournal<String, Long> journal = newJournal(1024 * 1024);
+        ObservableMap<String, Long> map = journal.recover(Maps.<String, Long>newHashMap());
+        assertTrue(map.isEmpty());
+        map.put("a", 1L);
+        map.put("b", 2L);
+        map.put("a", 3L);
+        map.putAll(ImmutableMap.of("c", 4L, "d", 5L));
+        map.remove("b");
+        map.keySet().remove("d");
+        journal.close();
+
+        MapJournal<String, Long> recovered = newJournal(1024 * 1024);
+        Map<String, Long> again = recovered.recover(Maps.<String, Long>newHashMap());
+        assertEquals(ImmutableMap.of("a", 3L, "c", 4L), again);
+
+        again.clear();
+        again.put("e", 6L);
+        recovered.close();
+
+        MapJournal<String, Long> cleared = newJournal(1024 * 1024);
+        assertEquals(ImmutableMap.of("e", 6L), cleared.recover(Maps.<String, Long>newHashMap()));
+        cleared.close();
+    }
+
+    @Test
+    public void testAppendToTail() throws Exception {
+        MapJournal<String, Long> journal = newJournal(1024 * 1024);
+        journal.recover(Maps.<String, Long>newHashMap()).put("a", 1L);
+        journal.close();
+
+        // a torn record after the last valid one
+        File segment = dir.listFiles()[0];
+        byte[] bytes = Files.toByteArray(segment);
+        int end = bytes.length;
+        while (bytes[end - 1] == 0) {
+            end--;
+        }
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        try {
+            raf.seek(end);
+            raf.write(new byte[]{0, 0, 0, 20, 1, 2, 3, 4, 9, 9, 9});
+        } finally {
+            raf.close();
+        }
+
+        MapJournal<String, Long> recovered = newJournal(1024 * 1024);
+        Map<String, Long> again = recovered.recover(Maps.<String, Long>newHashMap());
+        assertEquals(ImmutableMap.of("a", 1L), again);
+        again.put("b", 2L);
+        recovered.close();
+        assertEquals(1, dir.list().length);
+
+        MapJournal<String, Long> twice = newJournal(1024 * 1024);
+        assertEquals(ImmutableMap.of("a", 1L, "b", 2L), twice.recover(Maps.<String, Long>newHashMap()));
+        twice.close();
+        assertEquals(1, dir.list().length);
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        MapJournal<String, Long> journal = newJournal(256);
+        ObservableMap<String, Long> map = journal.recover(Maps.<String, Long>newHashMap());
+        for (long i = 0; i < 1000; i++) {
+            map.put(Long.toString(i % 50), i);
+        }
+        journal.close();
+        // older segments are replaced by snapshots
+        assertTrue(dir.list().length < 10);
+
+        MapJournal<String, Long> recovered = newJournal(256);
+        Map<String, Long> again = recovered.recover(Maps.<String, Long>newHashMap());
+        recovered.close();
+        assertEquals(map, again);
+        assertEquals(950L, again.get("0").longValue());
+    }
+
+    @Test
+    public void testSnapshotFailsDuringRoll() throws Exception {
+        MapJournal<String, Long> journal = newJournal(256);
+        ObservableMap<String, Long> map = journal.recover(Maps.<String, Long>newHashMap());
+        // the first snapshot cannot replace a non-empty directory
+        File blocker = new File(dir, String.format("snapshot-%019d.bin", 2));
+        assertTrue(new File(blocker, "blocker").mkdirs());
+        int failures = 0;
+        for (long i = 0; i < 100; i++) {
+            try {
+                map.put(Long.toString(i % 10), i);
+            } catch (RuntimeException e) {
+                failures++;
+            }
+        }
+        assertTrue(failures > 0);
+        assertTrue(new File(blocker, "blocker").delete());
+        assertTrue(blocker.delete());
+        // the journal is still usable, and retries the snapshot
+        for (long i = 100; i < 500; i++) {
+            map.put(Long.toString(i % 10), i);
+        }
+        journal.close();
+        journal.close();
+        for (File file : dir.listFiles()) {
+            if (file.getName().endsWith(".tmp")) {
+                assertTrue(file.delete());
+            }
+        }
+
+        MapJournal<String, Long> recovered = newJournal(256);
+        Map<String, Long> again = recovered.recover(Maps.<String, Long>newHashMap());
+        recovered.close();
+        assertEquals(map, again);
+        assertEquals(490L, again.get("0").longValue());
+    }
+
+    @Test
+    public void testLargeRecord() throws Exception {
+        MapJournal<String, Long> journal = newJournal(64);
+        ObservableMap<String, Long> map = journal.recover(Maps.<String, Long>newHashMap());
+        Map<String, Long> big = Maps.newHashMap();
+        for (long i = 0; i < 100; i++) {
+            big.put("key" + i, i);
+        }
+        map.putAll(big);
+        journal.close();
+
+        MapJournal<String, Long> recovered = newJournal(64);
+        assertEquals(big, recovered.recover(Maps.<String, Long>newHashMap()));
+        recovered.close();
+    }
+}
@@ -0,0 +1,144 @@
+// Copyright (c) 2013 Samuel Halliday
+package com.github.fommil.collections;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Samuel Halliday
+ */
+public class MapReplicationTest {
+
+    private static final InetSocketAddress LOOPBACK = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+
+    private static void awaitSequence(MapReplica<?, ?> replica, long sequence) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (replica.getSequence() != sequence && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(sequence, replica.getSequence());
+    }
+
+    private static void awaitAtLeast(MapReplica<?, ?> replica, long sequence) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (replica.getSequence() < sequence && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(replica.getSequence() >= sequence);
+    }
+
+    @Test
+    public void testReplication() throws Exception {
+        ObservableMap<String, Long> master = ObservableMap.newObservableHashMap();
+        master.put("before", 1L);
+        MapReplicationServer<String, Long> server = new MapReplicationServer<String, Long>(
+                master, MapJournal.STRING, MapJournal.LONG, LOOPBACK, 1024 * 1024);
+        MapReplica<String, Long> replica = new MapReplica<String, Long>(
+                server.getAddress(), MapJournal.STRING, MapJournal.LONG, 10);
+        try {
+            awaitSequence(replica, 0);
+            assertEquals(Maps.newHashMap(master), Maps.newHashMap(replica.getMap()));
+
+            master.put("a", 1L);
+            master.put("a", 2L);
+            master.remove("before");
+            master.putAll(ImmutableMap.of("b", 3L, "c", 4L));
+            awaitSequence(replica, server.getSequence());
+            assertEquals(Maps.newHashMap(master), Maps.newHashMap(replica.getMap()));
+
+            master.clear();
+            awaitSequence(replica, server.getSequence());
+            assertTrue(replica.getMap().isEmpty());
+        } finally {
+            replica.close();
+            server.close();
+        }
+    }
+
+    @Test
+    public void testLaggingReplicaCatchesUp() throws Exception {
+        ObservableMap<String, Long> master = ObservableMap.newObservableHashMap();
+        // small enough that a burst of changes disconnects the replica
+        MapReplicationServer<String, Long> server = new MapReplicationServer<String, Long>(
+                master, MapJournal.STRING, MapJournal.LONG, LOOPBACK, 256);
+        MapReplica<String, Long> replica = new MapReplica<String, Long>(
+                server.getAddress(), MapJournal.STRING, MapJournal.LONG, 10);
+        try {
+            awaitSequence(replica, 0);
+            Random random = new Random();
+            for (int i = 0; i < 50000; i++) {
+                master.put(Integer.toString(random.nextInt(1000)), (long) i);
+            }
+            awaitSequence(replica, server.getSequence());
+            assertEquals(Maps.newHashMap(master), Maps.newHashMap(replica.getMap()));
+        } finally {
+            replica.close();
+            server.close();
+        }
+    }
+
+    @Test
+    public void testConvergesWhileChanging() throws Exception {
+        final ObservableMap<Long, String> master = ObservableMap.newObservableHashMap();
+        String large = Strings.repeat("x", 10000);
+        for (long i = 0; i < 1000; i++) {
+            master.put(i, large);
+        }
+        // the snapshot is far larger than the backlog, and takes several writes to send
+        MapReplicationServer<Long, String> server = new MapReplicationServer<Long, String>(
+                master, MapJournal.LONG, MapJournal.STRING, LOOPBACK, 4096);
+        final AtomicBoolean changing = new AtomicBoolean(true);
+        Thread mutator = new Thread() {
+            @Override
+            public void run() {
+                Random random = new Random();
+                for (long i = 0; changing.get(); i++) {
+                    master.put((long) random.nextInt(1000), Long.toString(i));
+                    LockSupport.parkNanos(1000000);
+                }
+            }
+        };
+        mutator.start();
+        MapReplica<Long, String> replica = new MapReplica<Long, String>(
+                server.getAddress(), MapJournal.LONG, MapJournal.STRING, 10);
+        try {
+            // a replica that is slow to start reading must still receive the whole snapshot
+            SocketChannel slow = SocketChannel.open(server.getAddress());
+            try {
+                Thread.sleep(50);
+                ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+                long received = 0;
+                while (received < 1000L * large.length()) {
+                    buffer.clear();
+                    int read = slow.read(buffer);
+                    assertTrue("disconnected after " + received + " bytes", read >= 0);
+                    received += read;
+                }
+            } finally {
+                slow.close();
+            }
+
+            awaitAtLeast(replica, server.getSequence());
+            changing.set(false);
+            mutator.join();
+            awaitSequence(replica, server.getSequence());
+            assertEquals(Maps.newHashMap(master), Maps.newHashMap(replica.getMap()));
+        } finally {
+            changing.set(false);
+            replica.close();
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+// Copyright (c) 2013 Samuel Halliday
+package com.github.fommil.collections;
+
+import com.github.fommil.collections.ObservableCollection.CollectionListener;
+import com.github.fommil.collections.ObservableMap.MapListener;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks of the observables compared to their raw delegates, each against
+ * {@code HashMap}, {@code TreeMap} and {@code ConcurrentHashMap} delegates (or
+ * the equivalent {@code Set}s) with 0, 1 and 100 listeners.
+ *
+ * @author Samuel Halliday
+ * @see ObservableBenchmarkTest
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ObservableBenchmark {
+
+    private static final int KEYS = 1024, BULK = 10000;
+
+    private static final Integer[] keys = new Integer[KEYS];
+
+    static {
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = i;
+        }
+    }
+
+    @Param({"HashMap", "TreeMap", "ConcurrentHashMap"})
+    public String type;
+
+    // "raw" benchmarks the delegate itself
+    @Param({"raw", "0", "1", "100"})
+    public String listeners;
+
+    private Set<Integer> set;
+
+    private Map<Integer, Integer> map, full, bulk;
+
+    private int i, sink;
+
+    private Map<Integer, Integer> newMap() {
+        if (type.equals("HashMap")) {
+            return Maps.newHashMap();
+        }
+        if (type.equals("TreeMap")) {
+            return Maps.newTreeMap();
+        }
+        return new ConcurrentHashMap<Integer, Integer>();
+    }
+
+    @SuppressWarnings("unchecked")
+    private Set<Integer> newSet() {
+        return Sets.newSetFromMap((Map<Integer, Boolean>) (Map<?, ?>) newMap());
+    }
+
+    private Set<Integer> listen(Set<Integer> raw) {
+        if (listeners.equals("raw")) {
+            return raw;
+        }
+        ObservableSet<Integer> observable = ObservableSet.newObservableSet(raw);
+        for (int l = Integer.parseInt(listeners); l > 0; l--) {
+            observable.addCollectionListener(new CollectionListener<Integer>() {
+                @Override
+                public void onCollectionChanged(ObservableCollection.Change<Integer> change) {
+                    sink += change.getElementsAdded().size();
+                }
+            });
+        }
+        return observable;
+    }
+
+    private Map<Integer, Integer> listen(Map<Integer, Integer> raw) {
+        if (listeners.equals("raw")) {
+            return raw;
+        }
+        ObservableMap<Integer, Integer> observable = ObservableMap.newObservableMap(raw);
+        for (int l = Integer.parseInt(listeners); l > 0; l--) {
+            observable.addMapListener(new MapListener<Integer, Integer>() {
+                @Override
+                public void onMapChanged(ObservableMap.Change<Integer, Integer> change) {
+                    sink += change.getEntriesAdded().size();
+                }
+            });
+        }
+        return observable;
+    }
+
+    @Setup
+    public void setup() {
+        set = listen(newSet());
+        map = listen(newMap());
+        full = listen(newMap());
+        for (Integer key : keys) {
+            full.put(key, key);
+        }
+        bulk = Maps.newHashMap();
+        for (int b = 0; b < BULK; b++) {
+            bulk.put(b, keys[b & 7]);
+        }
+    }
+
+    @Benchmark
+    public boolean setAddRemove() {
+        Integer key = keys[i++ & (KEYS - 1)];
+        return set.add(key) || set.remove(key);
+    }
+
+    @Benchmark
+    public Integer mapPut() {
+        return map.put(keys[i++ & (KEYS - 1)], keys[i & 7]);
+    }
+
+    @Benchmark
+    public Integer mapGet() {
+        return full.get(keys[i++ & (KEYS - 1)]);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int mapPutAllClear() {
+        map.putAll(bulk);
+        map.clear();
+        return sink;
+    }
+
+    @Benchmark
+    public int mapViews() {
+        return full.keySet().size() + full.entrySet().size();
+    }
+}
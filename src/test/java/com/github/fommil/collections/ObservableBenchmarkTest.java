@@ -0,0 +1,28 @@
+// Copyright (c) 2013 Samuel Halliday
+package com.github.fommil.collections;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the {@link ObservableBenchmark}s, reporting the time and (with the
+ * GC profiler) the bytes allocated per operation.
+ *
+ * @author Samuel Halliday
+ */
+@Ignore("benchmark")
+public class ObservableBenchmarkTest {
+
+    @Test
+    public void testBenchmarks() throws Exception {
+        Options options = new OptionsBuilder()
+                .include(ObservableBenchmark.class.getName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
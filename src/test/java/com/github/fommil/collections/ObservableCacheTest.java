@@ -0,0 +1,172 @@
+// Copyright (c) 2013 Samuel Halliday
+package com.github.fommil.collections;
+
+import com.github.fommil.collections.ObservableMap.Change;
+import com.github.fommil.collections.ObservableMap.MapListener;
+import com.google.common.base.Ticker;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Samuel Halliday
+ */
+public class ObservableCacheTest {
+
+    private static final class FakeTicker extends Ticker {
+        final AtomicLong nanos = new AtomicLong();
+
+        @Override
+        public long read() {
+            return nanos.get();
+        }
+    }
+
+    private static final class Recorder implements MapListener<String, String> {
+        final List<Change<String, String>> changes = Lists.newCopyOnWriteArrayList();
+
+        @Override
+        public void onMapChanged(Change<String, String> change) {
+            changes.add(change);
+        }
+
+        Change<String, String> last() {
+            return Iterables.getLast(changes);
+        }
+    }
+
+    @Test
+    public void testSizeEviction() {
+        ObservableCache<String, String> cache = ObservableCache.newObservableCache(
+                CacheBuilder.newBuilder().concurrencyLevel(1).maximumSize(2));
+        Recorder recorder = new Recorder();
+        cache.addMapListener(recorder);
+        cache.put("1", "A");
+        cache.put("2", "B");
+        cache.get("1"); // 2 is now least recently used
+        cache.put("3", "C");
+        assertEquals(2, cache.size());
+        assertFalse(cache.containsKey("2"));
+
+        Change<String, String> eviction = recorder.changes.get(2);
+        assertEquals(RemovalCause.SIZE, eviction.getCause());
+        assertTrue(eviction.wasRemoved());
+        assertEquals("2", Iterables.getOnlyElement(eviction.getEntriesRemoved()).getKey());
+        assertEquals(RemovalCause.EXPLICIT, recorder.last().getCause());
+        assertTrue(recorder.last().wasAdded());
+        assertEquals(4, recorder.changes.size());
+    }
+
+    @Test
+    public void testExpiry() {
+        FakeTicker ticker = new FakeTicker();
+        ObservableCache<String, String> cache = ObservableCache.newObservableCache(
+                CacheBuilder.newBuilder().ticker(ticker).expireAfterWrite(1, TimeUnit.SECONDS));
+        Recorder recorder = new Recorder();
+        cache.put("1", "A");
+        cache.addMapListener(recorder);
+        ticker.nanos.addAndGet(TimeUnit.SECONDS.toNanos(2));
+        cache.cleanUp();
+        assertTrue(cache.isEmpty());
+        assertEquals(RemovalCause.EXPIRED, recorder.last().getCause());
+        assertEquals(1, recorder.changes.size());
+    }
+
+    @Test
+    public void testExplicitRemovalNotDuplicated() {
+        ObservableCache<String, String> cache = ObservableCache.newObservableCache(CacheBuilder.newBuilder());
+        Recorder recorder = new Recorder();
+        cache.addMapListener(recorder);
+        cache.put("1", "A");
+        cache.put("1", "B");
+        cache.remove("1");
+        assertEquals(3, recorder.changes.size());
+        for (Change<String, String> change : recorder.changes) {
+            assertEquals(RemovalCause.EXPLICIT, change.getCause());
+        }
+    }
+
+    @Test
+    public void testLoad() throws Exception {
+        ObservableCache<String, String> cache = ObservableCache.newObservableCache(CacheBuilder.newBuilder().recordStats());
+        Recorder recorder = new Recorder();
+        cache.addMapListener(recorder);
+        final AtomicInteger loads = new AtomicInteger();
+        Callable<String> loader = new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                loads.incrementAndGet();
+                return "A";
+            }
+        };
+        assertEquals("A", cache.get("1", loader));
+        assertEquals("A", cache.get("1", loader));
+        assertEquals(1, loads.get());
+        assertEquals(1, recorder.changes.size());
+        assertEquals(1, cache.stats().hitCount());
+    }
+
+    @Test
+    public void testConcurrentChangesAreReportedExactly() throws Exception {
+        final ObservableCache<String, String> cache = ObservableCache.newObservableCache(CacheBuilder.newBuilder());
+        final Map<String, String> mirror = Maps.newConcurrentMap();
+        cache.addMapListener(new MapListener<String, String>() {
+            @Override
+            public void onMapChanged(Change<String, String> change) {
+                for (Entry<String, String> entry : change.getEntriesRemoved()) {
+                    assertTrue(mirror.remove(entry.getKey(), entry.getValue()));
+                }
+                for (Entry<String, String> entry : change.getEntriesAdded()) {
+                    mirror.put(entry.getKey(), entry.getValue());
+                }
+            }
+        });
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<?>> futures = Lists.newArrayList();
+        for (int t = 0; t < 4; t++) {
+            final Random random = new Random(t);
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (int i = 0; i < 10000; i++) {
+                        String key = Integer.toString(random.nextInt(20));
+                        switch (random.nextInt(10)) {
+                            case 0:
+                                cache.clear();
+                                break;
+                            case 1:
+                                cache.putAll(ImmutableMap.of(key, "A" + i, key + "x", "B" + i));
+                                break;
+                            case 2:
+                            case 3:
+                                cache.remove(key);
+                                break;
+                            default:
+                                cache.put(key, Integer.toString(i));
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        assertEquals(Maps.newHashMap(cache), mirror);
+    }
+}
@@ -3,11 +3,18 @@ package com.github.fommil.collections;
 
 import com.github.fommil.collections.ObservableCollection.Change;
 import com.github.fommil.collections.ObservableCollection.CollectionListener;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import lombok.extern.java.Log;
+import org.junit.Ignore;
 import org.junit.Test;
 
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.junit.Assert.*;
@@ -16,6 +23,7 @@ import static org.junit.Assert.*;
  *
  * @author Samuel Halliday
  */
+@Log
 public class ObservableCollectionTest {
     
     private ObservableCollection<String> newTestCollection() {
@@ -183,4 +191,60 @@ public class ObservableCollectionTest {
         assertEquals(0, collection.size());
         assertTrue(listened.get());
     }
+
+    @Test
+    public void testParallelRetainAll() {
+        ObservableCollection<Integer> collection = ObservableCollection.newObservableCollection(
+                Lists.<Integer>newArrayList());
+        for (int i = 0; i < 20000; i++) {
+            collection.add(i % 10000);
+        }
+        final List<Change<Integer>> changes = Lists.newArrayList();
+        collection.addCollectionListener(new CollectionListener<Integer>() {
+            @Override
+            public void onCollectionChanged(Change<Integer> change) {
+                changes.add(change);
+            }
+        });
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            assertTrue(collection.parallelRetainAll(Lists.newArrayList(1, 2, 3), pool));
+            assertEquals(Lists.newArrayList(1, 2, 3, 1, 2, 3), Lists.newArrayList(collection));
+            assertEquals(19994, Iterables.getOnlyElement(changes).getElementsRemoved().size());
+
+            assertFalse(collection.parallelRemoveAll(Lists.newArrayList(4), pool));
+            assertTrue(collection.parallelRemoveAll(Lists.newArrayList(2), pool));
+            assertEquals(Lists.newArrayList(1, 3, 1, 3), Lists.newArrayList(collection));
+            assertEquals(Lists.newArrayList(2, 2), Lists.newArrayList(changes.get(1).getElementsRemoved()));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Ignore("benchmark")
+    @Test
+    public void testParallelRetainAllPerformance() {
+        int size = 10000000;
+        List<Integer> keep = Lists.newArrayList();
+        ObservableSet<Integer> sequential = ObservableSet.newObservableHashSet();
+        ObservableSet<Integer> parallel = ObservableSet.newObservableHashSet();
+        for (int i = 0; i < size; i++) {
+            sequential.add(i);
+            parallel.add(i);
+            if (i % 2 == 0)
+                keep.add(i);
+        }
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            Stopwatch watch = new Stopwatch().start();
+            sequential.retainAll(keep);
+            log.info("sequential retainAll: " + watch.elapsed(TimeUnit.MILLISECONDS) + "ms");
+            watch.reset().start();
+            parallel.parallelRetainAll(keep, pool);
+            log.info("parallel retainAll: " + watch.elapsed(TimeUnit.MILLISECONDS) + "ms");
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(sequential.size(), parallel.size());
+    }
 }
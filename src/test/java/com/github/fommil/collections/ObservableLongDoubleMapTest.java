@@ -0,0 +1,144 @@
+// Copyright (c) 2013 Samuel Halliday
+package com.github.fommil.collections;
+
+import com.github.fommil.collections.ObservableLongDoubleMap.Change;
+import com.github.fommil.collections.ObservableLongDoubleMap.LongDoubleMapListener;
+import com.github.fommil.collections.ObservableLongDoubleMap.LongDoubleProcedure;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.Maps;
+import lombok.extern.java.Log;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.github.fommil.collections.ObservableLongSetTest.usedMemory;
+import static org.junit.Assert.*;
+
+/**
+ * @author Samuel Halliday
+ */
+@Log
+public class ObservableLongDoubleMapTest {
+
+    @Test
+    public void testPut() {
+        ObservableLongDoubleMap map = new ObservableLongDoubleMap();
+        assertTrue(Double.isNaN(map.put(4, 1.0)));
+        final AtomicBoolean listened = new AtomicBoolean();
+        map.addLongDoubleMapListener(new LongDoubleMapListener() {
+            @Override
+            public void onLongDoubleMapChanged(Change change) {
+                assertTrue(change.wasAdded());
+                assertTrue(change.wasRemoved());
+                assertArrayEquals(new long[]{4}, change.getKeysRemoved());
+                assertArrayEquals(new double[]{1.0}, change.getValuesRemoved(), 0.0);
+                assertArrayEquals(new long[]{4}, change.getKeysAdded());
+                assertArrayEquals(new double[]{2.0}, change.getValuesAdded(), 0.0);
+                listened.set(true);
+            }
+        });
+        assertEquals(1.0, map.put(4, 2.0), 0.0);
+        assertEquals(2.0, map.get(4), 0.0);
+        assertEquals(1, map.size());
+        assertTrue(listened.get());
+    }
+
+    @Test
+    public void testRemove() {
+        ObservableLongDoubleMap map = new ObservableLongDoubleMap();
+        map.putAll(new long[]{0, 1, 2}, new double[]{0.5, 1.5, 2.5});
+        final AtomicBoolean listened = new AtomicBoolean();
+        map.addLongDoubleMapListener(new LongDoubleMapListener() {
+            @Override
+            public void onLongDoubleMapChanged(Change change) {
+                assertFalse(change.wasAdded());
+                assertArrayEquals(new long[]{0}, change.getKeysRemoved());
+                assertArrayEquals(new double[]{0.5}, change.getValuesRemoved(), 0.0);
+                listened.set(true);
+            }
+        });
+        assertEquals(0.5, map.remove(0), 0.0);
+        assertTrue(Double.isNaN(map.remove(0))); // second removal doesn't fire event
+        assertFalse(map.containsKey(0));
+        assertEquals(2, map.size());
+        assertTrue(listened.get());
+    }
+
+    @Test
+    public void testAgainstHashMap() {
+        Random random = new Random(0);
+        ObservableLongDoubleMap map = new ObservableLongDoubleMap(0);
+        Map<Long, Double> expected = Maps.newHashMap();
+        for (int i = 0; i < 100000; i++) {
+            long key = random.nextInt(1000) - 500;
+            if (random.nextBoolean()) {
+                double value = random.nextDouble();
+                Double old = expected.put(key, value);
+                assertEquals(old == null ? Double.NaN : old, map.put(key, value), 0.0);
+            } else {
+                Double old = expected.remove(key);
+                assertEquals(old == null ? Double.NaN : old, map.remove(key), 0.0);
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        for (Map.Entry<Long, Double> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), map.get(entry.getKey()), 0.0);
+        }
+
+        final Map<Long, Double> visited = Maps.newHashMap();
+        map.forEach(new LongDoubleProcedure() {
+            @Override
+            public void apply(long key, double value) {
+                assertNull(visited.put(key, value));
+            }
+        });
+        assertEquals(expected, visited);
+    }
+
+    @Ignore("benchmark")
+    @Test
+    public void testComparisonToBoxed() {
+        int size = 5000000;
+        Random random = new Random();
+        long[] keys = new long[size];
+        for (int i = 0; i < size; i++) {
+            keys[i] = random.nextLong();
+        }
+
+        long before = usedMemory();
+        Stopwatch watch = new Stopwatch().start();
+        ObservableLongDoubleMap primitive = new ObservableLongDoubleMap();
+        primitive.addLongDoubleMapListener(new LongDoubleMapListener() {
+            @Override
+            public void onLongDoubleMapChanged(Change change) {
+            }
+        });
+        for (long key : keys) {
+            primitive.put(key, key);
+        }
+        watch.stop();
+        long primitiveBytes = usedMemory() - before;
+        log.info("primitive: " + watch.elapsed(TimeUnit.MILLISECONDS) + "ms, " + primitiveBytes / size + " bytes per entry");
+
+        before = usedMemory();
+        watch = new Stopwatch().start();
+        ObservableMap<Long, Double> boxed = ObservableMap.newObservableHashMap();
+        boxed.addMapListener(new ObservableMap.MapListener<Long, Double>() {
+            @Override
+            public void onMapChanged(ObservableMap.Change<Long, Double> change) {
+            }
+        });
+        for (long key : keys) {
+            boxed.put(key, (double) key);
+        }
+        watch.stop();
+        long boxedBytes = usedMemory() - before;
+        log.info("boxed: " + watch.elapsed(TimeUnit.MILLISECONDS) + "ms, " + boxedBytes / size + " bytes per entry");
+
+        assertEquals(boxed.size(), primitive.size());
+    }
+}
@@ -0,0 +1,181 @@
+// Copyright (c) 2013 Samuel Halliday
+package com.github.fommil.collections;
+
+import com.github.fommil.collections.ListenerRegistry.Registration;
+import com.github.fommil.collections.ObservableLongSet.Change;
+import com.github.fommil.collections.ObservableLongSet.LongProcedure;
+import com.github.fommil.collections.ObservableLongSet.LongSetListener;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Longs;
+import lombok.extern.java.Log;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Samuel Halliday
+ */
+@Log
+public class ObservableLongSetTest {
+
+    @Test
+    public void testAddRemove() {
+        ObservableLongSet set = new ObservableLongSet();
+        final AtomicLong net = new AtomicLong();
+        set.addLongSetListener(new LongSetListener() {
+            @Override
+            public void onLongSetChanged(Change change) {
+                net.addAndGet(change.getElementsAdded().length - change.getElementsRemoved().length);
+            }
+        });
+        assertTrue(set.add(0));
+        assertTrue(set.add(-1));
+        assertFalse(set.add(-1));
+        assertTrue(set.addAll(1, 2, 3, -1));
+        assertEquals(5, set.size());
+        assertEquals(5, net.get());
+        assertTrue(set.contains(0));
+
+        assertTrue(set.removeAll(0, 2, 99));
+        assertFalse(set.remove(2));
+        assertEquals(3, set.size());
+        assertEquals(3, net.get());
+        assertEquals(Sets.newHashSet(-1L, 1L, 3L), Sets.newHashSet(Longs.asList(set.toArray())));
+
+        set.clear();
+        assertTrue(set.isEmpty());
+        assertEquals(0, net.get());
+    }
+
+    @Test
+    public void testExactChanges() {
+        ObservableLongSet set = new ObservableLongSet();
+        set.addAll(1, 2);
+        final AtomicLong listened = new AtomicLong();
+        set.addLongSetListener(new LongSetListener() {
+            @Override
+            public void onLongSetChanged(Change change) {
+                assertTrue(change.wasAdded());
+                assertFalse(change.wasRemoved());
+                assertArrayEquals(new long[]{3}, change.getElementsAdded());
+                listened.incrementAndGet();
+            }
+        });
+        set.addAll(1, 2, 3);
+        set.addAll(1, 2, 3);
+        assertEquals(1, listened.get());
+    }
+
+    @Test
+    public void testListen() {
+        ObservableLongSet set = new ObservableLongSet();
+        final AtomicLong listened = new AtomicLong();
+        Registration registration = set.listen(new LongSetListener() {
+            @Override
+            public void onLongSetChanged(Change change) {
+                listened.incrementAndGet();
+            }
+        });
+        set.add(1);
+        registration.close();
+        set.add(2);
+        assertEquals(1, listened.get());
+    }
+
+    @Test
+    public void testAgainstHashSet() {
+        Random random = new Random(0);
+        ObservableLongSet set = new ObservableLongSet(0);
+        Set<Long> expected = Sets.newHashSet();
+        for (int i = 0; i < 100000; i++) {
+            long element = random.nextInt(1000) - 500;
+            if (random.nextBoolean()) {
+                assertEquals(expected.add(element), set.add(element));
+            } else {
+                assertEquals(expected.remove(element), set.remove(element));
+            }
+        }
+        assertEquals(expected.size(), set.size());
+        assertEquals(expected, Sets.newHashSet(Longs.asList(set.toArray())));
+
+        final Set<Long> visited = Sets.newHashSet();
+        set.forEach(new LongProcedure() {
+            @Override
+            public void apply(long element) {
+                assertTrue(visited.add(element));
+            }
+        });
+        assertEquals(expected, visited);
+    }
+
+    @Test
+    public void testGrowLimit() {
+        assertEquals(1 << 30, LongHashing.grow(1 << 29));
+        try {
+            LongHashing.grow(1 << 30);
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Ignore("benchmark")
+    @Test
+    public void testComparisonToBoxed() {
+        int size = 5000000;
+        long[] elements = new long[size];
+        Random random = new Random();
+        for (int i = 0; i < size; i++) {
+            elements[i] = random.nextLong();
+        }
+        LongSetListener primitiveListener = new LongSetListener() {
+            @Override
+            public void onLongSetChanged(Change change) {
+            }
+        };
+        ObservableCollection.CollectionListener<Long> boxedListener = new ObservableCollection.CollectionListener<Long>() {
+            @Override
+            public void onCollectionChanged(ObservableCollection.Change<Long> change) {
+            }
+        };
+
+        long before = usedMemory();
+        Stopwatch watch = new Stopwatch().start();
+        ObservableLongSet primitive = new ObservableLongSet();
+        primitive.addLongSetListener(primitiveListener);
+        for (long element : elements) {
+            primitive.add(element);
+        }
+        watch.stop();
+        long primitiveBytes = usedMemory() - before;
+        log.info("primitive: " + watch.elapsed(TimeUnit.MILLISECONDS) + "ms, " + primitiveBytes / size + " bytes per element");
+
+        before = usedMemory();
+        watch = new Stopwatch().start();
+        ObservableSet<Long> boxed = ObservableSet.newObservableHashSet();
+        boxed.addCollectionListener(boxedListener);
+        for (long element : elements) {
+            boxed.add(element);
+        }
+        watch.stop();
+        long boxedBytes = usedMemory() - before;
+        log.info("boxed: " + watch.elapsed(TimeUnit.MILLISECONDS) + "ms, " + boxedBytes / size + " bytes per element");
+
+        assertEquals(boxed.size(), primitive.size());
+    }
+
+    static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
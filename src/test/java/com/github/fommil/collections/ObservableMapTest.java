@@ -9,8 +9,11 @@ import org.junit.Test;
 
 import java.util.AbstractMap.SimpleEntry;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.junit.Assert.*;
@@ -173,4 +176,35 @@ public class ObservableMapTest {
         assertEquals(1, map.size());
         assertTrue(listened.get());
     }
+
+    @Test
+    public void testParallelPutAll() {
+        ObservableMap<Integer, String> map = ObservableMap.newObservableMap(new ConcurrentHashMap<Integer, String>());
+        Map<Integer, String> update = Maps.newHashMap();
+        for (int i = 0; i < 10000; i++) {
+            map.put(i, "A");
+            update.put(i + 5000, i % 2 == 0 ? "A" : "B");
+        }
+        final List<Change<Integer, String>> changes = Lists.newArrayList();
+        map.addMapListener(new ObservableMap.MapListener<Integer, String>() {
+            @Override
+            public void onMapChanged(Change<Integer, String> change) {
+                changes.add(change);
+            }
+        });
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            map.parallelPutAll(update, pool);
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(15000, map.size());
+        assertEquals("B", map.get(5001));
+        Change<Integer, String> change = Iterables.getOnlyElement(changes);
+        // unchanged entries are not reported
+        assertEquals(2500 + 5000, change.getEntriesAdded().size());
+        assertEquals(2500, change.getEntriesRemoved().size());
+        assertTrue(change.wasAdded());
+        assertTrue(change.wasRemoved());
+    }
 }
@@ -0,0 +1,164 @@
+// Copyright (c) 2013 Samuel Halliday
+package com.github.fommil.collections;
+
+import com.github.fommil.collections.ListenerRegistry.Registration;
+import com.github.fommil.collections.ObservableMap.Change;
+import com.github.fommil.collections.ObservableMap.MapListener;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
+import com.google.common.collect.Sets;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Samuel Halliday
+ */
+public class ObservableNavigableMapTest {
+
+    private static final class Recorder implements MapListener<Integer, String> {
+        final List<Change<Integer, String>> changes = Lists.newArrayList();
+
+        @Override
+        public void onMapChanged(Change<Integer, String> change) {
+            changes.add(change);
+        }
+
+        List<Integer> keys() {
+            List<Integer> keys = Lists.newArrayList();
+            for (Change<Integer, String> change : changes) {
+                for (Entry<Integer, String> entry : Iterables.concat(change.getEntriesRemoved(), change.getEntriesAdded())) {
+                    if (!keys.contains(entry.getKey()))
+                        keys.add(entry.getKey());
+                }
+            }
+            return keys;
+        }
+    }
+
+    @Test
+    public void testRangeListeners() {
+        ObservableNavigableMap<Integer, String> map = ObservableNavigableMap.newObservableNavigableMap();
+        Recorder all = new Recorder();
+        Recorder window = new Recorder();
+        Recorder closed = new Recorder();
+        Recorder head = new Recorder();
+        map.addMapListener(all);
+        ObservableNavigableMap<Integer, String> view = map.subMap(10, 20);
+        view.addMapListener(window);
+        map.subMap(10, false, 20, true).addMapListener(closed);
+        map.headMap(10).addMapListener(head);
+
+        for (int i = 0; i < 30; i += 5) {
+            map.put(i, "a");
+        }
+        assertEquals(Lists.newArrayList(0, 5, 10, 15, 20, 25), all.keys());
+        assertEquals(Lists.newArrayList(10, 15), window.keys());
+        assertEquals(Lists.newArrayList(15, 20), closed.keys());
+        assertEquals(Lists.newArrayList(0, 5), head.keys());
+        assertSame(view, window.changes.get(0).getMap());
+        assertSame(map, all.changes.get(0).getMap());
+
+        // bulk changes are split between listeners
+        window.changes.clear();
+        map.clear();
+        assertEquals(1, window.changes.size());
+        assertEquals(2, window.changes.get(0).getEntriesRemoved().size());
+        assertTrue(window.changes.get(0).wasRemoved());
+        assertFalse(window.changes.get(0).wasAdded());
+    }
+
+    @Test
+    public void testViews() {
+        ObservableNavigableMap<Integer, String> map = ObservableNavigableMap.newObservableNavigableMap();
+        for (int i = 0; i < 10; i++) {
+            map.put(i, Integer.toString(i));
+        }
+        ObservableNavigableMap<Integer, String> tail = map.tailMap(5);
+        Recorder all = new Recorder();
+        map.addMapListener(all);
+
+        assertEquals(5, tail.size());
+        assertEquals(Integer.valueOf(5), tail.firstKey());
+        assertEquals("5", tail.pollFirstEntry().getValue());
+        assertFalse(map.containsKey(5));
+        tail.put(20, "20");
+        assertEquals("20", map.get(20));
+        assertEquals(Lists.newArrayList(5, 20), all.keys());
+
+        ObservableNavigableMap<Integer, String> nested = tail.headMap(8, true);
+        assertEquals(Lists.newArrayList(6, 7, 8), Lists.newArrayList(nested.keySet()));
+        Recorder recorder = new Recorder();
+        nested.addMapListener(recorder);
+        map.put(9, "x");
+        map.put(7, "x");
+        assertEquals(Lists.newArrayList(7), recorder.keys());
+
+        try {
+            nested.put(9, "x");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // out of range
+        }
+    }
+
+    @Test
+    public void testRemoveListeners() {
+        ObservableNavigableMap<Integer, String> map = ObservableNavigableMap.newObservableNavigableMap();
+        Recorder recorder = new Recorder();
+        Registration registration = map.subMap(0, 10).listen(recorder);
+        ObservableNavigableMap<Integer, String> view = map.subMap(5, 15);
+        view.addMapListener(recorder);
+        map.put(7, "a");
+        assertEquals(2, recorder.changes.size());
+
+        registration.close();
+        map.put(7, "b");
+        assertEquals(3, recorder.changes.size());
+
+        view.removeMapListener(recorder);
+        map.put(7, "c");
+        assertEquals(3, recorder.changes.size());
+    }
+
+    @Test
+    public void testIndexAgainstBruteForce() {
+        Random random = new Random(0);
+        RangeIndex<Integer, Integer> index = new RangeIndex<Integer, Integer>(Ordering.<Integer>natural());
+        TreeMap<Integer, int[]> ranges = Maps.newTreeMap();
+        for (int round = 0; round < 2000; round++) {
+            if (ranges.isEmpty() || random.nextInt(3) > 0) {
+                int from = random.nextInt(100);
+                int to = from + random.nextInt(20);
+                boolean fromInclusive = random.nextBoolean();
+                boolean toInclusive = random.nextBoolean();
+                if (from == to && !(fromInclusive && toInclusive))
+                    continue;
+                index.add(round, RangeIndex.Cut.lower(from, fromInclusive), RangeIndex.Cut.upper(to, toInclusive));
+                ranges.put(round, new int[]{from, fromInclusive ? 1 : 0, to, toInclusive ? 1 : 0});
+            } else {
+                Integer handle = Iterables.get(ranges.keySet(), random.nextInt(ranges.size()));
+                assertTrue(index.remove(handle));
+                ranges.remove(handle);
+            }
+            int key = random.nextInt(130) - 5;
+            Set<Integer> expected = Sets.newHashSet();
+            for (Entry<Integer, int[]> e : ranges.entrySet()) {
+                int[] r = e.getValue();
+                boolean above = r[1] == 1 ? key >= r[0] : key > r[0];
+                boolean below = r[3] == 1 ? key <= r[2] : key < r[2];
+                if (above && below)
+                    expected.add(e.getKey());
+            }
+            assertEquals(expected, index.get(key));
+        }
+    }
+}
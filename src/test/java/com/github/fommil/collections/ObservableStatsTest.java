@@ -0,0 +1,116 @@
+// Copyright (c) 2013 Samuel Halliday
+package com.github.fommil.collections;
+
+import com.github.fommil.collections.ObservableCollection.Change;
+import com.github.fommil.collections.ObservableCollection.CollectionListener;
+import com.github.fommil.collections.ObservableMap.MapListener;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.Iterables;
+import lombok.extern.java.Log;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Samuel Halliday
+ */
+@Log
+public class ObservableStatsTest {
+
+    private static final class NoOp<T> implements CollectionListener<T> {
+        @Override
+        public void onCollectionChanged(Change<T> change) {
+        }
+    }
+
+    @Test
+    public void testCounts() throws Exception {
+        ObservableSet<String> set = ObservableSet.newObservableHashSet();
+        assertNull(set.getStats());
+        ObservableStats stats = set.instrument("testCounts");
+        try {
+            set.addCollectionListener(new NoOp<String>());
+            set.addCollectionListener(new CollectionListener<String>() {
+                @Override
+                public void onCollectionChanged(Change<String> change) {
+                    try {
+                        Thread.sleep(5);
+                    } catch (InterruptedException e) {
+                        throw new AssertionError(e);
+                    }
+                }
+            });
+            stats.setSlowThresholdMicros(1000);
+            set.add("A");
+            set.add("A");
+            set.add("B");
+
+            assertEquals(2, stats.getMutations());
+            assertEquals(4, stats.getEvents());
+            assertEquals(2, stats.getSlowEvents());
+            assertEquals(2, stats.getListenerTimings().size());
+            for (ObservableStats.ListenerTiming timing : stats.getListenerTimings()) {
+                assertEquals(2, timing.getEvents());
+                assertTrue(timing.getMaxNanos() <= timing.getTotalNanos());
+            }
+
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("com.github.fommil.collections:type=ObservableStats,name=\"testCounts\"");
+            assertEquals(2L, server.getAttribute(name, "Mutations"));
+        } finally {
+            set.uninstrument();
+        }
+        assertNull(set.getStats());
+    }
+
+    @Test
+    public void testMap() {
+        ObservableMap<String, String> map = ObservableMap.newObservableTreeMap();
+        ObservableStats stats = map.instrument("testMap");
+        try {
+            MapListener<String, String> listener = new MapListener<String, String>() {
+                @Override
+                public void onMapChanged(ObservableMap.Change<String, String> change) {
+                }
+            };
+            map.addMapListener(listener);
+            map.put("A", "a");
+            map.remove("A");
+            assertEquals(2, stats.getMutations());
+            assertEquals(2, Iterables.getOnlyElement(stats.getListenerTimings()).getEvents());
+        } finally {
+            map.uninstrument();
+        }
+    }
+
+    @Ignore("benchmark")
+    @Test
+    public void testOverhead() {
+        int size = 10000000;
+        ObservableSet<Integer> set = ObservableSet.newObservableHashSet();
+        set.addCollectionListener(new NoOp<Integer>());
+        // warm up
+        churn(set, size);
+        long disabled = churn(set, size);
+        set.instrument("testOverhead");
+        long enabled = churn(set, size);
+        set.uninstrument();
+        long again = churn(set, size);
+        log.info("disabled: " + disabled + "ms, enabled: " + enabled + "ms, disabled again: " + again + "ms");
+    }
+
+    private long churn(ObservableSet<Integer> set, int size) {
+        Stopwatch watch = new Stopwatch().start();
+        for (int i = 0; i < size; i++) {
+            set.add(i & 1023);
+            set.remove(i & 1023);
+        }
+        return watch.elapsed(TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,230 @@
+// Copyright (c) 2013 Samuel Halliday
+package com.github.fommil.collections;
+
+import com.github.fommil.collections.ObservableCollection.Change;
+import com.github.fommil.collections.ObservableCollection.CollectionListener;
+import com.google.common.base.Function;
+import com.google.common.base.Predicate;
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Ordering;
+import com.google.common.collect.Sets;
+import org.junit.Test;
+
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.github.fommil.collections.ObservableSet.newObservableSet;
+import static org.junit.Assert.*;
+
+/**
+ * @author Samuel Halliday
+ */
+public class ObservableViewsTest {
+
+    private static final Predicate<Integer> EVEN = new Predicate<Integer>() {
+        @Override
+        public boolean apply(Integer input) {
+            return input % 2 == 0;
+        }
+    };
+
+    private static final Function<Integer, Integer> TENS = new Function<Integer, Integer>() {
+        @Override
+        public Integer apply(Integer input) {
+            return input / 10;
+        }
+    };
+
+    private ObservableSet<Integer> newTestSet() {
+        return newObservableSet(Sets.newHashSet(1, 2, 3, 4, 11, 12));
+    }
+
+    @Test
+    public void testFilter() {
+        ObservableSet<Integer> source = newTestSet();
+        ObservableSet<Integer> evens = ObservableViews.filter(source, EVEN);
+        assertEquals(Sets.newHashSet(2, 4, 12), evens);
+
+        final List<Change<Integer>> changes = Lists.newArrayList();
+        evens.addCollectionListener(new CollectionListener<Integer>() {
+            @Override
+            public void onCollectionChanged(Change<Integer> change) {
+                changes.add(change);
+            }
+        });
+        // 2 is already present and 5 is odd, so neither appears in the view's change
+        source.addAll(Lists.newArrayList(2, 5, 6));
+        source.add(7);
+        assertEquals(1, changes.size());
+        assertEquals(Lists.newArrayList(6), Lists.newArrayList(changes.get(0).getElementsAdded()));
+        assertFalse(changes.get(0).wasRemoved());
+        assertEquals(Sets.newHashSet(2, 4, 6, 12), evens);
+
+        source.removeAll(Lists.newArrayList(2, 3, 100));
+        assertEquals(2, changes.size());
+        assertEquals(Lists.newArrayList(2), Lists.newArrayList(changes.get(1).getElementsRemoved()));
+        assertEquals(Sets.newHashSet(4, 6, 12), evens);
+        source.clear();
+        assertTrue(evens.isEmpty());
+    }
+
+    @Test
+    public void testChainedFilter() {
+        ObservableSet<Integer> source = newTestSet();
+        ObservableSet<Integer> large = ObservableViews.filter(ObservableViews.filter(source, EVEN), new Predicate<Integer>() {
+            @Override
+            public boolean apply(Integer input) {
+                return input > 10;
+            }
+        });
+        assertEquals(Collections.singleton(12), large);
+        source.add(20);
+        source.remove(12);
+        assertEquals(Collections.singleton(20), large);
+    }
+
+    @Test
+    public void testTransform() {
+        ObservableSet<Integer> source = newTestSet();
+        ObservableCollection<Integer> tens = ObservableViews.transform(source, TENS);
+        assertEquals(HashMultiset.create(Lists.newArrayList(0, 0, 0, 0, 1, 1)), HashMultiset.create(tens));
+
+        source.addAll(Lists.newArrayList(1, 13));
+        assertEquals(7, tens.size());
+        source.retainAll(Lists.newArrayList(11, 12, 13));
+        assertEquals(HashMultiset.create(Lists.newArrayList(1, 1, 1)), HashMultiset.create(tens));
+    }
+
+    @Test
+    public void testGroupBy() {
+        ObservableSet<Integer> source = newTestSet();
+        ObservableMap<Integer, ObservableSet<Integer>> groups = ObservableViews.groupBy(source, TENS);
+        assertEquals(Sets.newHashSet(0, 1), groups.keySet());
+        assertEquals(Sets.newHashSet(11, 12), groups.get(1));
+
+        final AtomicInteger events = new AtomicInteger();
+        groups.get(1).addCollectionListener(new CollectionListener<Integer>() {
+            @Override
+            public void onCollectionChanged(Change<Integer> change) {
+                events.incrementAndGet();
+            }
+        });
+        source.add(25);
+        assertEquals(Collections.singleton(25), groups.get(2));
+        assertEquals(0, events.get());
+
+        source.removeAll(Lists.newArrayList(11, 12));
+        assertEquals(1, events.get());
+        assertFalse(groups.containsKey(1));
+    }
+
+    @Test
+    public void testFilterValues() {
+        ObservableMap<String, Integer> source = ObservableMap.newObservableHashMap();
+        source.put("a", 1);
+        source.put("b", 2);
+        ObservableMap<String, Integer> evens = ObservableViews.filterValues(source, EVEN);
+        assertEquals(Collections.singletonMap("b", 2), evens);
+
+        source.put("a", 4);
+        source.put("b", 3);
+        assertEquals(Collections.singletonMap("a", 4), evens);
+        source.remove("a");
+        assertTrue(evens.isEmpty());
+    }
+
+    @Test
+    public void testReductions() {
+        ObservableSet<Integer> source = newTestSet();
+        Reduction<Integer, Integer> count = ObservableViews.count(source, EVEN);
+        Reduction<Integer, Double> sum = ObservableViews.sum(source, TENS);
+        Reduction<Integer, Integer> min = ObservableViews.min(source, Ordering.<Integer>natural());
+        Reduction<Integer, Integer> max = ObservableViews.max(source, Ordering.<Integer>natural());
+        assertEquals(3, count.get().intValue());
+        assertEquals(2.0, sum.get(), 0.0);
+        assertEquals(1, min.get().intValue());
+        assertEquals(12, max.get().intValue());
+
+        // 11 and 12 are already present, so must not be counted twice
+        source.addAll(Lists.newArrayList(11, 12, 20));
+        assertEquals(4, count.get().intValue());
+        assertEquals(4.0, sum.get(), 0.0);
+        assertEquals(20, max.get().intValue());
+
+        source.removeAll(Lists.newArrayList(1, 20, 99));
+        assertEquals(2, min.get().intValue());
+        assertEquals(12, max.get().intValue());
+        assertEquals(3, count.get().intValue());
+
+        source.clear();
+        assertNull(min.get());
+        assertNull(max.get());
+        assertEquals(0.0, sum.get(), 0.0);
+    }
+
+    @Test
+    public void testReductionOfView() {
+        ObservableSet<Integer> source = newTestSet();
+        Reduction<Integer, Double> sum = ObservableViews.sum(ObservableViews.transform(source, TENS), new Function<Integer, Integer>() {
+            @Override
+            public Integer apply(Integer input) {
+                return input;
+            }
+        });
+        final AtomicInteger events = new AtomicInteger();
+        sum.addPropertyChangeListener(new PropertyChangeListener() {
+            @Override
+            public void propertyChange(PropertyChangeEvent evt) {
+                events.incrementAndGet();
+            }
+        });
+        assertEquals(2.0, sum.get(), 0.0);
+        source.add(30);
+        assertEquals(5.0, sum.get(), 0.0);
+        source.add(5);
+        assertEquals(1, events.get());
+    }
+
+    @Test
+    public void testReductionTies() {
+        ObservableSet<String> source = ObservableSet.newObservableHashSet();
+        Ordering<String> byLength = Ordering.natural().onResultOf(new Function<String, Integer>() {
+            @Override
+            public Integer apply(String input) {
+                return input.length();
+            }
+        });
+        Reduction<String, String> min = ObservableViews.min(source, byLength);
+        source.addAll(Lists.newArrayList("a", "b", "cc"));
+        source.remove("a");
+        assertEquals("b", min.get());
+        source.remove("b");
+        assertEquals("cc", min.get());
+        source.add("d");
+        assertEquals("d", min.get());
+    }
+
+    @Test
+    public void testReductionChurn() {
+        ObservableSet<Integer> source = ObservableSet.newObservableHashSet();
+        Reduction<Integer, Integer> min = ObservableViews.min(source, Ordering.<Integer>natural());
+        source.add(0);
+        for (int i = 1; i < 100000; i++) {
+            source.add(i);
+            source.remove(i);
+        }
+        assertEquals(0, min.get().intValue());
+        source.remove(0);
+        assertNull(min.get());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReductionOfListIsRejected() {
+        ObservableCollection<Integer> source = ObservableCollection.newObservableCollection(Lists.newArrayList(1, 1, 2));
+        ObservableViews.count(source, EVEN);
+    }
+}
@@ -0,0 +1,178 @@
+// Copyright (c) 2013 Samuel Halliday
+package com.github.fommil.collections;
+
+import com.github.fommil.collections.ObservableCollection.Change;
+import com.github.fommil.collections.ObservableCollection.CollectionListener;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.junit.Test;
+
+import java.util.Collection;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Samuel Halliday
+ */
+public class SnapshotHashSetTest {
+
+    // deliberately poor hash codes, to exercise the collision nodes
+    private static final class Colliding {
+        final int value, hash;
+
+        Colliding(int value) {
+            this(value, value % 7);
+        }
+
+        Colliding(int value, int hash) {
+            this.value = value;
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Colliding && ((Colliding) obj).value == value;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    @Test
+    public void testAgainstHashSet() {
+        Random random = new Random(0);
+        PersistentHashSet<Integer> persistent = PersistentHashSet.of();
+        Set<Integer> expected = Sets.newHashSet();
+        for (int i = 0; i < 50000; i++) {
+            int element = random.nextInt(2000) - 1000;
+            if (random.nextBoolean()) {
+                PersistentHashSet<Integer> updated = persistent.plus(element);
+                assertEquals(expected.add(element), updated != persistent);
+                persistent = updated;
+            } else {
+                PersistentHashSet<Integer> updated = persistent.minus(element);
+                assertEquals(expected.remove(element), updated != persistent);
+                persistent = updated;
+            }
+        }
+        assertEquals(expected, persistent);
+        assertEquals(expected, Sets.newHashSet(persistent));
+    }
+
+    @Test
+    public void testCollisions() {
+        PersistentHashSet<Colliding> persistent = PersistentHashSet.of();
+        for (int i = 0; i < 100; i++) {
+            persistent = persistent.plus(new Colliding(i));
+        }
+        assertEquals(100, persistent.size());
+        assertTrue(persistent.contains(new Colliding(50)));
+        for (int i = 0; i < 100; i += 2) {
+            persistent = persistent.minus(new Colliding(i));
+        }
+        assertEquals(50, persistent.size());
+        assertFalse(persistent.contains(new Colliding(50)));
+        assertEquals(50, Lists.newArrayList(persistent).size());
+    }
+
+    @Test
+    public void testPartialCollisions() {
+        // hashes that collide, and others that only share a prefix with them
+        int[] hashes = {1, 1 | 1 << 5, 1 | 1 << 10, 1 | 2 << 10};
+        Random random = new Random(0);
+        PersistentHashSet<Colliding> persistent = PersistentHashSet.of();
+        Set<Colliding> expected = Sets.newHashSet();
+        for (int i = 0; i < 10000; i++) {
+            int value = random.nextInt(40);
+            Colliding element = new Colliding(value, hashes[value % hashes.length]);
+            if (random.nextBoolean()) {
+                persistent = persistent.plus(element);
+                expected.add(element);
+            } else {
+                persistent = persistent.minus(element);
+                expected.remove(element);
+            }
+            assertEquals(expected.size(), persistent.size());
+        }
+        assertEquals(expected, persistent);
+        for (int value = 0; value < 40; value++) {
+            Colliding element = new Colliding(value, hashes[value % hashes.length]);
+            assertEquals(expected.contains(element), persistent.contains(element));
+        }
+        assertEquals(expected, Sets.newHashSet(persistent));
+    }
+
+    @Test
+    public void testSnapshotIsolation() {
+        PersistentHashSet<String> before = PersistentHashSet.copyOf(Lists.newArrayList("A", "B"));
+        PersistentHashSet<String> after = before.plus("C").minus("A");
+        assertEquals(Sets.newHashSet("A", "B"), before);
+        assertEquals(Sets.newHashSet("B", "C"), after);
+    }
+
+    @Test
+    public void testIterateWhileChanging() {
+        ObservableSet<Integer> set = ObservableSet.newObservableSnapshotSet();
+        for (int i = 0; i < 100; i++) {
+            set.add(i);
+        }
+        set.addCollectionListener(new CollectionListener<Integer>() {
+            @Override
+            public void onCollectionChanged(Change<Integer> change) {
+                for (Integer added : change.getElementsAdded()) {
+                    if (added < 1000) {
+                        change.getCollection().add(added + 1000);
+                    }
+                }
+            }
+        });
+        int seen = 0;
+        for (Integer element : set) {
+            set.add(element + 100);
+            seen++;
+        }
+        assertEquals(100, seen);
+        assertEquals(300, set.size());
+    }
+
+    @Test
+    public void testChangeSnapshots() {
+        ObservableSet<String> set = ObservableSet.newObservableSnapshotSet();
+        set.addAll(Lists.newArrayList("A", "B", "C"));
+        final AtomicBoolean listened = new AtomicBoolean();
+        set.addCollectionListener(new CollectionListener<String>() {
+            @Override
+            public void onCollectionChanged(Change<String> change) {
+                assertEquals(Sets.newHashSet("A", "B", "C"), change.getBefore());
+                assertTrue(change.getAfter().isEmpty());
+                assertEquals(change.getBefore(), change.getElementsRemoved());
+                listened.set(true);
+            }
+        });
+        Collection<String> snapshot = set.snapshot();
+        set.clear();
+        assertTrue(listened.get());
+        assertEquals(3, snapshot.size());
+    }
+
+    @Test
+    public void testNoSnapshots() {
+        ObservableSet<String> set = ObservableSet.newObservableHashSet();
+        final AtomicBoolean listened = new AtomicBoolean();
+        set.addCollectionListener(new CollectionListener<String>() {
+            @Override
+            public void onCollectionChanged(Change<String> change) {
+                assertNull(change.getBefore());
+                assertNull(change.getAfter());
+                listened.set(true);
+            }
+        });
+        set.add("A");
+        assertTrue(listened.get());
+    }
+}
@@ -0,0 +1,208 @@
+// Copyright (c) 2013 Samuel Halliday
+package com.github.fommil.jpa;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.junit.*;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Samuel Halliday
+ */
+public class AsyncCrudDaoTest {
+
+    // creates wait until the gate is open
+    static final class GatedDao extends CrudDao<Long, Thing> {
+        volatile CountDownLatch gate = new CountDownLatch(0);
+
+        GatedDao(EntityManagerFactory emf) {
+            super(Thing.class, emf);
+        }
+
+        @Override
+        public void create(Thing entity) {
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            super.create(entity);
+        }
+    }
+
+    static EntityManagerFactory emf;
+
+    private GatedDao dao;
+
+    private ExecutorService executor;
+
+    @BeforeClass
+    public static void createEntityManagerFactory() {
+        emf = CrudDao.createEntityManagerFactory("test");
+    }
+
+    @AfterClass
+    public static void closeEntityManagerFactory() {
+        emf.close();
+    }
+
+    @Before
+    public void deleteAll() {
+        EntityManager em = emf.createEntityManager();
+        try {
+            em.getTransaction().begin();
+            em.createQuery("DELETE FROM Thing").executeUpdate();
+            em.getTransaction().commit();
+        } finally {
+            em.close();
+        }
+        dao = new GatedDao(emf);
+        executor = AsyncCrudDao.newExecutor(2, 10);
+    }
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testWriteBehind() throws Exception {
+        AsyncCrudDao<Long, Thing> async = new AsyncCrudDao<Long, Thing>(dao, executor, 10, 10, TimeUnit.MILLISECONDS);
+        List<ListenableFuture<Thing>> futures = Lists.newArrayList();
+        for (int i = 0; i < 95; i++) {
+            futures.add(async.create(new Thing("thing" + i, i)));
+        }
+        for (ListenableFuture<Thing> future : futures) {
+            assertNotNull(future.get(10, TimeUnit.SECONDS).getId());
+        }
+        assertEquals(95, dao.count());
+        async.close();
+    }
+
+    @Test
+    public void testCloseDrainsQueue() throws Exception {
+        // batches never fill, and never time out, so are only written when closing
+        AsyncCrudDao<Long, Thing> async = new AsyncCrudDao<Long, Thing>(dao, executor, 1000, 1, TimeUnit.HOURS);
+        List<ListenableFuture<Thing>> futures = Lists.newArrayList();
+        for (int i = 0; i < 50; i++) {
+            futures.add(async.create(new Thing("thing" + i, i)));
+        }
+        async.close();
+        for (ListenableFuture<Thing> future : futures) {
+            assertTrue(future.isDone());
+            assertNotNull(future.get().getId());
+        }
+        assertEquals(50, dao.count());
+
+        try {
+            async.create(new Thing("closed", 0));
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testCloseReleasesBlockedCallers() throws Exception {
+        dao.gate = new CountDownLatch(1);
+        final AsyncCrudDao<Long, Thing> async = new AsyncCrudDao<Long, Thing>(dao, executor, 1, 0, TimeUnit.MILLISECONDS);
+        List<ListenableFuture<Thing>> futures = Lists.newArrayList();
+        // one is taken by the writer, which waits at the gate, and 16 fill the queue
+        for (int i = 0; i < 17; i++) {
+            futures.add(async.create(new Thing("thing" + i, i)));
+        }
+        Future<ListenableFuture<Thing>> blocked = Executors.newSingleThreadExecutor().submit(
+                new Callable<ListenableFuture<Thing>>() {
+                    @Override
+                    public ListenableFuture<Thing> call() {
+                        return async.create(new Thing("blocked", 0));
+                    }
+                });
+        Thread.sleep(200);
+        assertFalse(blocked.isDone());
+
+        Thread closer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                async.close();
+            }
+        });
+        closer.start();
+        try {
+            blocked.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+
+        dao.gate.countDown();
+        closer.join(10000);
+        assertFalse(closer.isAlive());
+        for (ListenableFuture<Thing> future : futures) {
+            assertTrue(future.isDone());
+            assertNotNull(future.get().getId());
+        }
+        assertEquals(17, dao.count());
+    }
+
+    @Test
+    public void testFailedBatch() throws Exception {
+        Thing stale = new Thing("stale", 0);
+        dao.create(stale);
+        Thing fresh = dao.read(stale.getId());
+        fresh.setName("fresh");
+        dao.update(fresh);
+
+        AsyncCrudDao<Long, Thing> async = new AsyncCrudDao<Long, Thing>(dao, executor, 10, 1, TimeUnit.HOURS);
+        ListenableFuture<Thing> created = async.create(new Thing("created", 0));
+        ListenableFuture<Thing> updated = async.update(stale);
+        async.close();
+        for (ListenableFuture<Thing> future : Lists.newArrayList(created, updated)) {
+            try {
+                future.get();
+                fail();
+            } catch (ExecutionException e) {
+                // expected
+            }
+        }
+        assertEquals(1, dao.count());
+    }
+
+    @Test
+    public void testOverloadedExecutorRejects() throws Exception {
+        final CountDownLatch busy = new CountDownLatch(1);
+        ExecutorService overloaded = AsyncCrudDao.newExecutor(1, 1);
+        try {
+            overloaded.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        busy.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            AsyncCrudDao<Long, Thing> async = new AsyncCrudDao<Long, Thing>(dao, overloaded);
+            ListenableFuture<Thing> queued = async.create(new Thing("queued", 0));
+            try {
+                // rather than running, and joining any transaction, on this thread
+                async.create(new Thing("rejected", 0));
+                fail();
+            } catch (RejectedExecutionException e) {
+                // expected
+            }
+            busy.countDown();
+            assertNotNull(queued.get(10, TimeUnit.SECONDS).getId());
+            assertEquals(1, dao.count());
+        } finally {
+            overloaded.shutdown();
+        }
+    }
+}
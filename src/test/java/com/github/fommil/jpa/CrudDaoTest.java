@@ -0,0 +1,691 @@
+// Copyright (c) 2013 Samuel Halliday
+package com.github.fommil.jpa;
+
+import com.github.fommil.jpa.CrudDao.Cursor;
+import com.github.fommil.jpa.CrudDao.Modification;
+import com.github.fommil.jpa.CrudDao.Page;
+import com.github.fommil.jpa.CrudDao.Seek;
+import com.google.common.base.Predicate;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import lombok.Cleanup;
+import lombok.extern.java.Log;
+import org.junit.*;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityNotFoundException;
+import javax.persistence.OptimisticLockException;
+import javax.persistence.Query;
+import javax.persistence.RollbackException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Samuel Halliday
+ */
+@Log
+@SuppressWarnings("deprecation")
+public class CrudDaoTest {
+
+    static final class ThingDao extends CrudDao<Long, Thing> {
+        ThingDao(EntityManagerFactory emf) {
+            super(Thing.class, emf);
+        }
+    }
+
+    // remembers the entity managers that it creates
+    static final class TrackingDao extends CrudDao<Long, Thing> {
+        final List<EntityManager> created = Lists.newArrayList();
+
+        TrackingDao(EntityManagerFactory emf) {
+            super(Thing.class, emf);
+        }
+
+        @Override
+        protected EntityManager createEntityManager() {
+            EntityManager em = super.createEntityManager();
+            created.add(em);
+            return em;
+        }
+    }
+
+    // a specialist DAO with its own query
+    static final class NamedThingDao extends CrudDao<Long, Thing> {
+        static final String READ_BY_NAME = "readByName";
+
+        NamedThingDao(EntityManagerFactory emf) {
+            super(Thing.class, emf);
+            registerQuery(READ_BY_NAME, "SELECT t FROM Thing t WHERE t.name = :name ORDER BY t.id");
+        }
+
+        List<Thing> readByName(String name) {
+            @Cleanup("close") EntityManager em = createEntityManager();
+            Query query = createQuery(em, READ_BY_NAME);
+            query.setParameter("name", name);
+            return query(em, query);
+        }
+    }
+
+    // a specialist DAO with an estimate of the count
+    static final class EstimatingDao extends CrudDao<Long, Thing> {
+        volatile Long estimate;
+
+        EstimatingDao(EntityManagerFactory emf) {
+            super(Thing.class, emf);
+        }
+
+        @Override
+        protected Long estimateCount(EntityManager em) {
+            assertTrue(em.isOpen());
+            return estimate;
+        }
+    }
+
+    static EntityManagerFactory emf;
+
+    private ThingDao dao;
+
+    @BeforeClass
+    public static void createEntityManagerFactory() {
+        emf = CrudDao.createEntityManagerFactory("test");
+    }
+
+    @AfterClass
+    public static void closeEntityManagerFactory() {
+        emf.close();
+    }
+
+    @After
+    public void removeHook() {
+        Thing.onLoad = null;
+    }
+
+    @Before
+    public void deleteAll() {
+        execute("DELETE FROM Thing");
+        dao = new ThingDao(emf);
+    }
+
+    // runs JPQL in its own transaction, outside of the DAO
+    static int execute(String jpql) {
+        EntityManager em = emf.createEntityManager();
+        try {
+            em.getTransaction().begin();
+            int updated = em.createQuery(jpql).executeUpdate();
+            em.getTransaction().commit();
+            return updated;
+        } finally {
+            em.close();
+        }
+    }
+
+    static List<Thing> things(int count) {
+        List<Thing> things = Lists.newArrayList();
+        for (int i = 0; i < count; i++) {
+            things.add(new Thing("thing" + i, i % 5));
+        }
+        return things;
+    }
+
+    @Test
+    public void testCreateInBatches() {
+        List<Thing> things = things(125);
+        dao.create(things, 50);
+        assertEquals(125, dao.count());
+        Set<Long> ids = Sets.newHashSet();
+        for (Thing thing : things) {
+            assertNotNull(thing.getId());
+            ids.add(thing.getId());
+        }
+        assertEquals(125, ids.size());
+        assertEquals(ids.size(), dao.readAll().size());
+    }
+
+    @Test
+    public void testReadCollectionOrder() {
+        List<Thing> things = things(1100);
+        dao.create(things);
+        List<Long> keys = Lists.newArrayList();
+        for (Thing thing : things) {
+            keys.add(thing.getId());
+        }
+        Collections.reverse(keys);
+        keys.add(1, -1L);
+        keys.add(keys.get(0));
+
+        List<Thing> read = dao.read(keys);
+        assertEquals(keys.size(), read.size());
+        assertNull(read.get(1));
+        for (int i = 0; i < keys.size(); i++) {
+            if (i != 1) {
+                assertEquals(keys.get(i), read.get(i).getId());
+            }
+        }
+        assertTrue(dao.read(Collections.<Long>emptyList()).isEmpty());
+    }
+
+    @Ignore("benchmark: chunked IN queries against one find per key")
+    @Test
+    public void testReadCollectionBenchmark() {
+        List<Thing> things = things(10000);
+        dao.create(things, 1000);
+        List<Long> keys = Lists.newArrayList();
+        for (Thing thing : things) {
+            keys.add(thing.getId());
+        }
+        Collections.shuffle(keys);
+
+        for (int i = 0; i < 5; i++) {
+            Stopwatch watch = new Stopwatch().start();
+            assertEquals(keys.size(), dao.read(keys).size());
+            log.info("read " + keys.size() + " keys in " + watch.stop());
+
+            watch = new Stopwatch().start();
+            EntityManager em = emf.createEntityManager();
+            try {
+                for (Long key : keys) {
+                    assertNotNull(em.find(Thing.class, key));
+                }
+            } finally {
+                em.close();
+            }
+            log.info("found " + keys.size() + " keys in " + watch.stop());
+        }
+    }
+
+    @Test
+    public void testCacheInvalidatedDuringLoad() throws Exception {
+        final Thing thing = new Thing("original", 0);
+        dao.create(thing);
+        dao.enableCache(100, 1, TimeUnit.HOURS);
+
+        final CountDownLatch loading = new CountDownLatch(1), updated = new CountDownLatch(1);
+        Thing.onLoad = new Runnable() {
+            @Override
+            public void run() {
+                Thing.onLoad = null;
+                loading.countDown();
+                try {
+                    updated.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Thing> read = executor.submit(new Callable<Thing>() {
+                @Override
+                public Thing call() {
+                    return dao.read(thing.getId());
+                }
+            });
+            assertTrue(loading.await(10, TimeUnit.SECONDS));
+            // commits, and invalidates, while the stale entity is loading
+            thing.setName("updated");
+            dao.update(thing);
+            updated.countDown();
+            // the stale load is discarded, and reloaded
+            assertEquals("updated", read.get().getName());
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals("updated", dao.read(thing.getId()).getName());
+        assertEquals("updated", dao.read(Collections.singletonList(thing.getId())).get(0).getName());
+    }
+
+    @Test
+    public void testCacheIgnoresUnsavedEntities() {
+        dao.enableCache(100, 1, TimeUnit.HOURS);
+        List<Thing> things = things(2);
+        dao.create(things.get(0));
+        // never persisted, so it has no key to invalidate
+        dao.delete(things);
+        assertNull(dao.read(things.get(0).getId()));
+    }
+
+    @Test
+    public void testUnitOfWorkNesting() {
+        UnitOfWork outer = UnitOfWork.begin(emf);
+        try {
+            dao.create(new Thing("outer", 0));
+            UnitOfWork inner = UnitOfWork.begin(emf);
+            try {
+                assertSame(outer, inner);
+                assertTrue(inner.isNested());
+                dao.create(new Thing("inner", 0));
+                inner.commit();
+            } finally {
+                inner.close();
+            }
+            // reads join the unit, so see its uncommitted writes
+            assertEquals(2, dao.count());
+            outer.commit();
+        } finally {
+            outer.close();
+        }
+        assertNull(UnitOfWork.current(emf));
+        assertEquals(2, dao.count());
+    }
+
+    @Test
+    public void testUnitOfWorkRollback() {
+        UnitOfWork outer = UnitOfWork.begin(emf);
+        try {
+            dao.create(new Thing("outer", 0));
+            UnitOfWork inner = UnitOfWork.begin(emf);
+            try {
+                dao.create(new Thing("inner", 0));
+            } finally {
+                inner.close();
+            }
+            outer.commit();
+            fail();
+        } catch (RollbackException e) {
+            // expected
+        } finally {
+            outer.close();
+        }
+        assertEquals(0, dao.count());
+
+        UnitOfWork uncommitted = UnitOfWork.begin(emf);
+        try {
+            dao.create(new Thing("uncommitted", 0));
+        } finally {
+            uncommitted.close();
+        }
+        assertEquals(0, dao.count());
+    }
+
+    @Test
+    public void testUpdateRetry() {
+        final Thing thing = new Thing("original", 0);
+        dao.create(thing);
+        final int[] attempts = new int[1];
+        Thing updated = dao.update(thing.getId(), new Modification<Thing>() {
+            @Override
+            public void apply(Thing entity) {
+                if (attempts[0]++ == 0) {
+                    execute("UPDATE Thing SET name = 'concurrent', version = version + 1 WHERE id = " + thing.getId());
+                }
+                entity.setRank(entity.getRank() + 1);
+            }
+        });
+        assertEquals(2, attempts[0]);
+        assertEquals(1, dao.getOptimisticLockConflicts());
+        assertEquals("concurrent", updated.getName());
+        assertEquals(1, updated.getRank());
+        assertEquals("concurrent", dao.read(thing.getId()).getName());
+        assertEquals(1, dao.read(thing.getId()).getRank());
+
+        assertNull(dao.update(-1L, new Modification<Thing>() {
+            @Override
+            public void apply(Thing entity) {
+                fail();
+            }
+        }));
+    }
+
+    @Test
+    public void testUpdateRetriesExhausted() {
+        final Thing thing = new Thing("original", 0);
+        dao.create(thing);
+        dao.setOptimisticRetry(2, 0, TimeUnit.MILLISECONDS);
+        try {
+            dao.update(thing.getId(), new Modification<Thing>() {
+                @Override
+                public void apply(Thing entity) {
+                    execute("UPDATE Thing SET version = version + 1 WHERE id = " + thing.getId());
+                    entity.setName("lost");
+                }
+            });
+            fail();
+        } catch (RuntimeException e) {
+            assertEquals(2, dao.getOptimisticLockConflicts());
+        }
+        assertEquals("original", dao.read(thing.getId()).getName());
+    }
+
+    @Test
+    public void testStaleEntitiesAreNotRetried() {
+        Thing thing = new Thing("original", 0);
+        dao.create(thing);
+        execute("UPDATE Thing SET version = version + 1 WHERE id = " + thing.getId());
+        thing.setName("stale");
+        try {
+            dao.update(thing);
+            fail();
+        } catch (OptimisticLockException e) {
+            // expected
+        }
+        try {
+            dao.delete(thing);
+            fail();
+        } catch (OptimisticLockException e) {
+            // expected
+        }
+        assertEquals(0, dao.getOptimisticLockConflicts());
+        assertEquals("original", dao.read(thing.getId()).getName());
+    }
+
+    @Test
+    public void testDeleteRetry() {
+        final Thing thing = new Thing("original", 0);
+        dao.create(thing);
+        final int[] attempts = new int[1];
+        assertFalse(dao.delete(thing.getId(), new Predicate<Thing>() {
+            @Override
+            public boolean apply(Thing entity) {
+                return false;
+            }
+        }));
+        assertTrue(dao.delete(thing.getId(), new Predicate<Thing>() {
+            @Override
+            public boolean apply(Thing entity) {
+                if (attempts[0]++ == 0) {
+                    execute("UPDATE Thing SET version = version + 1 WHERE id = " + thing.getId());
+                }
+                return true;
+            }
+        }));
+        assertEquals(2, attempts[0]);
+        assertEquals(1, dao.getOptimisticLockConflicts());
+        assertNull(dao.read(thing.getId()));
+    }
+
+    @Test
+    public void testDeleteByIdInUnitOfWork() {
+        List<Thing> things = things(2);
+        dao.create(things);
+        UnitOfWork work = UnitOfWork.begin(emf);
+        try {
+            dao.deleteById(things.get(0).getId());
+            dao.create(new Thing("created", 0));
+            work.commit();
+        } finally {
+            work.close();
+        }
+        assertNull(dao.read(things.get(0).getId()));
+        assertEquals(2, dao.count());
+
+        try {
+            dao.deleteById(-1L);
+            fail();
+        } catch (EntityNotFoundException e) {
+            // expected
+        }
+        assertEquals(2, dao.count());
+    }
+
+    @Test
+    public void testDeleteWhereInPages() {
+        dao.create(things(2500), 500);
+        Map<String, Object> parameters = Maps.newHashMap();
+        parameters.put("rank", 0);
+        // more than one page of keys match
+        assertEquals(2000, dao.deleteWhere("s.rank <> :rank", parameters));
+        assertEquals(500, dao.count());
+        for (Thing thing : dao.readAll()) {
+            assertEquals(0, thing.getRank());
+        }
+        assertEquals(0, dao.deleteWhere("s.rank <> :rank", parameters));
+        assertEquals(500, dao.deleteWhere("s.rank = :rank OR s.rank = 1", parameters));
+        assertEquals(0, dao.count());
+    }
+
+    @Test
+    public void testScan() throws Exception {
+        List<Thing> things = things(100);
+        dao.create(things);
+        for (int partitions : new int[]{1, 4}) {
+            final Set<Long> scanned = Collections.synchronizedSet(Sets.<Long>newHashSet());
+            assertEquals(100, dao.scan(partitions, 7, new CrudDao.Scanner<Thing>() {
+                @Override
+                public void scanned(Thing entity) {
+                    assertTrue(scanned.add(entity.getId()));
+                }
+            }));
+            assertEquals(100, scanned.size());
+        }
+    }
+
+    @Test
+    public void testReadPage() {
+        List<Thing> things = things(25);
+        dao.create(things);
+
+        List<Long> ids = Lists.newArrayList();
+        Seek seek = null;
+        int pages = 0;
+        do {
+            Page<Thing> page = dao.readPage(seek, 10);
+            for (Thing thing : page.getContent()) {
+                ids.add(thing.getId());
+            }
+            seek = page.getNext();
+            pages++;
+        } while (seek != null);
+        assertEquals(3, pages);
+        List<Long> expected = Lists.newArrayList();
+        for (Thing thing : things) {
+            expected.add(thing.getId());
+        }
+        Collections.sort(expected);
+        assertEquals(expected, ids);
+    }
+
+    @Test
+    public void testReadPageByAttribute() {
+        dao.create(things(25));
+
+        List<Thing> seen = Lists.newArrayList();
+        Seek seek = null;
+        do {
+            // smaller than the ties of each rank
+            Page<Thing> page = dao.readPage("rank", seek, 3);
+            seen.addAll(page.getContent());
+            seek = page.getNext();
+        } while (seek != null);
+        assertEquals(25, seen.size());
+        for (int i = 1; i < seen.size(); i++) {
+            Thing previous = seen.get(i - 1), current = seen.get(i);
+            assertTrue(previous.getRank() < current.getRank()
+                    || previous.getRank() == current.getRank() && previous.getId() < current.getId());
+        }
+
+        Page<Object[]> names = dao.readPage("rank", null, 10, "name", "rank");
+        assertEquals(10, names.getContent().size());
+        assertEquals(2, names.getContent().get(0).length);
+        assertEquals(0, names.getContent().get(0)[1]);
+        assertTrue(names.hasNext());
+    }
+
+    @Test
+    public void testReadPageRejectsUnknownPaths() {
+        dao.create(things(3));
+        for (String path : new String[]{"nope", "name.length", "rank, s", "id) FROM Thing s WHERE (1 = 1", ""}) {
+            try {
+                dao.readPage(path, null, 10);
+                fail(path);
+            } catch (IllegalArgumentException e) {
+                // rejected before the provider parses the query
+                assertTrue(e.getMessage(), e.getMessage().contains("not a path"));
+            }
+            try {
+                dao.readPage(null, null, 10, "name", path);
+                fail(path);
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("not a path"));
+            }
+        }
+    }
+
+    @Test
+    public void testCountMaxAge() {
+        dao.create(things(3));
+        assertEquals(3, dao.count(1, TimeUnit.HOURS));
+        dao.create(things(2));
+        dao.deleteById(dao.readAll().get(0).getId());
+        // maintained by the writes of the DAO
+        assertEquals(4, dao.count(1, TimeUnit.HOURS));
+
+        // other writers are only seen when reconciled
+        new ThingDao(emf).create(new Thing("other", 0));
+        assertEquals(4, dao.count(1, TimeUnit.HOURS));
+        assertEquals(5, dao.count(0, TimeUnit.NANOSECONDS));
+
+        // uncommitted writes are counted when they commit, not when reconciling
+        UnitOfWork work = UnitOfWork.begin(emf);
+        try {
+            dao.create(new Thing("uncommitted", 0));
+            assertEquals(5, dao.count(0, TimeUnit.NANOSECONDS));
+            work.commit();
+        } finally {
+            work.close();
+        }
+        assertEquals(6, dao.count(1, TimeUnit.HOURS));
+        assertEquals(6, dao.count(0, TimeUnit.NANOSECONDS));
+    }
+
+    // keys of the entities, in ascending order
+    static List<Long> keys(List<Thing> things) {
+        List<Long> keys = Lists.newArrayList();
+        for (Thing thing : things) {
+            keys.add(thing.getId());
+        }
+        Collections.sort(keys);
+        return keys;
+    }
+
+    @Test
+    public void testStreamAll() {
+        TrackingDao tracking = new TrackingDao(emf);
+        List<Thing> things = things(107);
+        tracking.create(things);
+        tracking.created.clear();
+
+        List<Long> streamed = Lists.newArrayList();
+        Cursor<Thing> cursor = tracking.streamAll(10);
+        while (cursor.hasNext()) {
+            streamed.add(cursor.next().getId());
+        }
+        assertEquals(keys(things), streamed);
+        // released on exhaustion
+        assertEquals(1, tracking.created.size());
+        assertFalse(tracking.created.get(0).isOpen());
+        cursor.close();
+    }
+
+    @Test
+    public void testStreamAllClose() {
+        TrackingDao tracking = new TrackingDao(emf);
+        List<Thing> things = things(107);
+        tracking.create(things);
+        tracking.created.clear();
+
+        Cursor<Thing> cursor = tracking.streamAll(10);
+        for (int i = 0; i < 15; i++) {
+            assertEquals(keys(things).get(i), cursor.next().getId());
+        }
+        cursor.close();
+        assertEquals(1, tracking.created.size());
+        assertFalse(tracking.created.get(0).isOpen());
+        assertFalse(cursor.hasNext());
+        cursor.close();
+    }
+
+    @Test
+    public void testStreamAllClosesOnFailure() {
+        TrackingDao tracking = new TrackingDao(emf);
+        tracking.create(things(107));
+        tracking.created.clear();
+
+        final AtomicInteger loaded = new AtomicInteger();
+        Thing.onLoad = new Runnable() {
+            @Override
+            public void run() {
+                if (loaded.incrementAndGet() == 25) {
+                    throw new IllegalStateException("failed to load");
+                }
+            }
+        };
+        Cursor<Thing> cursor = tracking.streamAll(10);
+        try {
+            while (cursor.hasNext()) {
+                cursor.next();
+            }
+            fail();
+        } catch (RuntimeException e) {
+            // expected
+        }
+        assertEquals(1, tracking.created.size());
+        assertFalse(tracking.created.get(0).isOpen());
+    }
+
+    @Test
+    public void testRegisteredQuery() {
+        NamedThingDao named = new NamedThingDao(emf);
+        named.create(things(12));
+        List<Thing> read = named.readByName("thing7");
+        assertEquals(1, read.size());
+        assertEquals("thing7", read.get(0).getName());
+        assertTrue(named.readByName("missing").isEmpty());
+
+        try {
+            named.registerQuery(NamedThingDao.READ_BY_NAME, "SELECT t FROM Thing t");
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("already registered"));
+        }
+        try {
+            named.registerQuery(CrudDao.READ_ALL, "SELECT t FROM Thing t");
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("standard query"));
+        }
+        // the rejected registrations did not replace the query
+        assertEquals(1, named.readByName("thing7").size());
+    }
+
+    @Test
+    public void testApproximateCountEstimate() {
+        EstimatingDao estimating = new EstimatingDao(emf);
+        estimating.create(things(3));
+        estimating.estimate = 42L;
+        assertEquals(42, estimating.approximateCount());
+        estimating.estimate = 0L;
+        assertEquals(0, estimating.approximateCount());
+        assertEquals(3, estimating.count());
+    }
+
+    @Test
+    public void testApproximateCountFallback() {
+        dao.create(things(3));
+        assertEquals(3, dao.approximateCount());
+
+        // not counted again, so other writers are not seen
+        new ThingDao(emf).create(new Thing("other", 0));
+        assertEquals(3, dao.approximateCount());
+        // but the writes of the DAO are
+        dao.create(new Thing("mine", 0));
+        assertEquals(4, dao.approximateCount());
+
+        // until reconciled
+        assertEquals(5, dao.count(0, TimeUnit.NANOSECONDS));
+        assertEquals(5, dao.approximateCount());
+    }
+}
@@ -0,0 +1,51 @@
+// Copyright (c) 2013 Samuel Halliday
+package com.github.fommil.jpa;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+
+import javax.persistence.*;
+
+/**
+ * Entity for the {@link CrudDao} tests.
+ *
+ * @author Samuel Halliday
+ */
+@Entity
+@Getter
+@Setter
+@NoArgsConstructor
+@ToString
+public class Thing {
+
+    @Id
+    @GeneratedValue
+    private Long id;
+
+    @Version
+    private int version;
+
+    private String name;
+
+    @Column(name = "rank_")
+    private int rank;
+
+    // called after loading, to interleave the tests with a read
+    @Transient
+    static volatile Runnable onLoad;
+
+    public Thing(String name, int rank) {
+        this.name = name;
+        this.rank = rank;
+    }
+
+    @PostLoad
+    void loaded() {
+        Runnable hook = onLoad;
+        if (hook != null) {
+            hook.run();
+        }
+    }
+}